@@ -407,3 +407,119 @@ median.android.swipeGestures = {
         addCommand("median://swipeGestures/disable");
     }
 }
+
+median.android.performance = {
+    getPageLoads: function(params) {
+        return addCommandCallback("median://performance/pageLoads", params);
+    },
+    logPageLoads: function() {
+        addCommand("median://performance/logPageLoads");
+    },
+    getMainThreadStats: function(params) {
+        return addCommandCallback("median://performance/mainThread", params);
+    },
+    setMainThreadMonitorEnabled: function(enabled) {
+        addCommand("median://performance/mainThreadMonitor", {enabled});
+    },
+    logMainThreadStats: function() {
+        addCommand("median://performance/logMainThread");
+    },
+    getNetworkUsage: function(params) {
+        return addCommandCallback("median://performance/network", params);
+    },
+    setNetworkAccountingEnabled: function(enabled) {
+        addCommand("median://performance/networkAccounting", {enabled});
+    },
+    clearNetworkUsage: function() {
+        addCommand("median://performance/clearNetwork");
+    },
+    getExecutorStats: function(params) {
+        return addCommandCallback("median://performance/executor", params);
+    },
+    getCookieFlushStats: function(params) {
+        return addCommandCallback("median://performance/cookies", params);
+    }
+}
+
+median.android.console = {
+    getMessages: function(params) {
+        return addCommandCallback("median://console/messages", params);
+    },
+    dump: function() {
+        addCommand("median://console/dump");
+    }
+}
+
+median.android.stream = {
+    start: function(params) {
+        if(params && typeof params.statuscallback === 'function'){
+            params.statuscallback = addCallbackFunction(params.statuscallback, true);
+        }
+        return addCommandCallback("median://stream/start", params);
+    },
+    read: function(params) {
+        return addCommandCallback("median://stream/read", params);
+    },
+    cancel: function(params) {
+        addCommand("median://stream/cancel", params);
+    },
+    list: function(params) {
+        return addCommandCallback("median://stream/list", params);
+    }
+}
+
+median.android.conversations = {
+    list: function(params) {
+        return addCommandCallback("median://conversations/list", params);
+    },
+    get: function(params) {
+        return addCommandCallback("median://conversations/get", params);
+    },
+    put: function(params) {
+        return addCommandCallback("median://conversations/put", params);
+    },
+    append: function(params) {
+        return addCommandCallback("median://conversations/append", params);
+    },
+    replace: function(params) {
+        return addCommandCallback("median://conversations/replace", params);
+    },
+    delete: function(params) {
+        return addCommandCallback("median://conversations/delete", params);
+    },
+    clear: function(params) {
+        return addCommandCallback("median://conversations/clear", params);
+    }
+}
+
+median.android.kv = {
+    // most recently used entries as of the start of this document, no round trip needed
+    snapshot: function() {
+        return window.median_kv_snapshot || {};
+    },
+    get: function(params) {
+        return addCommandCallback("median://kv/get", params);
+    },
+    set: function(params) {
+        if(params && params.values && window.median_kv_snapshot){
+            for(var key in params.values){
+                if(params.values[key] === null) delete window.median_kv_snapshot[key];
+                else window.median_kv_snapshot[key] = String(params.values[key]);
+            }
+        }
+        return addCommandCallback("median://kv/set", params);
+    },
+    remove: function(params) {
+        if(params && params.keys && window.median_kv_snapshot){
+            params.keys.forEach(function(key){ delete window.median_kv_snapshot[key]; });
+        }
+        return addCommandCallback("median://kv/remove", params);
+    },
+    clear: function(params) {
+        if(window.median_kv_snapshot) window.median_kv_snapshot = {};
+        return addCommandCallback("median://kv/clear", params);
+    },
+    subscribe: function(callback) {
+        addCommand("median://kv/subscribe", {statuscallback: addCallbackFunction(callback, true)});
+    }
+}
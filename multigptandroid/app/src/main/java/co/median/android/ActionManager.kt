@@ -22,7 +22,6 @@ import androidx.appcompat.widget.Toolbar
 import androidx.core.content.ContextCompat
 import androidx.core.graphics.BlendModeColorFilterCompat
 import androidx.core.graphics.BlendModeCompat
-import co.median.android.icons.Icon
 import co.median.median_core.AppConfig
 import com.google.android.material.appbar.MaterialToolbar
 import org.json.JSONArray
@@ -209,7 +208,7 @@ class ActionManager(private val main: MainActivity) {
         val icon = entry.optString("icon")
         val url = entry.optString("url")
 
-        val drawableIcon = Icon(main, icon, menuItemSize, colorForeground).getDrawable()
+        val drawableIcon = IconCache.getInstance().getIcon(main, icon, menuItemSize, colorForeground)
 
         val menuItem = menu.add(Menu.NONE, itemID, Menu.NONE, label)
             .setIcon(drawableIcon)
@@ -242,7 +241,7 @@ class ActionManager(private val main: MainActivity) {
         if (TextUtils.isEmpty(label)) label = defaultLabel
         if (TextUtils.isEmpty(icon)) icon = defaultIcon
 
-        val drawableIcon = Icon(main, icon, menuItemSize, colorForeground).getDrawable()
+        val drawableIcon = IconCache.getInstance().getIcon(main, icon, menuItemSize, colorForeground)
 
         val menuItem = menu.add(Menu.NONE, itemID, Menu.NONE, label)
             .setIcon(drawableIcon)
@@ -287,7 +286,7 @@ class ActionManager(private val main: MainActivity) {
             }
         }
 
-        val drawableIcon = Icon(main, icon, menuItemSize, colorForeground).getDrawable()
+        val drawableIcon = IconCache.getInstance().getIcon(main, icon, menuItemSize, colorForeground)
         toolbar.navigationIcon = drawableIcon
         toolbar.setNavigationIconTint(colorForeground)
 
@@ -601,7 +600,7 @@ class OverFlowMenuItemAdapter(context: Context, items: List<JSONObject>, private
             if (hasIcons) {
                 val icon = it.optString("icon")
                 if (icon.isNotBlank()) {
-                    val drawableIcon = Icon(context, icon, menuItemSize, colorForeground).getDrawable()
+                    val drawableIcon = IconCache.getInstance().getIcon(context, icon, menuItemSize, colorForeground)
                     menuItemImageView.setImageDrawable(drawableIcon)
                     menuItemImageView.visibility = View.VISIBLE
                 } else {
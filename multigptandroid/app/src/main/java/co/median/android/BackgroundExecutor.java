@@ -0,0 +1,332 @@
+package co.median.android;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Shared executor for all background work in the app. Work is split into lanes with their own
+ * sized thread pools and thread priorities, so bulk downloads and telemetry never hold up the I/O
+ * a page load is waiting for. Within a lane, higher priority tasks run first and equal priorities
+ * run in submission order. Each lane keeps queue metrics for diagnostics.
+ */
+public class BackgroundExecutor {
+    private static final String TAG = BackgroundExecutor.class.getName();
+
+    public static final int PRIORITY_HIGH = 10;
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_LOW = -10;
+
+    public enum Lane {
+        // work the user is waiting on, e.g. login state and client certificates during a page load
+        UI_CRITICAL_IO(2, Process.THREAD_PRIORITY_DEFAULT),
+        // fire-and-forget requests such as registration and telemetry
+        NETWORK(2, Process.THREAD_PRIORITY_BACKGROUND),
+        // local files and cookie storage, short reads and writes only
+        DISK(2, Process.THREAD_PRIORITY_BACKGROUND),
+        // CPU bound work such as decoding and scaling images, kept off the disk lane so it does not
+        // delay the small writes queued there
+        COMPUTE(2, Process.THREAD_PRIORITY_BACKGROUND),
+        // large downloads
+        BULK_TRANSFER(2, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE),
+        // long lived streaming responses relayed to the page, one thread per open stream
+        STREAMING(4, Process.THREAD_PRIORITY_DEFAULT);
+
+        final int threads;
+        final int threadPriority;
+
+        Lane(int threads, int threadPriority) {
+            this.threads = threads;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private static BackgroundExecutor instance = null;
+
+    private final Map<Lane, LaneExecutor> lanes = new EnumMap<>(Lane.class);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "BackgroundScheduler");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private BackgroundExecutor() {
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneExecutor(lane));
+        }
+    }
+
+    public static synchronized BackgroundExecutor getInstance() {
+        if (instance == null) {
+            instance = new BackgroundExecutor();
+        }
+        return instance;
+    }
+
+    public Task execute(Lane lane, Runnable runnable) {
+        return execute(lane, PRIORITY_DEFAULT, runnable);
+    }
+
+    public Task execute(Lane lane, int priority, Runnable runnable) {
+        Task task = new Task(lanes.get(lane), priority, runnable);
+        task.laneExecutor.enqueue(task);
+        return task;
+    }
+
+    /**
+     * Runs the task on the lane and cancels it if the lifecycle is destroyed before it finishes.
+     * Must be called on the main thread.
+     */
+    public Task execute(Lane lane, int priority, LifecycleOwner owner, Runnable runnable) {
+        Lifecycle lifecycle = owner.getLifecycle();
+        Task task = new Task(lanes.get(lane), priority, runnable);
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            task.cancel(false);
+            return task;
+        }
+        LifecycleEventObserver observer = new LifecycleEventObserver() {
+            @Override
+            public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+                if (event == Lifecycle.Event.ON_DESTROY) {
+                    task.cancel(true);
+                    lifecycle.removeObserver(this);
+                }
+            }
+        };
+        lifecycle.addObserver(observer);
+        task.onDone = () -> mainHandler.post(() -> lifecycle.removeObserver(observer));
+        task.laneExecutor.enqueue(task);
+        return task;
+    }
+
+    /**
+     * Queues the task on the lane after a delay. Cancelling the returned task before the delay
+     * has passed keeps it from ever being queued.
+     */
+    public Task schedule(Lane lane, int priority, long delayMs, Runnable runnable) {
+        Task task = new Task(lanes.get(lane), priority, runnable);
+        scheduler.schedule(() -> {
+            if (!task.isCancelled()) task.laneExecutor.enqueue(task);
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    /**
+     * An Executor view of a lane at default priority, e.g. for coroutine dispatchers.
+     */
+    public Executor asExecutor(Lane lane) {
+        return runnable -> execute(lane, runnable);
+    }
+
+    /**
+     * An Executor that runs its tasks on the lane one at a time, in submission order, for work
+     * such as file writes that must not be reordered.
+     */
+    public Executor serialExecutor(Lane lane, int priority) {
+        return new SerialExecutor(lane, priority);
+    }
+
+    public void postToMain(Runnable runnable) {
+        mainHandler.post(runnable);
+    }
+
+    public JSONObject getMetrics() {
+        JSONObject metrics = new JSONObject();
+        try {
+            for (LaneExecutor laneExecutor : lanes.values()) {
+                metrics.put(laneExecutor.lane.name(), laneExecutor.getMetrics());
+            }
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return metrics;
+    }
+
+    private class SerialExecutor implements Executor {
+        private final Lane lane;
+        private final int priority;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private boolean running = false;
+
+        SerialExecutor(Lane lane, int priority) {
+            this.lane = lane;
+            this.priority = priority;
+        }
+
+        @Override
+        public synchronized void execute(Runnable runnable) {
+            queue.add(runnable);
+            if (!running) scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            Runnable next = queue.poll();
+            running = next != null;
+            if (next == null) return;
+            BackgroundExecutor.this.execute(lane, priority, () -> {
+                try {
+                    next.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+        }
+    }
+
+    public static class Task extends FutureTask<Void> implements Comparable<Task> {
+        private static final AtomicLong sequence = new AtomicLong();
+
+        private final LaneExecutor laneExecutor;
+        private final int priority;
+        private final long order = sequence.getAndIncrement();
+        private long enqueuedAt;
+        private Runnable onDone;
+
+        Task(LaneExecutor laneExecutor, int priority, Runnable runnable) {
+            super(runnable, null);
+            this.laneExecutor = laneExecutor;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) return;
+            long start = SystemClock.elapsedRealtime();
+            laneExecutor.onStart(start - enqueuedAt);
+            super.run();
+            laneExecutor.onFinish(SystemClock.elapsedRealtime() - start);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (t instanceof Exception) {
+                GNLog.getInstance().logError(TAG, "Uncaught error in " + laneExecutor.lane.name() + " task", (Exception) t);
+            } else {
+                Log.e(TAG, "Uncaught error in " + laneExecutor.lane.name() + " task", t);
+            }
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) laneExecutor.onCancelled(this);
+            if (onDone != null) onDone.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    private static class LaneExecutor {
+        final Lane lane;
+        final ThreadPoolExecutor executor;
+        final String queuedCounterName;
+        final String activeCounterName;
+
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong totalWaitMs = new AtomicLong();
+        final AtomicLong totalRunMs = new AtomicLong();
+        final AtomicLong maxQueueDepth = new AtomicLong();
+        final AtomicLong maxWaitMs = new AtomicLong();
+
+        LaneExecutor(Lane lane) {
+            this.lane = lane;
+            this.queuedCounterName = "Lane-" + lane.name() + ".queued";
+            this.activeCounterName = "Lane-" + lane.name() + ".active";
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(lane.threads, lane.threads, 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(), r -> new Thread(() -> {
+                        Process.setThreadPriority(lane.threadPriority);
+                        r.run();
+                    }, "Lane-" + lane.name() + "-" + threadCount.incrementAndGet()));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        void enqueue(Task task) {
+            task.enqueuedAt = SystemClock.elapsedRealtime();
+            submitted.incrementAndGet();
+            executor.execute(task);
+            int depth = executor.getQueue().size();
+            updateMax(maxQueueDepth, depth);
+            if (Tracing.isEnabled()) Tracing.setCounter(queuedCounterName, depth);
+        }
+
+        void onStart(long waitMs) {
+            totalWaitMs.addAndGet(waitMs);
+            updateMax(maxWaitMs, waitMs);
+            traceCounters();
+        }
+
+        private void traceCounters() {
+            if (!Tracing.isEnabled()) return;
+            Tracing.setCounter(queuedCounterName, executor.getQueue().size());
+            Tracing.setCounter(activeCounterName, executor.getActiveCount());
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            do {
+                current = max.get();
+            } while (value > current && !max.compareAndSet(current, value));
+        }
+
+        void onFinish(long runMs) {
+            totalRunMs.addAndGet(runMs);
+            completed.incrementAndGet();
+            traceCounters();
+        }
+
+        void onCancelled(Task task) {
+            cancelled.incrementAndGet();
+            // drop it from the queue right away instead of when a thread picks it up
+            executor.remove(task);
+        }
+
+        JSONObject getMetrics() throws JSONException {
+            long completedCount = completed.get();
+            JSONObject metrics = new JSONObject();
+            metrics.put("threads", lane.threads);
+            metrics.put("active", executor.getActiveCount());
+            metrics.put("queued", executor.getQueue().size());
+            metrics.put("maxQueued", maxQueueDepth.get());
+            metrics.put("submitted", submitted.get());
+            metrics.put("completed", completedCount);
+            metrics.put("cancelled", cancelled.get());
+            metrics.put("averageWaitMs", completedCount > 0 ? totalWaitMs.get() / completedCount : 0);
+            metrics.put("maxWaitMs", maxWaitMs.get());
+            metrics.put("averageRunMs", completedCount > 0 ? totalRunMs.get() / completedCount : 0);
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package co.median.android
+
+import android.graphics.Bitmap
+
+/**
+ * Small pool of mutable ARGB_8888 bitmaps reused for decoding and scaling upload images, so
+ * consecutive uploads do not allocate a new large bitmap each time.
+ */
+object BitmapPool {
+    private const val MAX_POOL_BYTES = 16 * 1024 * 1024
+    private val pool = ArrayList<Bitmap>()
+    private var pooledBytes = 0L
+
+    /**
+     * Returns a pooled bitmap large enough for width x height, reconfigured to that size, or null
+     * if there is none.
+     */
+    @JvmStatic
+    @Synchronized
+    fun get(width: Int, height: Int): Bitmap? {
+        val bitmap = take(width, height) ?: return null
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888)
+        bitmap.eraseColor(0)
+        return bitmap
+    }
+
+    /**
+     * Like get, but for BitmapFactory.Options.inBitmap, which only needs a large enough
+     * allocation and sets the size itself.
+     */
+    @JvmStatic
+    @Synchronized
+    fun getForDecode(width: Int, height: Int): Bitmap? = take(width, height)
+
+    // smallest pooled bitmap that can hold width x height ARGB_8888 pixels
+    private fun take(width: Int, height: Int): Bitmap? {
+        val needed = width.toLong() * height * 4
+        val bitmap = pool.filter { it.allocationByteCount >= needed }
+            .minByOrNull { it.allocationByteCount } ?: return null
+        pool.remove(bitmap)
+        pooledBytes -= bitmap.allocationByteCount
+        return bitmap
+    }
+
+    @JvmStatic
+    @Synchronized
+    fun put(bitmap: Bitmap?) {
+        if (bitmap == null || bitmap.isRecycled || !bitmap.isMutable) {
+            bitmap?.recycle()
+            return
+        }
+        if (bitmap.allocationByteCount > MAX_POOL_BYTES) {
+            bitmap.recycle()
+            return
+        }
+        pool.add(bitmap)
+        pooledBytes += bitmap.allocationByteCount
+        // drop the oldest bitmaps first
+        while (pooledBytes > MAX_POOL_BYTES && pool.isNotEmpty()) {
+            val evicted = pool.removeAt(0)
+            pooledBytes -= evicted.allocationByteCount
+            evicted.recycle()
+        }
+    }
+
+    /**
+     * Releases all pooled bitmaps.
+     * @return number of bytes released
+     */
+    @JvmStatic
+    @Synchronized
+    fun clear(): Long {
+        val released = pooledBytes
+        pool.forEach { it.recycle() }
+        pool.clear()
+        pooledBytes = 0
+        return released
+    }
+}
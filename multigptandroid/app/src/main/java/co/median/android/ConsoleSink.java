@@ -0,0 +1,270 @@
+package co.median.android;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.ConsoleMessage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Keeps WebView console output in a fixed-size ring buffer instead of writing every message to
+ * logcat. Entries are preallocated and reused, a message repeated back to back only bumps a
+ * counter, and each level is rate limited with a token bucket. The buffer can be read over the
+ * bridge and is written out if the app crashes. With enableWebConsoleLogs, errors are reported to
+ * GNLog as web console errors, and mirroring every level to logcat is controlled per build type.
+ */
+public class ConsoleSink {
+    private static final String TAG = ConsoleSink.class.getName();
+    private static final int BUFFER_SIZE = 200;
+    private static final String CRASH_DUMP_FILE = "console-crash.log";
+
+    private static final int LEVEL_DEBUG = 0;
+    private static final int LEVEL_LOG = 1;
+    private static final int LEVEL_WARN = 2;
+    private static final int LEVEL_ERROR = 3;
+    private static final String[] LEVEL_NAMES = {"debug", "log", "warn", "error"};
+    // messages per second and burst size for each level
+    private static final int[] RATE_PER_SECOND = {20, 50, 20, 20};
+    private static final int[] BURST = {50, 100, 50, 50};
+
+    private static ConsoleSink instance = null;
+
+    private final Entry[] entries = new Entry[BUFFER_SIZE];
+    private int next = 0;
+    private int count = 0;
+    private Entry last;
+
+    private final double[] tokens = new double[LEVEL_NAMES.length];
+    private final long[] lastRefill = new long[LEVEL_NAMES.length];
+    private final long[] suppressed = new long[LEVEL_NAMES.length];
+    private final long[] totalSuppressed = new long[LEVEL_NAMES.length];
+
+    private boolean consoleLogsEnabled = false;
+    private boolean mirrorToLogcat = false;
+    private File crashDumpFile;
+
+    private ConsoleSink() {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            entries[i] = new Entry();
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = BURST[i];
+        }
+    }
+
+    public static synchronized ConsoleSink getInstance() {
+        if (instance == null) {
+            instance = new ConsoleSink();
+        }
+        return instance;
+    }
+
+    /**
+     * Reports errors to GNLog if console logs are enabled in the app config, mirrors messages to
+     * logcat if also enabled for this build type, and dumps the buffer when the app crashes.
+     */
+    public synchronized void init(Context context, boolean consoleLogsEnabled) {
+        if (crashDumpFile != null) return;
+        this.consoleLogsEnabled = consoleLogsEnabled;
+        this.mirrorToLogcat = consoleLogsEnabled && BuildConfig.WEB_CONSOLE_TO_LOGCAT;
+        this.crashDumpFile = new File(context.getCacheDir(), CRASH_DUMP_FILE);
+
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            dumpToFile();
+            if (previous != null) previous.uncaughtException(thread, throwable);
+        });
+    }
+
+    public void onConsoleMessage(ConsoleMessage consoleMessage) {
+        int level = levelOf(consoleMessage.messageLevel());
+        String message = consoleMessage.message();
+        String source = consoleMessage.sourceId();
+        int line = consoleMessage.lineNumber();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (last != null && last.level == level && last.line == line
+                    && equals(last.message, message) && equals(last.source, source)) {
+                last.repeat++;
+                last.time = now;
+                return;
+            }
+            if (!takeToken(level)) {
+                suppressed[level]++;
+                totalSuppressed[level]++;
+                return;
+            }
+
+            Entry entry = entries[next];
+            entry.set(level, now, message, source, line, suppressed[level]);
+            suppressed[level] = 0;
+            next = (next + 1) % BUFFER_SIZE;
+            count = Math.min(count + 1, BUFFER_SIZE);
+            last = entry;
+        }
+
+        if (level == LEVEL_ERROR && consoleLogsEnabled) {
+            GNLog.getInstance().logError("[console.error]", message, null, GNLog.TYPE_WEB_CONSOLE);
+        } else if (mirrorToLogcat) {
+            mirror(level, message);
+        }
+    }
+
+    private boolean takeToken(int level) {
+        long now = SystemClock.uptimeMillis();
+        double refill = (now - lastRefill[level]) * RATE_PER_SECOND[level] / 1000.0;
+        tokens[level] = Math.min(BURST[level], tokens[level] + refill);
+        lastRefill[level] = now;
+        if (tokens[level] < 1) return false;
+        tokens[level]--;
+        return true;
+    }
+
+    private static void mirror(int level, String message) {
+        switch (level) {
+            case LEVEL_LOG:
+                Log.i("[console.log]", message);
+                break;
+            case LEVEL_DEBUG:
+                Log.d("[console.debug]", message);
+                break;
+            case LEVEL_WARN:
+                Log.w("[console.warn]", message);
+                break;
+        }
+    }
+
+    private static int levelOf(ConsoleMessage.MessageLevel messageLevel) {
+        if (messageLevel == null) return LEVEL_LOG;
+        switch (messageLevel) {
+            case ERROR:
+                return LEVEL_ERROR;
+            case WARNING:
+                return LEVEL_WARN;
+            case DEBUG:
+            case TIP:
+                return LEVEL_DEBUG;
+            default:
+                return LEVEL_LOG;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray list = new JSONArray();
+            int first = (next - count + BUFFER_SIZE) % BUFFER_SIZE;
+            for (int i = 0; i < count; i++) {
+                list.put(entries[(first + i) % BUFFER_SIZE].toJson());
+            }
+            json.put("messages", list);
+
+            JSONObject suppressedJson = new JSONObject();
+            for (int i = 0; i < LEVEL_NAMES.length; i++) {
+                suppressedJson.put(LEVEL_NAMES[i], totalSuppressed[i]);
+            }
+            json.put("suppressed", suppressedJson);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    /**
+     * Writes the buffer to logcat.
+     */
+    public synchronized void dumpToLogcat() {
+        int first = (next - count + BUFFER_SIZE) % BUFFER_SIZE;
+        for (int i = 0; i < count; i++) {
+            Log.i(TAG, entries[(first + i) % BUFFER_SIZE].format());
+        }
+    }
+
+    private synchronized void dumpToFile() {
+        if (crashDumpFile == null || count == 0) return;
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(crashDumpFile), StandardCharsets.UTF_8);
+            int first = (next - count + BUFFER_SIZE) % BUFFER_SIZE;
+            for (int i = 0; i < count; i++) {
+                writer.write(entries[(first + i) % BUFFER_SIZE].format());
+                writer.write('\n');
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing console dump", e);
+        } finally {
+            IOUtils.close(writer);
+        }
+    }
+
+    /**
+     * @return the console output saved when the app last crashed, or null
+     */
+    public File getCrashDumpFile() {
+        return crashDumpFile != null && crashDumpFile.exists() ? crashDumpFile : null;
+    }
+
+    private static class Entry {
+        int level;
+        long time;
+        String message;
+        String source;
+        int line;
+        int repeat;
+        // messages of this level dropped by the rate limit just before this one
+        long suppressedBefore;
+
+        void set(int level, long time, String message, String source, int line, long suppressedBefore) {
+            this.level = level;
+            this.time = time;
+            this.message = message;
+            this.source = source;
+            this.line = line;
+            this.repeat = 1;
+            this.suppressedBefore = suppressedBefore;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("level", LEVEL_NAMES[level]);
+            json.put("time", time);
+            json.put("message", message);
+            if (source != null && !source.isEmpty()) {
+                json.put("source", source);
+                json.put("line", line);
+            }
+            if (repeat > 1) json.put("repeat", repeat);
+            if (suppressedBefore > 0) json.put("suppressedBefore", suppressedBefore);
+            return json;
+        }
+
+        String format() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date(time)))
+                    .append(" [console.").append(LEVEL_NAMES[level]).append("] ").append(message);
+            if (source != null && !source.isEmpty()) builder.append(" (").append(source).append(':').append(line).append(')');
+            if (repeat > 1) builder.append(" x").append(repeat);
+            if (suppressedBefore > 0) builder.append(" (").append(suppressedBefore).append(" suppressed before)");
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,659 @@
+package co.median.android;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Native store of the chat app's conversation list and messages, so the page can render the
+ * last known state on a cold start before its own requests complete, then reconcile with the
+ * server. Changes are appended to a log of JSON lines; an index of conversation summaries and
+ * message offsets is saved shortly after, and the log tail past the index is replayed on load.
+ * Every log starts with a header carrying a random id that the index records, so an index that
+ * does not belong to the log on disk, e.g. after a crash during compaction, is ignored.
+ * The log is compacted when mostly garbage, dropping the least recently updated conversations
+ * beyond the size cap. Operations run in order on the DISK lane and answer through callbacks.
+ */
+public class ConversationCache {
+    private static final String TAG = ConversationCache.class.getName();
+    private static final String DIR_NAME = "conversations";
+    private static final String LOG_FILE = "log.jsonl";
+    private static final String INDEX_FILE = "index.json";
+    private static final long SAVE_INDEX_DELAY_MS = 2000;
+    // compaction only pays off once the log has some size
+    private static final long MIN_COMPACT_BYTES = 256 * 1024;
+
+    // log record types
+    private static final String TYPE_HEADER = "h";
+    private static final String TYPE_CONVERSATION = "c";
+    private static final String TYPE_MESSAGE = "m";
+    private static final String TYPE_RESET = "r";
+    private static final String TYPE_DELETE = "d";
+
+    public interface Callback {
+        void onResult(JSONObject result);
+    }
+
+    private static ConversationCache instance = null;
+
+    private final File dir;
+    private final File logFile;
+    private final File indexFile;
+    private final long maxBytes;
+
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    // bytes of the log referenced by the index, the rest is garbage
+    private long liveBytes = 0;
+    private long logLength = 0;
+    // id in the header of the log on disk, null until the log is first written
+    private String logId = null;
+    private boolean loaded = false;
+    private BackgroundExecutor.Task scheduledSave;
+
+    // operations run one at a time, in the order they were submitted
+    private final Deque<Runnable> queue = new ArrayDeque<>();
+    private boolean draining = false;
+
+    private ConversationCache(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME),
+                context.getResources().getInteger(R.integer.conversation_cache_max_kb) * 1024L);
+    }
+
+    // tests point it at a temporary directory
+    ConversationCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.logFile = new File(dir, LOG_FILE);
+        this.indexFile = new File(dir, INDEX_FILE);
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized ConversationCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConversationCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the index and replays the log written after it. Called from a startup task so that
+     * the page's first request does not pay for it.
+     */
+    public void preload() {
+        submit(() -> {});
+    }
+
+    /**
+     * Conversation summaries, most recently updated first.
+     */
+    public void list(int limit, Callback callback) {
+        submit(() -> {
+            List<Conversation> sorted = new ArrayList<>(conversations.values());
+            Collections.sort(sorted, (a, b) -> Long.compare(b.updatedAt, a.updatedAt));
+            JSONArray list = new JSONArray();
+            for (Conversation conversation : sorted) {
+                if (list.length() >= limit) break;
+                list.put(conversation.toSummaryJson());
+            }
+            callback.onResult(result("conversations", list));
+        });
+    }
+
+    /**
+     * The conversation's summary and its last limit messages, oldest first.
+     */
+    public void get(String id, int limit, Callback callback) {
+        submit(() -> {
+            Conversation conversation = conversations.get(id);
+            if (conversation == null) {
+                callback.onResult(error("Unknown conversation"));
+                return;
+            }
+            JSONArray messages = new JSONArray();
+            int first = Math.max(0, conversation.messages.size() - limit);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(logFile, "r");
+                for (int i = first; i < conversation.messages.size(); i++) {
+                    JSONObject record = readRecord(raf, conversation.messages.get(i));
+                    if (record != null) messages.put(record.opt(TYPE_MESSAGE));
+                }
+            } catch (IOException e) {
+                GNLog.getInstance().logError(TAG, "Error reading conversation " + id, e);
+                callback.onResult(error(e.getMessage()));
+                return;
+            } finally {
+                IOUtils.close(raf);
+            }
+
+            JSONObject result = conversation.toSummaryJson();
+            try {
+                result.put("messages", messages);
+                result.put("total", conversation.messages.size());
+            } catch (JSONException e) {
+                GNLog.getInstance().logError(TAG, e.getMessage(), e);
+            }
+            callback.onResult(result);
+        });
+    }
+
+    /**
+     * Creates or updates a conversation's summary. Its updatedAt field orders the list, and
+     * defaults to now.
+     */
+    public void putConversation(String id, JSONObject summary, Callback callback) {
+        submit(() -> {
+            JSONObject record = record(TYPE_CONVERSATION, id);
+            put(record, TYPE_CONVERSATION, summary != null ? summary : new JSONObject());
+            write(Collections.singletonList(record), callback);
+        });
+    }
+
+    /**
+     * Appends messages to a conversation, creating it if needed.
+     */
+    public void appendMessages(String id, JSONArray messages, Callback callback) {
+        submit(() -> write(messageRecords(id, messages), callback));
+    }
+
+    /**
+     * Replaces a conversation's messages, e.g. with the server's copy after reconciling.
+     */
+    public void replaceMessages(String id, JSONArray messages, Callback callback) {
+        submit(() -> {
+            List<JSONObject> records = new ArrayList<>();
+            records.add(record(TYPE_RESET, id));
+            records.addAll(messageRecords(id, messages));
+            write(records, callback);
+        });
+    }
+
+    public void delete(String id, Callback callback) {
+        submit(() -> write(Collections.singletonList(record(TYPE_DELETE, id)), callback));
+    }
+
+    /**
+     * Deletes every conversation from memory and disk, e.g. when the user logs out.
+     */
+    public void clear(Callback callback) {
+        submit(() -> {
+            conversations.clear();
+            liveBytes = 0;
+            logLength = 0;
+            logId = null;
+            if (scheduledSave != null) scheduledSave.cancel(false);
+            // the log goes first, an index left without its log is discarded on load
+            boolean deleted = (!logFile.exists() || logFile.delete()) && (!indexFile.exists() || indexFile.delete());
+            if (!deleted) GNLog.getInstance().logError(TAG, "Could not delete conversation cache");
+            if (callback != null) callback.onResult(deleted ? result("success", true) : error("Could not delete"));
+        });
+    }
+
+    private void submit(Runnable operation) {
+        synchronized (queue) {
+            queue.add(operation);
+            if (draining) return;
+            draining = true;
+        }
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_HIGH, this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable operation;
+            synchronized (queue) {
+                operation = queue.poll();
+                if (operation == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            synchronized (this) {
+                try {
+                    load();
+                    operation.run();
+                } catch (Exception e) {
+                    GNLog.getInstance().logError(TAG, "Error in conversation cache operation", e);
+                }
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        long start = SystemClock.elapsedRealtime();
+        long indexedLength = 0;
+        String indexedLogId = null;
+        if (indexFile.exists()) {
+            try {
+                JSONObject index = new JSONObject(new String(readFile(indexFile), StandardCharsets.UTF_8));
+                indexedLength = index.optLong("logLength");
+                indexedLogId = index.optString("logId", null);
+                JSONObject list = index.optJSONObject("conversations");
+                if (list != null) {
+                    Iterator<String> ids = list.keys();
+                    while (ids.hasNext()) {
+                        String id = ids.next();
+                        Conversation conversation = Conversation.fromJson(id, list.optJSONObject(id));
+                        if (conversation != null) conversations.put(id, conversation);
+                    }
+                }
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error reading conversation index", e);
+                conversations.clear();
+                indexedLength = 0;
+            }
+        }
+
+        long length = logFile.length();
+        logId = readLogId();
+        if (indexedLength > length || indexedLogId == null || !indexedLogId.equals(logId)) {
+            // the log was lost or replaced behind the index's back, rebuild from the log alone
+            conversations.clear();
+            indexedLength = 0;
+        }
+        logLength = indexedLength;
+        if (length > indexedLength) replay(indexedLength, length);
+        if (logLength == 0) logId = null;
+
+        liveBytes = 0;
+        for (Conversation conversation : conversations.values()) {
+            liveBytes += conversation.liveBytes();
+        }
+        // a log without a header can never be matched by an index, give it one
+        if (logLength > 0 && logId == null) compact();
+        Log.d(TAG, "load: " + conversations.size() + " conversations in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    // applies the records written after the index was saved, dropping a partly written last line
+    private void replay(long from, long to) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(logFile, "rw");
+            byte[] tail = new byte[(int) (to - from)];
+            raf.seek(from);
+            raf.readFully(tail);
+            int lineStart = 0;
+            for (int i = 0; i < tail.length; i++) {
+                if (tail[i] != '\n') continue;
+                long offset = from + lineStart;
+                int length = i - lineStart + 1;
+                try {
+                    apply(new JSONObject(new String(tail, lineStart, length, StandardCharsets.UTF_8)), offset, length);
+                } catch (JSONException e) {
+                    Log.w(TAG, "replay: skipping bad record at " + offset);
+                }
+                lineStart = i + 1;
+            }
+            logLength = from + lineStart;
+            if (logLength < to) raf.setLength(logLength);
+            scheduleSaveIndex();
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error replaying conversation log", e);
+        } finally {
+            IOUtils.close(raf);
+        }
+    }
+
+    private void write(List<JSONObject> records, Callback callback) {
+        OutputStream os = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            boolean newLog = logLength == 0;
+            os = new FileOutputStream(logFile, !newLog);
+            // one buffer per operation, so a crash loses whole operations rather than leaving gaps
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            String newLogId = newLog ? UUID.randomUUID().toString() : logId;
+            if (newLog) buffer.write(header(newLogId));
+            long[] offsets = new long[records.size()];
+            int[] lengths = new int[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                byte[] line = (records.get(i).toString() + "\n").getBytes(StandardCharsets.UTF_8);
+                offsets[i] = logLength + buffer.size();
+                lengths[i] = line.length;
+                buffer.write(line);
+            }
+            os.write(buffer.toByteArray());
+            os.flush();
+            logLength += buffer.size();
+            logId = newLogId;
+
+            for (int i = 0; i < records.size(); i++) {
+                apply(records.get(i), offsets[i], lengths[i]);
+            }
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error writing conversation log", e);
+            if (callback != null) callback.onResult(error(e.getMessage()));
+            return;
+        } finally {
+            IOUtils.close(os);
+        }
+
+        // a single conversation over the cap is kept whole
+        boolean overCap = liveBytes > maxBytes && conversations.size() > 1;
+        if (logLength > MIN_COMPACT_BYTES && (liveBytes * 2 < logLength || overCap)) {
+            compact();
+        }
+        scheduleSaveIndex();
+        if (callback != null) callback.onResult(result("success", true));
+    }
+
+    private void apply(JSONObject record, long offset, int length) {
+        String type = record.optString("t");
+        String id = record.optString("id");
+        Conversation conversation = conversations.get(id);
+        switch (type) {
+            case TYPE_CONVERSATION: {
+                if (conversation == null) {
+                    conversation = new Conversation(id);
+                    conversations.put(id, conversation);
+                } else {
+                    liveBytes -= conversation.summaryLength;
+                }
+                conversation.summary = record.optJSONObject(TYPE_CONVERSATION);
+                conversation.summaryLength = length;
+                conversation.updatedAt = updatedAt(conversation.summary, record);
+                liveBytes += length;
+                break;
+            }
+            case TYPE_MESSAGE:
+                if (conversation == null) {
+                    conversation = new Conversation(id);
+                    conversations.put(id, conversation);
+                }
+                conversation.messages.add(new long[]{offset, length});
+                conversation.updatedAt = Math.max(conversation.updatedAt, record.optLong("at"));
+                liveBytes += length;
+                break;
+            case TYPE_RESET:
+                if (conversation != null) {
+                    for (long[] message : conversation.messages) liveBytes -= message[1];
+                    conversation.messages.clear();
+                }
+                break;
+            case TYPE_DELETE:
+                if (conversation != null) {
+                    liveBytes -= conversation.liveBytes();
+                    conversations.remove(id);
+                }
+                break;
+        }
+    }
+
+    // rewrites live records to a new log, most recently updated conversations first within the cap
+    private void compact() {
+        long start = SystemClock.elapsedRealtime();
+        File tempFile = new File(dir, LOG_FILE + ".tmp");
+        List<Conversation> sorted = new ArrayList<>(conversations.values());
+        Collections.sort(sorted, (a, b) -> Long.compare(b.updatedAt, a.updatedAt));
+
+        Map<String, Conversation> kept = new HashMap<>();
+        String newLogId = UUID.randomUUID().toString();
+        byte[] header = header(newLogId);
+        long written = header.length;
+        RandomAccessFile raf = null;
+        FileOutputStream os = null;
+        try {
+            raf = new RandomAccessFile(logFile, "r");
+            os = new FileOutputStream(tempFile);
+            os.write(header);
+            for (Conversation conversation : sorted) {
+                if (written - header.length + conversation.liveBytes() > maxBytes && !kept.isEmpty()) break;
+                Conversation copy = new Conversation(conversation.id);
+                copy.summary = conversation.summary;
+                copy.updatedAt = conversation.updatedAt;
+                if (conversation.summary != null) {
+                    JSONObject record = record(TYPE_CONVERSATION, conversation.id);
+                    put(record, TYPE_CONVERSATION, conversation.summary);
+                    put(record, "at", conversation.updatedAt);
+                    byte[] line = (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+                    os.write(line);
+                    copy.summaryLength = line.length;
+                    written += line.length;
+                }
+                byte[] buffer = new byte[0];
+                for (long[] message : conversation.messages) {
+                    if (buffer.length < message[1]) buffer = new byte[(int) message[1]];
+                    raf.seek(message[0]);
+                    raf.readFully(buffer, 0, (int) message[1]);
+                    os.write(buffer, 0, (int) message[1]);
+                    copy.messages.add(new long[]{written, message[1]});
+                    written += message[1];
+                }
+                kept.put(copy.id, copy);
+            }
+            os.flush();
+            os.getFD().sync();
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error compacting conversation log", e);
+            tempFile.delete();
+            return;
+        } finally {
+            IOUtils.close(raf);
+            IOUtils.close(os);
+        }
+
+        if (!tempFile.renameTo(logFile)) {
+            Log.w(TAG, "compact: could not replace " + logFile);
+            tempFile.delete();
+            return;
+        }
+        Log.d(TAG, "compact: " + logLength + " -> " + written + " bytes, kept " + kept.size() + " of "
+                + conversations.size() + " conversations in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        conversations.clear();
+        conversations.putAll(kept);
+        logLength = written;
+        liveBytes = written - header.length;
+        logId = newLogId;
+        // the old index points into the old log and no longer matches its id, replace it right away
+        saveIndexLocked();
+    }
+
+    private synchronized void scheduleSaveIndex() {
+        if (scheduledSave != null && !scheduledSave.isDone()) return;
+        scheduledSave = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                BackgroundExecutor.PRIORITY_LOW, SAVE_INDEX_DELAY_MS, () -> submit(this::saveIndexLocked));
+    }
+
+    private void saveIndexLocked() {
+        File tempFile = new File(dir, INDEX_FILE + ".tmp");
+        FileOutputStream os = null;
+        try {
+            JSONObject list = new JSONObject();
+            for (Conversation conversation : conversations.values()) {
+                list.put(conversation.id, conversation.toJson());
+            }
+            JSONObject index = new JSONObject();
+            index.put("logLength", logLength);
+            if (logId != null) index.put("logId", logId);
+            index.put("conversations", list);
+
+            os = new FileOutputStream(tempFile);
+            os.write(index.toString().getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            os.getFD().sync();
+            IOUtils.close(os);
+            os = null;
+            if (!tempFile.renameTo(indexFile)) {
+                Log.w(TAG, "saveIndex: could not replace " + indexFile);
+            }
+        } catch (IOException | JSONException e) {
+            GNLog.getInstance().logError(TAG, "Error saving conversation index", e);
+        } finally {
+            IOUtils.close(os);
+        }
+    }
+
+    private static byte[] header(String id) {
+        JSONObject record = record(TYPE_HEADER, id);
+        return (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // the id in the log's header line, null if the log is empty or has no header
+    private String readLogId() {
+        if (!logFile.exists()) return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(logFile, "r");
+            String line = raf.readLine();
+            if (line == null) return null;
+            JSONObject record = new JSONObject(line);
+            return TYPE_HEADER.equals(record.optString("t")) ? record.optString("id", null) : null;
+        } catch (IOException | JSONException e) {
+            return null;
+        } finally {
+            IOUtils.close(raf);
+        }
+    }
+
+    private List<JSONObject> messageRecords(String id, JSONArray messages) {
+        List<JSONObject> records = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; messages != null && i < messages.length(); i++) {
+            JSONObject record = record(TYPE_MESSAGE, id);
+            put(record, TYPE_MESSAGE, messages.opt(i));
+            put(record, "at", now);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static JSONObject readRecord(RandomAccessFile raf, long[] location) throws IOException {
+        byte[] bytes = new byte[(int) location[1]];
+        raf.seek(location[0]);
+        raf.readFully(bytes);
+        try {
+            return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            Log.w(TAG, "readRecord: bad record at " + location[0]);
+            return null;
+        }
+    }
+
+    private static long updatedAt(JSONObject summary, JSONObject record) {
+        long updatedAt = summary != null ? summary.optLong("updatedAt", 0) : 0;
+        if (updatedAt > 0) return updatedAt;
+        return record.optLong("at", System.currentTimeMillis());
+    }
+
+    private static JSONObject record(String type, String id) {
+        JSONObject record = new JSONObject();
+        put(record, "t", type);
+        if (id != null) put(record, "id", id);
+        put(record, "at", System.currentTimeMillis());
+        return record;
+    }
+
+    private static void put(JSONObject json, String name, Object value) {
+        try {
+            json.put(name, value);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+    }
+
+    private static JSONObject result(String name, Object value) {
+        JSONObject json = new JSONObject();
+        put(json, name, value);
+        return json;
+    }
+
+    private static JSONObject error(String message) {
+        return result("error", message);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            IOUtils.copy(is, baos);
+            return baos.toByteArray();
+        } finally {
+            IOUtils.close(is);
+        }
+    }
+
+    private static class Conversation {
+        final String id;
+        JSONObject summary;
+        int summaryLength;
+        long updatedAt;
+        // offset and length of each message record in the log
+        final List<long[]> messages = new ArrayList<>();
+
+        Conversation(String id) {
+            this.id = id;
+        }
+
+        long liveBytes() {
+            long bytes = summaryLength;
+            for (long[] message : messages) bytes += message[1];
+            return bytes;
+        }
+
+        JSONObject toSummaryJson() {
+            JSONObject json = new JSONObject();
+            put(json, "id", id);
+            put(json, "conversation", summary != null ? summary : new JSONObject());
+            put(json, "updatedAt", updatedAt);
+            put(json, "messageCount", messages.size());
+            return json;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            if (summary != null) {
+                json.put("summary", summary);
+                json.put("summaryLength", summaryLength);
+            }
+            json.put("updatedAt", updatedAt);
+            JSONArray list = new JSONArray();
+            for (long[] message : messages) {
+                list.put(message[0]);
+                list.put(message[1]);
+            }
+            json.put("messages", list);
+            return json;
+        }
+
+        static Conversation fromJson(String id, JSONObject json) {
+            if (json == null) return null;
+            Conversation conversation = new Conversation(id);
+            conversation.summary = json.optJSONObject("summary");
+            conversation.summaryLength = json.optInt("summaryLength");
+            conversation.updatedAt = json.optLong("updatedAt");
+            JSONArray list = json.optJSONArray("messages");
+            for (int i = 0; list != null && i + 1 < list.length(); i += 2) {
+                conversation.messages.add(new long[]{list.optLong(i), list.optLong(i + 1)});
+            }
+            return conversation;
+        }
+    }
+}
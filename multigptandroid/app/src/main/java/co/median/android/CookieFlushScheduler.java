@@ -0,0 +1,141 @@
+package co.median.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Coalesces CookieManager.flush() requests and runs them on the disk lane of BackgroundExecutor.
+ * Requests made within the coalesce window of a pending flush are merged into that flush.
+ * Requests made while a flush is running schedule another one once it finishes, since cookies
+ * set during the flush may not have been written. The window is set from
+ * cookie_flush_coalesce_window_ms at startup.
+ */
+public class CookieFlushScheduler {
+    private static final String TAG = CookieFlushScheduler.class.getName();
+    public static final long DEFAULT_COALESCE_WINDOW_MS = 2000;
+
+    private static CookieFlushScheduler instance = null;
+
+    private long coalesceWindowMs = DEFAULT_COALESCE_WINDOW_MS;
+    // scheduled or running, cleared once the flush has finished
+    private BackgroundExecutor.Task pendingFlush;
+    private boolean flushing = false;
+    // requested while flushing, run again afterwards, right away if flushNow asked for it
+    private boolean flushAgain = false;
+    private boolean flushAgainNow = false;
+
+    // monitoring
+    private long requestCount = 0;
+    private long flushCount = 0;
+    private long totalFlushTimeMs = 0;
+    private long lastFlushTimeMs = 0;
+    private long maxFlushTimeMs = 0;
+
+    private CookieFlushScheduler() {
+    }
+
+    public static synchronized CookieFlushScheduler getInstance() {
+        if (instance == null) {
+            instance = new CookieFlushScheduler();
+        }
+        return instance;
+    }
+
+    public synchronized void setCoalesceWindowMs(long coalesceWindowMs) {
+        this.coalesceWindowMs = Math.max(0, coalesceWindowMs);
+    }
+
+    /**
+     * Schedules a flush after the coalesce window. Does nothing if a flush is already pending.
+     */
+    public synchronized void requestFlush() {
+        requestCount++;
+        if (flushing) {
+            flushAgain = true;
+            return;
+        }
+        if (pendingFlush != null && !pendingFlush.isDone()) return;
+        pendingFlush = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                BackgroundExecutor.PRIORITY_LOW, coalesceWindowMs, this::flush);
+    }
+
+    /**
+     * Flushes as soon as possible in the background, replacing any pending flush.
+     * Use when the app is going to the background or cookies were explicitly changed.
+     */
+    public synchronized void flushNow() {
+        requestCount++;
+        if (flushing) {
+            flushAgain = true;
+            flushAgainNow = true;
+            return;
+        }
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+        }
+        pendingFlush = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK,
+                BackgroundExecutor.PRIORITY_HIGH, this::flush);
+    }
+
+    private void flush() {
+        synchronized (this) {
+            flushing = true;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        boolean flushed = false;
+        try {
+            CookieManager.getInstance().flush();
+            flushed = true;
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error flushing cookies", e);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        synchronized (this) {
+            if (flushed) {
+                flushCount++;
+                totalFlushTimeMs += elapsed;
+                lastFlushTimeMs = elapsed;
+                maxFlushTimeMs = Math.max(maxFlushTimeMs, elapsed);
+            }
+            flushing = false;
+            pendingFlush = null;
+            if (flushAgain) {
+                boolean now = flushAgainNow;
+                flushAgain = false;
+                flushAgainNow = false;
+                pendingFlush = now
+                        ? BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK,
+                                BackgroundExecutor.PRIORITY_HIGH, this::flush)
+                        : BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                                BackgroundExecutor.PRIORITY_LOW, coalesceWindowMs, this::flush);
+            }
+        }
+        if (flushed) Log.d(TAG, "flush: took " + elapsed + "ms");
+    }
+
+    /**
+     * Flush counts and latency, reported by the performance bridge.
+     */
+    public synchronized JSONObject getMetrics() {
+        JSONObject metrics = new JSONObject();
+        try {
+            metrics.put("requested", requestCount);
+            metrics.put("flushed", flushCount);
+            metrics.put("lastFlushMs", lastFlushTimeMs);
+            metrics.put("maxFlushMs", maxFlushTimeMs);
+            metrics.put("averageFlushMs", flushCount > 0 ? totalFlushTimeMs / flushCount : 0);
+            metrics.put("coalesceWindowMs", coalesceWindowMs);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return metrics;
+    }
+}
@@ -30,6 +30,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import co.median.median_core.AppConfig;
@@ -112,10 +114,19 @@ public class DownloadService extends Service {
         void onFailed(String error);
     }
 
+    private static final String TRACE_DOWNLOAD = "DownloadService.download";
+    private static final String TRACE_DOWNLOADS_IN_FLIGHT = "DownloadService.inFlight";
+    private static final AtomicInteger downloadsInFlight = new AtomicInteger();
+
     private class DownloadTask {
         private final int id;
         private final String url;
         private boolean isDownloading;
+        private BackgroundExecutor.Task task;
+        private int traceCookie;
+        private final AtomicBoolean traceOpen = new AtomicBoolean();
+        // set by whichever comes first, the task body or a cancel before it ran
+        private final AtomicBoolean started = new AtomicBoolean();
         private HttpURLConnection connection;
         private InputStream inputStream;
         private FileOutputStream outputStream;
@@ -155,9 +166,17 @@ public class DownloadService extends Service {
         public void startDownload() {
             Log.d(TAG, "startDownload: Starting download");
             isDownloading = true;
-
-            new Thread(() -> {
-                Log.d(TAG, "startDownload: Thread started");
+            // from the request to the end of the transfer, including time waiting for a free slot
+            traceCookie = Tracing.beginAsyncSection(TRACE_DOWNLOAD);
+            traceOpen.set(true);
+            Tracing.setCounter(TRACE_DOWNLOADS_IN_FLIGHT, downloadsInFlight.incrementAndGet());
+
+            // downloads share a small lane so they cannot starve page loads
+            task = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.BULK_TRANSFER, () -> {
+                // cancelled before it started, cancelDownload ended the trace
+                if (!started.compareAndSet(false, true)) return;
+                Log.d(TAG, "startDownload: Task started");
+                Tracing.beginSection("DownloadService.transfer");
                 try {
                     Uri uri = Uri.parse(url);
                     switch (Objects.requireNonNull(uri.getScheme())) {
@@ -203,8 +222,16 @@ public class DownloadService extends Service {
                     outputFile = null;
                     isDownloadSuccessful = false;
                     closeConnections();
+                    Tracing.endSection();
+                    finishTrace();
                 }
-            }).start();
+            });
+        }
+
+        private void finishTrace() {
+            if (!traceOpen.compareAndSet(true, false)) return;
+            Tracing.endAsyncSection(TRACE_DOWNLOAD, traceCookie);
+            Tracing.setCounter(TRACE_DOWNLOADS_IN_FLIGHT, downloadsInFlight.decrementAndGet());
         }
 
         private void downloadAsHttpUri() throws IOException {
@@ -381,6 +408,11 @@ public class DownloadService extends Service {
 
         public void cancelDownload() {
             isDownloading = false;
+            // drops the download if it is still waiting for a free slot
+            if (task != null) task.cancel(false);
+            // a download cancelled before its task started never runs the finally block that ends
+            // its trace. A running task ends it itself.
+            if (task != null && started.compareAndSet(false, true)) finishTrace();
             Toast.makeText(DownloadService.this, getString(R.string.download_canceled) + " " + filename, Toast.LENGTH_SHORT).show();
         }
     }
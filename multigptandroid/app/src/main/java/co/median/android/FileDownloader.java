@@ -30,6 +30,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import co.median.median_core.AppConfig;
@@ -55,6 +57,8 @@ public class FileDownloader implements DownloadListener {
     private static Uri lastViewedUriToDelete = null;
     private DownloadService downloadService;
     private boolean isBound = false;
+    private boolean isBinding = false;
+    private final List<Runnable> pendingServiceActions = new ArrayList<>();
     private PreDownloadInfo preDownloadInfo;
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -64,12 +68,19 @@ public class FileDownloader implements DownloadListener {
             downloadService = binder.getService();
             downloadService.setFileDownloader(FileDownloader.this);
             isBound = true;
+            isBinding = false;
+
+            for (Runnable action : pendingServiceActions) {
+                action.run();
+            }
+            pendingServiceActions.clear();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            // the binding stays until unbindService, onServiceConnected runs again once the
+            // service is restarted
             downloadService = null;
-            isBound = false;
         }
     };
 
@@ -93,9 +104,6 @@ public class FileDownloader implements DownloadListener {
             this.defaultDownloadLocation = DownloadLocation.PRIVATE_INTERNAL;
         }
 
-        Intent intent = new Intent(context, DownloadService.class);
-        context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
-
         // initialize request permission launcher
         requestPermissionLauncher = context.registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(), isGranted -> {
 
@@ -108,7 +116,7 @@ public class FileDownloader implements DownloadListener {
                 return;
             }
 
-            if (preDownloadInfo != null && isBound) {
+            if (preDownloadInfo != null) {
                 if (preDownloadInfo.isBlob) {
                     context.getFileWriterSharer().downloadBlobUrl(
                             preDownloadInfo.url,
@@ -117,7 +125,8 @@ public class FileDownloader implements DownloadListener {
                             preDownloadInfo.callback
                     );
                 } else {
-                    startDownload(preDownloadInfo, preDownloadInfo.callback);
+                    PreDownloadInfo info = preDownloadInfo;
+                    withDownloadService(() -> startDownload(info, info.callback));
                 }
                 preDownloadInfo = null;
             }
@@ -210,16 +219,30 @@ public class FileDownloader implements DownloadListener {
     }
 
     private void verifyAndStartDownload(String downloadUrl, String filename, String mimetype, boolean shouldSaveToGallery, boolean open, String callback) {
-        if (!isBound) {
-            GNLog.getInstance().logError(TAG, "verifyAndStartDownload: Unable to start download.", new Exception("DownloadService not bound."));
-            return;
-        }
-
         PreDownloadInfo preDownload = new PreDownloadInfo(downloadUrl, filename, mimetype, shouldSaveToGallery, open, false, callback);
         if (shouldRequestWritePermission(preDownload)) return;
 
         // no permission required, proceed to download
-        startDownload(preDownload, callback);
+        withDownloadService(() -> startDownload(preDownload, callback));
+    }
+
+    // DownloadService is only bound once the first download starts
+    private void withDownloadService(Runnable action) {
+        if (downloadService != null) {
+            action.run();
+            return;
+        }
+
+        // waits for the first connection, or for a reconnection if the service process died
+        pendingServiceActions.add(action);
+        if (isBound || isBinding) return;
+
+        Intent intent = new Intent(context, DownloadService.class);
+        isBinding = context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+        if (!isBinding) {
+            GNLog.getInstance().logError(TAG, "withDownloadService: Unable to start download.", new Exception("DownloadService could not be bound."));
+            pendingServiceActions.clear();
+        }
     }
 
     private void startDownload(PreDownloadInfo preDownload, String callback) {
@@ -259,10 +282,12 @@ public class FileDownloader implements DownloadListener {
     }
 
     public void unbindDownloadService() {
-        if (isBound) {
+        if (isBound || isBinding) {
             context.unbindService(serviceConnection);
             isBound = false;
+            isBinding = false;
         }
+        pendingServiceActions.clear();
     }
 
     public void handleDownloadUri(Uri uri, String mimeType, boolean shouldSaveToGallery, boolean open, String filename) {
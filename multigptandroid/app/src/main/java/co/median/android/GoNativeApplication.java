@@ -1,5 +1,6 @@
 package co.median.android;
 
+import android.app.ActivityManager;
 import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
 import android.os.Build;
@@ -12,6 +13,8 @@ import androidx.appcompat.app.AppCompatDelegate;
 import androidx.multidex.MultiDexApplication;
 import androidx.preference.PreferenceManager;
 
+import org.json.JSONObject;
+
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -35,14 +38,37 @@ public class GoNativeApplication extends MultiDexApplication {
     private final String CUSTOM_JS_FILE = "customJS.js";
     private final String ANDROID_CUSTOM_CSS_FILE = "androidCustomCSS.css";
     private final String ANDROID_CUSTOM_JS_FILE = "androidCustomJS.js";
+    private final String JS_BRIDGE_LIBRARY_FILE = "GoNativeJSBridgeLibrary.js";
+
+    private static final String TASK_THEME = "theme";
+    private static final String TASK_BRIDGE = "bridge";
+    private static final String TASK_APP_CONFIG = "appConfig";
+    private static final String TASK_LAUNCH_ACCELERATOR = "launchAccelerator";
+    private static final String TASK_LOGIN = "loginManager";
+    private static final String TASK_WEBVIEW_GLOBALS = "webviewGlobals";
+    private static final String TASK_WINDOWS = "windowManager";
+    private static final String TASK_REGISTRATION = "registrationManager";
+    private static final String TASK_CUSTOM_CSS = "customCss";
+    private static final String TASK_CUSTOM_JS = "customJs";
+    private static final String TASK_FIRST_LAUNCH = "firstLaunch";
+    private static final String TASK_PRUNE_WEBVIEW_STATES = "pruneWebviewStates";
+    private static final String TASK_TELEMETRY_OUTBOX = "telemetryOutbox";
+    private static final String TASK_MAIN_THREAD_MONITOR = "mainThreadMonitor";
+    private static final String TASK_NETWORK_ACCOUNTING = "networkAccounting";
+    private static final String TASK_CONSOLE_SINK = "consoleSink";
+    private static final String TASK_OFFLINE_ARCHIVE = "offlineArchive";
+    private static final String TASK_STREAM_RELAY = "streamRelay";
+    private static final String TASK_CONVERSATION_CACHE = "conversationCache";
+    private static final String TASK_KEY_VALUE_STORE = "keyValueStore";
 
     private LoginManager loginManager;
-    private RegistrationManager registrationManager;
+    private volatile RegistrationManager registrationManager;
     private WebViewPool webViewPool;
     private Message webviewMessage;
     private GoNativeWindowManager goNativeWindowManager;
     private List<BridgeModule> plugins;
-    private boolean isFirstLaunch = false;
+    private volatile boolean isFirstLaunch = false;
+    private StartupTaskGraph startupTasks;
 
     private final static String TAG = GoNativeApplication.class.getSimpleName();
     public final Bridge mBridge = new Bridge(this) {
@@ -58,51 +84,133 @@ public class GoNativeApplication extends MultiDexApplication {
 
     private boolean appBackgrounded = false;
 
-    private String customCss;
-    private String customJs;
+    private volatile String customCss;
+    private volatile String customJs;
+    private volatile boolean customScriptsReleased = false;
+    private String jsBridgeScript;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-            // App theme setup for API 31 and above
-            setupAppTheme();
-        }
-
-        AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
-
-        mBridge.onApplicationCreate(this);
-
-        AppConfig appConfig = AppConfig.getInstance(this);
-        if (appConfig.configError != null) {
-            Toast.makeText(this, "Invalid appConfig json", Toast.LENGTH_LONG).show();
-            GNLog.getInstance().logError(TAG, "AppConfig error", appConfig.configError);
-        }
-
-        this.loginManager = new LoginManager(this);
-
-        if (appConfig.registrationEndpoints != null) {
-            this.registrationManager = new RegistrationManager(this);
-            registrationManager.processConfig(appConfig.registrationEndpoints);
-        }
-
-        // some global webview setup
-        WebViewSetup.setupWebviewGlobals(this);
-
-        webViewPool = new WebViewPool();
-
-        goNativeWindowManager = new GoNativeWindowManager();
+        // Only what the first activity frame needs runs on the main thread. Everything else is
+        // scheduled on background threads and awaited by the getters that expose its result.
+        startupTasks = new StartupTaskGraph()
+                // first so it also sees the rest of startup when enabled
+                .addMainTask(TASK_MAIN_THREAD_MONITOR, () -> MainThreadMonitor.getInstance().init(this))
+                // before the first WebView makes a request
+                .addMainTask(TASK_NETWORK_ACCOUNTING, () -> NetworkAccounting.getInstance().init(this))
+                .addMainTask(TASK_THEME, () -> {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                        // App theme setup for API 31 and above
+                        setupAppTheme();
+                    }
+
+                    AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
+                })
+                .addMainTask(TASK_BRIDGE, () -> mBridge.onApplicationCreate(this))
+                .addMainTask(TASK_APP_CONFIG, () -> {
+                    AppConfig appConfig = AppConfig.getInstance(this);
+                    if (appConfig.configError != null) {
+                        Toast.makeText(this, "Invalid appConfig json", Toast.LENGTH_LONG).show();
+                        GNLog.getInstance().logError(TAG, "AppConfig error", appConfig.configError);
+                    }
+                    CookieFlushScheduler.getInstance().setCoalesceWindowMs(
+                            getResources().getInteger(R.integer.cookie_flush_coalesce_window_ms));
+                }, TASK_BRIDGE)
+                // preconnect and prefetch the first page while the splash screen is showing
+                .addBackgroundTask(TASK_LAUNCH_ACCELERATOR, () -> LaunchAccelerator.getInstance().start(this), TASK_APP_CONFIG)
+                // LoginManager starts its own network check and notifies observers on the main thread
+                .addMainTask(TASK_LOGIN, () -> this.loginManager = new LoginManager(this), TASK_APP_CONFIG)
+                // WebView.setWebContentsDebuggingEnabled must be called on the main thread
+                .addMainTask(TASK_WEBVIEW_GLOBALS, () -> WebViewSetup.setupWebviewGlobals(this), TASK_APP_CONFIG)
+                .addMainTask(TASK_WINDOWS, () -> {
+                    webViewPool = new WebViewPool();
+                    goNativeWindowManager = new GoNativeWindowManager();
+                    goNativeWindowManager.setLiveBackgroundWindowBudget(getLiveBackgroundWindowBudget());
+                })
+                .addBackgroundTask(TASK_REGISTRATION, () -> {
+                    AppConfig appConfig = AppConfig.getInstance(this);
+                    if (appConfig.registrationEndpoints != null) {
+                        RegistrationManager manager = new RegistrationManager(this);
+                        manager.processConfig(appConfig.registrationEndpoints);
+                        this.registrationManager = manager;
+                    }
+                }, TASK_APP_CONFIG)
+                .addBackgroundTask(TASK_CONSOLE_SINK, () -> ConsoleSink.getInstance()
+                        .init(this, AppConfig.getInstance(this).enableWebConsoleLogs), TASK_APP_CONFIG)
+                // load custom CSS and JS files
+                .addBackgroundTask(TASK_CUSTOM_CSS, () -> loadCustomCssFiles(AppConfig.getInstance(this)), TASK_APP_CONFIG)
+                .addBackgroundTask(TASK_CUSTOM_JS, () -> loadCustomJSFiles(AppConfig.getInstance(this)), TASK_APP_CONFIG)
+                .addBackgroundTask(TASK_FIRST_LAUNCH, () -> {
+                    SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+                    if (!sharedPreferences.getBoolean("hasLaunched", false)) {
+                        isFirstLaunch = true;
+                        sharedPreferences.edit().putBoolean("hasLaunched", true).apply();
+                    }
+                })
+                .addBackgroundTask(TASK_PRUNE_WEBVIEW_STATES, () -> WebViewStateHistory.pruneStale(this))
+                // sends whatever a previous run could not deliver
+                .addBackgroundTask(TASK_TELEMETRY_OUTBOX, () -> TelemetryOutbox.getInstance(this).start())
+                .addBackgroundTask(TASK_OFFLINE_ARCHIVE, () -> OfflineArchive.getInstance(this).load())
+                .addBackgroundTask(TASK_STREAM_RELAY, () -> StreamRelay.getInstance(this).pruneOrphans())
+                // the page asks for the conversation list as soon as it loads
+                .addBackgroundTask(TASK_CONVERSATION_CACHE, () -> ConversationCache.getInstance(this).preload())
+                // before the first WebView is set up, so it starts with a snapshot
+                .addBackgroundTask(TASK_KEY_VALUE_STORE, () -> KeyValueStore.getInstance(this).load());
+        startupTasks.start();
+
+        registerReclaimables();
+    }
 
-        // load custom CSS and JS files
-        loadCustomCssFiles(appConfig);
-        loadCustomJSFiles(appConfig);
+    private void registerReclaimables() {
+        MemoryPressureManager memoryPressureManager = MemoryPressureManager.getInstance();
+        memoryPressureManager.register("jsBridgeScript", MemoryPressureManager.Tier.CHEAP, level -> {
+            synchronized (this) {
+                long bytes = jsBridgeScript != null ? jsBridgeScript.length() * 2L : 0;
+                jsBridgeScript = null;
+                return bytes;
+            }
+        });
+        memoryPressureManager.register("launchPrefetch", MemoryPressureManager.Tier.CHEAP,
+                level -> LaunchAccelerator.getInstance().releasePrefetchedHtml());
+        memoryPressureManager.register("speculativePrefetch", MemoryPressureManager.Tier.CHEAP,
+                level -> SpeculativePrefetcher.getInstance().release());
+        // icons are re-rendered by IconCache on next use
+        memoryPressureManager.register("iconCache", MemoryPressureManager.Tier.CHEAP,
+                level -> IconCache.getInstance().clear());
+        memoryPressureManager.register("bitmapPool", MemoryPressureManager.Tier.CHEAP,
+                level -> BitmapPool.clear());
+        memoryPressureManager.register("networkAccounting", MemoryPressureManager.Tier.CHEAP, level -> {
+            NetworkAccounting.getInstance().clear();
+            return 0;
+        });
+        // hibernated windows reload their saved state when shown again. onTrimMemory runs on the
+        // main thread, like the task that creates the window manager.
+        memoryPressureManager.register("backgroundWindows", MemoryPressureManager.Tier.EXPENSIVE, level -> {
+            if (goNativeWindowManager == null) return 0;
+            return goNativeWindowManager.hibernateBackgroundWindows() * MemoryPressureManager.WEBVIEW_BYTES_ESTIMATE;
+        });
+        // re-encoded from assets by the getters on next use
+        memoryPressureManager.register("customScripts", MemoryPressureManager.Tier.MODERATE, level -> {
+            startupTasks.await(TASK_CUSTOM_CSS);
+            startupTasks.await(TASK_CUSTOM_JS);
+            synchronized (this) {
+                long bytes = (customCss != null ? customCss.length() * 2L : 0) + (customJs != null ? customJs.length() * 2L : 0);
+                customCss = null;
+                customJs = null;
+                customScriptsReleased = true;
+                return bytes;
+            }
+        });
+    }
 
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        if (!sharedPreferences.getBoolean("hasLaunched", false)) {
-            isFirstLaunch = true;
-            sharedPreferences.edit().putBoolean("hasLaunched", true).apply();
-        }
+    // number of background windows that keep a live WebView, roughly one per 128MB of heap
+    private int getLiveBackgroundWindowBudget() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        int max = getResources().getInteger(R.integer.max_live_background_windows);
+        if (activityManager == null || activityManager.isLowRamDevice()) return 1;
+        return Math.max(1, Math.min(max, activityManager.getMemoryClass() / 128));
     }
 
     @RequiresApi(api = Build.VERSION_CODES.S)
@@ -123,6 +231,7 @@ public class GoNativeApplication extends MultiDexApplication {
     }
 
     public RegistrationManager getRegistrationManager() {
+        startupTasks.await(TASK_REGISTRATION);
         return registrationManager;
     }
 
@@ -152,7 +261,17 @@ public class GoNativeApplication extends MultiDexApplication {
         if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
             // App has gone into the background
             setAppBackgrounded(true);
+            CookieFlushScheduler.getInstance().flushNow();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            CookieFlushScheduler.getInstance().flushNow();
         }
+        MemoryPressureManager.getInstance().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryPressureManager.getInstance().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
     }
 
     public boolean isAppBackgrounded() {
@@ -204,11 +323,37 @@ public class GoNativeApplication extends MultiDexApplication {
     }
 
     public String getCustomCss() {
-        return customCss;
+        startupTasks.await(TASK_CUSTOM_CSS);
+        synchronized (this) {
+            reloadReleasedCustomScripts();
+            return customCss;
+        }
     }
 
     public String getCustomJs() {
-        return customJs;
+        startupTasks.await(TASK_CUSTOM_JS);
+        synchronized (this) {
+            reloadReleasedCustomScripts();
+            return customJs;
+        }
+    }
+
+    // called with the lock held, so the scripts cannot be released again before they are read
+    private void reloadReleasedCustomScripts() {
+        if (!customScriptsReleased) return;
+        customScriptsReleased = false;
+        AppConfig appConfig = AppConfig.getInstance(this);
+        loadCustomCssFiles(appConfig);
+        loadCustomJSFiles(appConfig);
+    }
+
+    public synchronized String getJsBridgeScript() {
+        if (jsBridgeScript == null) {
+            List<String> paths = new ArrayList<>();
+            paths.add(JS_BRIDGE_LIBRARY_FILE);
+            jsBridgeScript = readAssetsToString(paths);
+        }
+        return jsBridgeScript;
     }
 
     private String readAssetsToString(List<String> paths) {
@@ -228,6 +373,11 @@ public class GoNativeApplication extends MultiDexApplication {
     }
 
     public boolean isFirstLaunch() {
+        startupTasks.await(TASK_FIRST_LAUNCH);
         return isFirstLaunch;
     }
+
+    public JSONObject getStartupReport() {
+        return startupTasks.getReport();
+    }
 }
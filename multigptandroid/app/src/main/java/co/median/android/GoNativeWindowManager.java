@@ -1,15 +1,35 @@
 package co.median.android;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class GoNativeWindowManager {
+    private static final String TAG = GoNativeWindowManager.class.getName();
+    // a window that refused to hibernate, e.g. while loading, is tried again after this long
+    private static final long HIBERNATION_RETRY_MS = 60 * 1000;
+
     private final LinkedHashMap<String, ActivityWindow> windows;
     private ExcessWindowsClosedListener excessWindowsClosedListener;
     private String currentActiveWindowId = null;
 
+    // Windows in the background keep a live WebView up to this budget. Beyond it, the least
+    // recently visible ones hibernate: their WebView state goes to disk and the WebView is
+    // destroyed until the window is shown again. One window is hibernated per main thread
+    // message so a burst of evictions never blocks a frame.
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int liveBackgroundWindowBudget = Integer.MAX_VALUE;
+    private boolean evictionScheduled = false;
+    // set under memory pressure to hibernate every background window
+    private boolean evictAll = false;
+    // never hibernated, it is the window the user returns to even once the whole app is hidden
+    private String lastVisibleWindowId = null;
+
     public GoNativeWindowManager() {
         windows = new LinkedHashMap<>();
     }
@@ -20,6 +40,7 @@ public class GoNativeWindowManager {
 
     public void removeWindow(String activityId) {
         this.windows.remove(activityId);
+        if (activityId.equals(lastVisibleWindowId)) lastVisibleWindowId = null;
 
         if (excessWindowsClosedListener != null && windows.size() <= 1) {
             excessWindowsClosedListener.onAllExcessWindowClosed();
@@ -117,6 +138,109 @@ public class GoNativeWindowManager {
         return windows.size();
     }
 
+    public void setLiveBackgroundWindowBudget(int budget) {
+        this.liveBackgroundWindowBudget = Math.max(0, budget);
+        scheduleEviction();
+    }
+
+    /**
+     * Registers the window's WebView for hibernation. Call from the activity's onCreate.
+     */
+    public void setWindowHost(String activityId, WindowHost host) {
+        ActivityWindow window = windows.get(activityId);
+        if (window != null) window.host = host;
+    }
+
+    public void onWindowVisible(String activityId) {
+        ActivityWindow window = windows.get(activityId);
+        if (window == null) return;
+        window.visible = true;
+        window.hibernated = false;
+        window.hibernationRefused = false;
+        window.lastVisibleAt = SystemClock.elapsedRealtime();
+        lastVisibleWindowId = activityId;
+    }
+
+    /**
+     * Lets a background window that refused to hibernate while its page was loading be tried
+     * again. Call when a page finishes loading in the window.
+     */
+    public void onWindowPageFinished(String activityId) {
+        retryHibernation(windows.get(activityId));
+    }
+
+    public void onWindowHidden(String activityId) {
+        ActivityWindow window = windows.get(activityId);
+        if (window == null) return;
+        window.visible = false;
+        window.lastVisibleAt = SystemClock.elapsedRealtime();
+        scheduleEviction();
+    }
+
+    /**
+     * Hibernates every window that is not visible, except the most recently visible one, one per
+     * main thread message.
+     * @return number of windows that will be hibernated
+     */
+    public int hibernateBackgroundWindows() {
+        evictAll = true;
+        scheduleEviction();
+        int count = 0;
+        for (ActivityWindow window : windows.values()) {
+            if (isEvictable(window)) count++;
+        }
+        return count;
+    }
+
+    public boolean isHibernated(String activityId) {
+        ActivityWindow window = windows.get(activityId);
+        return window != null && window.hibernated;
+    }
+
+    private void scheduleEviction() {
+        if (evictionScheduled) return;
+        evictionScheduled = true;
+        mainHandler.post(this::evictOne);
+    }
+
+    private void evictOne() {
+        evictionScheduled = false;
+        ActivityWindow oldest = null;
+        int live = 0;
+        for (ActivityWindow window : windows.values()) {
+            if (!isEvictable(window)) continue;
+            live++;
+            if (oldest == null || window.lastVisibleAt < oldest.lastVisibleAt) oldest = window;
+        }
+        int budget = evictAll ? 0 : liveBackgroundWindowBudget;
+        if (oldest == null || live <= budget) {
+            evictAll = false;
+            return;
+        }
+
+        // a window that cannot hibernate right now is skipped until it is shown again, finishes
+        // a page load, or the retry delay has passed
+        oldest.hibernated = oldest.host.hibernateWebview();
+        oldest.hibernationRefused = !oldest.hibernated;
+        Log.d(TAG, "evictOne: " + (oldest.hibernated ? "hibernated " : "skipped ") + oldest.id);
+        if (oldest.hibernationRefused) {
+            ActivityWindow refused = oldest;
+            mainHandler.postDelayed(() -> retryHibernation(refused), HIBERNATION_RETRY_MS);
+        }
+        scheduleEviction();
+    }
+
+    private void retryHibernation(ActivityWindow window) {
+        if (window == null || !window.hibernationRefused) return;
+        window.hibernationRefused = false;
+        scheduleEviction();
+    }
+
+    private boolean isEvictable(ActivityWindow window) {
+        return !window.visible && !window.hibernated && !window.hibernationRefused && window.host != null
+                && !window.id.equals(lastVisibleWindowId);
+    }
+
     // Returns ID of the next window after root as Excess window
     public String getExcessWindow() {
         for (Map.Entry<String, ActivityWindow> entry : windows.entrySet()) {
@@ -133,6 +257,11 @@ public class GoNativeWindowManager {
         private int urlLevel;
         private int parentUrlLevel;
         private boolean ignoreInterceptMaxWindows;
+        private WindowHost host;
+        private boolean visible;
+        private boolean hibernated;
+        private boolean hibernationRefused;
+        private long lastVisibleAt = SystemClock.elapsedRealtime();
 
         ActivityWindow(String id, boolean isRoot) {
             this.id = id;
@@ -159,4 +288,13 @@ public class GoNativeWindowManager {
     interface ExcessWindowsClosedListener {
         void onAllExcessWindowClosed();
     }
+
+    interface WindowHost {
+        /**
+         * Saves the WebView's state to disk and destroys it. Only called while the window is not
+         * visible.
+         * @return true if the WebView was released
+         */
+        boolean hibernateWebview();
+    }
 }
@@ -1,6 +1,7 @@
 package co.median.android;
 
 import android.app.Activity;
+import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.WebResourceResponse;
@@ -34,12 +35,30 @@ public class HtmlIntercept {
     // track whether we have intercepted a page at all. We will always try to intercept the first time,
     // because interceptUrl may not have been set if restoring from a bundle.
     private boolean hasIntercepted = false;
+    private PageLoadTimeline timeline;
 
     public void setInterceptUrl(String interceptUrl) {
         this.interceptUrl = interceptUrl;
     }
 
+    public void setTimeline(PageLoadTimeline timeline) {
+        this.timeline = timeline;
+    }
+
+    private void mark(int navigationId, String phase) {
+        if (timeline != null) timeline.mark(navigationId, phase);
+    }
+
     public WebResourceResponse interceptHtml(Activity activity, GoNativeWebviewInterface view, String url, String referer) {
+        Tracing.beginSection("HtmlIntercept.interceptHtml");
+        try {
+            return doInterceptHtml(activity, view, url, referer);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private WebResourceResponse doInterceptHtml(Activity activity, GoNativeWebviewInterface view, String url, String referer) {
 
         AppConfig appConfig = AppConfig.getInstance(activity);
         if (!appConfig.interceptHtml && (appConfig.customHeaders == null || appConfig.customHeaders.isEmpty())) return null;
@@ -49,6 +68,22 @@ public class HtmlIntercept {
             hasIntercepted = true;
         }
         if (!urlMatches(interceptUrl, url)) return null;
+        int navigationId = timeline != null ? timeline.interceptStarted(url) : 0;
+
+        String prefetchedHtml = LaunchAccelerator.getInstance().takePrefetchedHtml(url);
+        if (prefetchedHtml == null) prefetchedHtml = SpeculativePrefetcher.getInstance().take(url);
+        if (prefetchedHtml != null) {
+            Log.d(TAG, "serving prefetched document for " + url);
+            return serveDocument(activity, view, prefetchedHtml, navigationId);
+        }
+
+        OfflineArchive archive = OfflineArchive.getInstance(activity);
+        OfflineArchive.Document archived = archive.getDocument(url);
+        if (archived != null && archive.shouldServeArchived()) {
+            Log.d(TAG, "serving archived document for " + url);
+            archive.revalidate(url);
+            return serveDocument(activity, view, archived.html, navigationId);
+        }
 
         InputStream is = null;
         ByteArrayOutputStream baos = null;
@@ -89,8 +124,17 @@ public class HtmlIntercept {
                 }
             }
 
+            if (archived != null) archived.addValidators(connection);
+
             connection.connect();
             int responseCode = connection.getResponseCode();
+            mark(navigationId, PageLoadTimeline.INTERCEPT_RESPONSE);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && archived != null) {
+                connection.disconnect();
+                archive.onNotModified(url);
+                return serveDocument(activity, view, archived.html, navigationId);
+            }
 
             if (responseCode == HttpURLConnection.HTTP_MOVED_PERM ||
                     responseCode == HttpURLConnection.HTTP_MOVED_TEMP ||
@@ -166,47 +210,21 @@ public class HtmlIntercept {
                 origString = baos.toString("UTF-8");
             }
 
-            // modify the string!
-            String newString;
-            int insertPoint = origString.indexOf("</head>");
-            if (insertPoint >= 0) {
-                StringBuilder builder = new StringBuilder(initialLength);
-                builder.append(origString.substring(0, insertPoint));
-
-                if (appConfig.stringViewport != null) {
-                    builder.append("<meta name=\"viewport\" content=\"");
-                    builder.append(TextUtils.htmlEncode(appConfig.stringViewport));
-                    builder.append("\" />");
-                }
-                if (!Double.isNaN(appConfig.forceViewportWidth)) {
-                    if (appConfig.zoomableForceViewport) {
-                        builder.append(String.format(Locale.US, "<meta name=\"viewport\" content=\"width=%f,maximum-scale=1.0\" />",
-                                appConfig.forceViewportWidth));
-                    }
-                    else {
-                        // we want to use user-scalable=no, but android has a bug that sets scale to
-                        // 1.0 if user-scalable=no. The workaround to is calculate the scale and set
-                        // it for initial, minimum, and maximum.
-                        // http://stackoverflow.com/questions/12723844/android-viewport-setting-user-scalable-no-breaks-width-zoom-level-of-viewpor
-                        double webViewWidth = view.getWidth() / activity.getResources().getDisplayMetrics().density;
-                        double viewportWidth = appConfig.forceViewportWidth;
-                        double scale = webViewWidth / viewportWidth;
-                        builder.append(String.format(Locale.US, "<meta name=\"viewport\" content=\"width=%f,initial-scale=%f,minimum-scale=%f,maximum-scale=%f\" />",
-                                viewportWidth, scale, scale, scale));
-                    }
-                }
-
-                builder.append(origString.substring(insertPoint));
-                newString = builder.toString();
-            }
-            else {
-                Log.d(TAG, "could not find closing </head> tag");
-                newString = origString;
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                archive.putDocument(url, origString, connection);
             }
 
+            // modify the string!
+            String newString = injectViewport(activity, view, origString, initialLength);
+            mark(navigationId, PageLoadTimeline.INTERCEPT_END);
+
             return new WebResourceResponse("text/html", "UTF-8",
                     new ByteArrayInputStream(newString.getBytes("UTF-8")));
         } catch (Exception e) {
+            if (archived != null) {
+                Log.w(TAG, "serving archived document for " + url + " after " + e);
+                return serveDocument(activity, view, archived.html, navigationId);
+            }
             GNLog.getInstance().logError(TAG, e.toString(), e);
             return null;
         } finally {
@@ -215,6 +233,69 @@ public class HtmlIntercept {
         }
     }
 
+    private WebResourceResponse serveDocument(Activity activity, GoNativeWebviewInterface view, String html,
+                                              int navigationId) {
+        mark(navigationId, PageLoadTimeline.INTERCEPT_RESPONSE);
+        try {
+            byte[] bytes = injectViewport(activity, view, html, html.length()).getBytes("UTF-8");
+            mark(navigationId, PageLoadTimeline.INTERCEPT_END);
+            return new WebResourceResponse("text/html", "UTF-8", new ByteArrayInputStream(bytes));
+        } catch (UnsupportedEncodingException e) {
+            GNLog.getInstance().logError(TAG, e.toString(), e);
+            return null;
+        }
+    }
+
+    private String injectViewport(Activity activity, GoNativeWebviewInterface view, String origString, int initialLength) {
+        double webViewWidth = view.getWidth() / activity.getResources().getDisplayMetrics().density;
+        return injectViewport(activity, webViewWidth, origString, initialLength);
+    }
+
+    /**
+     * @param webViewWidth width of the WebView in dp, used when forcing a viewport width
+     */
+    static String injectViewport(Context context, double webViewWidth, String origString, int initialLength) {
+        AppConfig appConfig = AppConfig.getInstance(context);
+
+        String newString;
+        int insertPoint = origString.indexOf("</head>");
+        if (insertPoint >= 0) {
+            StringBuilder builder = new StringBuilder(initialLength);
+            builder.append(origString.substring(0, insertPoint));
+
+            if (appConfig.stringViewport != null) {
+                builder.append("<meta name=\"viewport\" content=\"");
+                builder.append(TextUtils.htmlEncode(appConfig.stringViewport));
+                builder.append("\" />");
+            }
+            if (!Double.isNaN(appConfig.forceViewportWidth)) {
+                if (appConfig.zoomableForceViewport) {
+                    builder.append(String.format(Locale.US, "<meta name=\"viewport\" content=\"width=%f,maximum-scale=1.0\" />",
+                            appConfig.forceViewportWidth));
+                }
+                else {
+                    // we want to use user-scalable=no, but android has a bug that sets scale to
+                    // 1.0 if user-scalable=no. The workaround to is calculate the scale and set
+                    // it for initial, minimum, and maximum.
+                    // http://stackoverflow.com/questions/12723844/android-viewport-setting-user-scalable-no-breaks-width-zoom-level-of-viewpor
+                    double viewportWidth = appConfig.forceViewportWidth;
+                    double scale = webViewWidth / viewportWidth;
+                    builder.append(String.format(Locale.US, "<meta name=\"viewport\" content=\"width=%f,initial-scale=%f,minimum-scale=%f,maximum-scale=%f\" />",
+                            viewportWidth, scale, scale, scale));
+                }
+            }
+
+            builder.append(origString.substring(insertPoint));
+            newString = builder.toString();
+        }
+        else {
+            Log.d(TAG, "could not find closing </head> tag");
+            newString = origString;
+        }
+
+        return newString;
+    }
+
     // Do these urls match, ignoring trailing slash in path
     private static boolean urlMatches(String url1, String url2) {
         if (url1 == null || url2 == null) return false;
@@ -252,7 +333,7 @@ public class HtmlIntercept {
         return !(s1 == null ? s2 == null : s1.equals(s2));
     }
 
-    private static String getCharset(String contentType) {
+    static String getCharset(String contentType) {
         if (contentType == null || contentType.isEmpty()) {
             return null;
         }
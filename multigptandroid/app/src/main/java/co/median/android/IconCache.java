@@ -0,0 +1,124 @@
+package co.median.android;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import co.median.android.icons.Icon;
+import co.median.median_core.GNLog;
+
+/**
+ * Process-wide LRU cache of rendered Font Awesome icons, keyed by icon name, size, color and
+ * theme. Icons are rendered to bitmaps once, and every caller gets its own drawable backed by the
+ * shared bitmap so tints and bounds set by one view never leak into another.
+ */
+public class IconCache {
+    private static final String TAG = IconCache.class.getName();
+    private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static IconCache instance = null;
+
+    private final LruCache<String, Bitmap> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    private IconCache() {
+        int maxSize = (int) Math.min(MAX_SIZE_BYTES, Runtime.getRuntime().maxMemory() / 64);
+        cache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    public static synchronized IconCache getInstance() {
+        if (instance == null) {
+            instance = new IconCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a new drawable for the icon, rendering it only if it is not cached yet. Returns null
+     * if the icon cannot be rendered.
+     */
+    public Drawable getIcon(Context context, String name, int size, int color) {
+        if (name == null) return null;
+        String key = createKey(context, name, size, color);
+
+        Bitmap bitmap = cache.get(key);
+        synchronized (this) {
+            if (bitmap != null) hits++; else misses++;
+        }
+        if (bitmap == null) {
+            bitmap = render(context, name, size, color);
+            if (bitmap == null) return null;
+            cache.put(key, bitmap);
+        }
+        return new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+    /**
+     * Evicts all rendered icons.
+     * @return estimated number of bytes released
+     */
+    public long clear() {
+        long bytes = cache.size();
+        cache.evictAll();
+        return bytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            synchronized (this) {
+                stats.put("hits", hits);
+                stats.put("misses", misses);
+            }
+            stats.put("entries", cache.snapshot().size());
+            stats.put("sizeBytes", cache.size());
+            stats.put("maxSizeBytes", cache.maxSize());
+            stats.put("evictions", cache.evictionCount());
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return stats;
+    }
+
+    private static String createKey(Context context, String name, int size, int color) {
+        Configuration configuration = context.getResources().getConfiguration();
+        int nightMode = configuration.uiMode & Configuration.UI_MODE_NIGHT_MASK;
+        return name + '|' + size + '|' + Integer.toHexString(color) + '|' + nightMode + '|' + configuration.densityDpi;
+    }
+
+    private static Bitmap render(Context context, String name, int size, int color) {
+        Drawable drawable = new Icon(context, name, size, color).getDrawable();
+        if (drawable == null) return null;
+
+        int width = drawable.getIntrinsicWidth() > 0 ? drawable.getIntrinsicWidth() : size;
+        int height = drawable.getIntrinsicHeight() > 0 ? drawable.getIntrinsicHeight() : size;
+        if (width <= 0 || height <= 0) return null;
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return bitmap;
+    }
+}
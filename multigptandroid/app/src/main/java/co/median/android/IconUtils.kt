@@ -7,7 +7,6 @@ import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import androidx.appcompat.graphics.drawable.StateListDrawableCompat
 import androidx.core.graphics.drawable.toBitmap
-import co.median.android.icons.Icon
 
 object IconUtils {
 
@@ -21,9 +20,9 @@ object IconUtils {
     ): StateListDrawableCompat {
         val drawableStates = StateListDrawableCompat()
 
-        val activeIconDrawable = Icon(activity, activeIcon, iconSize, iconColor).getDrawable()
+        val activeIconDrawable = IconCache.getInstance().getIcon(activity, activeIcon, iconSize, iconColor)
         val inactiveIconDrawable =
-            Icon(activity, inactiveIcon, iconSize, iconColor).getDrawable()
+            IconCache.getInstance().getIcon(activity, inactiveIcon, iconSize, iconColor)
 
         drawableStates.addState(intArrayOf(android.R.attr.state_checked), activeIconDrawable)
         drawableStates.addState(intArrayOf(-android.R.attr.state_checked), inactiveIconDrawable)
@@ -41,10 +40,10 @@ object IconUtils {
     ): StateListDrawableCompat {
         val drawableStates = StateListDrawableCompat()
 
-        val activeIconDrawable = Icon(activity, activeIcon, iconSize, iconColor).getDrawable()
+        val activeIconDrawable = IconCache.getInstance().getIcon(activity, activeIcon, iconSize, iconColor)
 
         val inactiveIconDrawable =
-            Icon(activity, inactiveIcon, iconSize, iconColor).getDrawable()
+            IconCache.getInstance().getIcon(activity, inactiveIcon, iconSize, iconColor)
 
         val squareActiveIconDrawable = resizeDrawableToSquare(activity, activeIconDrawable)
         val squareInactiveIconDrawable = resizeDrawableToSquare(activity, inactiveIconDrawable)
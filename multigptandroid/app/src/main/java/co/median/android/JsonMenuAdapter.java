@@ -7,22 +7,18 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
 import android.graphics.drawable.RippleDrawable;
 import android.graphics.drawable.StateListDrawable;
-import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.ImageView;
-import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import androidx.core.content.ContextCompat;
 
 import org.json.JSONArray;
-import org.json.JSONObject;
 
-import co.median.android.icons.Icon;
 import co.median.median_core.GNLog;
 
 /**
@@ -39,20 +35,21 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
     private final int backgroudColor;
     private final int sidebar_icon_size;
     private final int sidebar_expand_indicator_size;
-    private JSONArray menuItems;
-    private boolean groupsHaveIcons = false;
-    private boolean childrenHaveIcons = false;
+    private final Typeface titleTypeface;
+    private final Typeface selectedTitleTypeface;
+    private MenuModel menu = MenuModel.EMPTY;
     private int selectedIndex;
 
     JsonMenuAdapter(MainActivity activity, ExpandableListView expandableListView) {
         this.mainActivity = activity;
-        this.menuItems = new JSONArray();
         this.sidebar_icon_size = mainActivity.getResources().getInteger(R.integer.sidebar_icon_size);
         this.sidebar_expand_indicator_size = mainActivity.getResources().getInteger(R.integer.sidebar_expand_indicator_size);
         this.expandableListView = expandableListView;
         this.foregroundColor = ContextCompat.getColor(activity, R.color.sidebarForeground);
         this.backgroudColor = ContextCompat.getColor(activity, R.color.sidebarBackground);
         this.highlightColor = ContextCompat.getColor(activity, R.color.sidebarHighlight);
+        this.titleTypeface = Typeface.create("sans-serif-medium", Typeface.NORMAL);
+        this.selectedTitleTypeface = Typeface.create("sans-serif-medium", Typeface.BOLD);
 
         expandableListView.setAdapter(this);
         expandableListView.setOnGroupClickListener(this);
@@ -62,143 +59,47 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
     }
 
     public synchronized void update(JSONArray menuItems) {
-        this.menuItems = menuItems;
-        if (this.menuItems == null) this.menuItems = new JSONArray();
-
-        // figure out groupsHaveIcons and childrenHaveIcons (for layout alignment)
-        groupsHaveIcons = false;
-        childrenHaveIcons = false;
-        for (int i = 0; i < this.menuItems.length(); i++) {
-            JSONObject item = this.menuItems.optJSONObject(i);
-            if (item == null) continue;
-
-            String icon = item.optString("icon");
-            String activeIcon = item.optString("activeIcon");
-
-            if (!icon.isEmpty() || !activeIcon.isEmpty()) {
-                groupsHaveIcons = true;
-            }
-
-            if (item.optBoolean("isGrouping", false)) {
-                JSONArray sublinks = item.optJSONArray("subLinks");
-                if (sublinks != null) {
-                    for (int j = 0; j < sublinks.length(); j++) {
-                        JSONObject sublink = sublinks.optJSONObject(j);
-                        String sublinkIcon = sublink.optString("icon");
-                        String sublinkActiveIcon = sublink.optString("activeIcon");
-                        if (!sublinkIcon.isEmpty() || !sublinkActiveIcon.isEmpty()) {
-                            childrenHaveIcons = true;
-                            break;
-                        }
-                    }
-                }
-
-            }
-        }
+        MenuModel newMenu = MenuModel.compile(menuItems);
+        if (newMenu.contentEquals(this.menu)) return;
 
+        this.menu = newMenu;
+        // ids are stable, so only rows whose item changed are rebound, see bindRow
         notifyDataSetChanged();
     }
 
-
-    private String itemString(String s, int groupPosition) {
-        String value = null;
-        try {
-            JSONObject section = (JSONObject) menuItems.get(groupPosition);
-            if (!section.isNull(s))
-                value = section.getString(s).trim();
-        } catch (Exception e) {
-            GNLog.getInstance().logError(TAG, e.getMessage(), e);
-        }
-
-        return value;
-    }
-
-    private String itemString(String s, int groupPosition, int childPosition) {
-        String value = null;
-        try {
-            JSONObject section = (JSONObject) menuItems.get(groupPosition);
-            JSONObject sublink = section.getJSONArray("subLinks").getJSONObject(childPosition);
-            if (!sublink.isNull(s))
-                value = sublink.getString(s).trim();
-        } catch (Exception e) {
-            GNLog.getInstance().logError(TAG, e.getMessage(), e);
-        }
-
-        return value;
-    }
-
-    private String getTitle(int groupPosition) {
-        return itemString("label", groupPosition);
-    }
-
-    private String getTitle(int groupPosition, int childPosition) {
-        return itemString("label", groupPosition, childPosition);
-    }
-
-    private Pair<String, String> getUrlAndJavascript(int groupPosition) {
-        String url = itemString("url", groupPosition);
-        String js = itemString("javascript", groupPosition);
-        return new Pair<>(url, js);
-    }
-
-    private Pair<String, String> getUrlAndJavascript(int groupPosition, int childPosition) {
-        String url = itemString("url", groupPosition, childPosition);
-        String js = itemString("javascript", groupPosition, childPosition);
-        return new Pair<>(url, js);
-    }
-
-    private boolean isGrouping(int groupPosition) {
-        try {
-            JSONObject section = (JSONObject) menuItems.get(groupPosition);
-            return section.optBoolean("isGrouping", false);
-        } catch (Exception e) {
-            GNLog.getInstance().logError(TAG, e.getMessage(), e);
-            return false;
-        }
-    }
-
     @Override
     public int getGroupCount() {
-        return menuItems.length();
+        return menu.getGroupCount();
     }
 
     @Override
     public int getChildrenCount(int groupPosition) {
-        int count = 0;
-        try {
-            JSONObject section = (JSONObject) menuItems.get(groupPosition);
-            if (section.optBoolean("isGrouping", false)) {
-                count = section.getJSONArray("subLinks").length();
-            }
-        } catch (Exception e) {
-            GNLog.getInstance().logError(TAG, e.getMessage(), e);
-        }
-        return count;
+        return menu.getGroup(groupPosition).children.size();
     }
 
     @Override
     public Object getGroup(int i) {
-        return null;
+        return menu.getGroup(i);
     }
 
     @Override
     public Object getChild(int i, int i2) {
-        return null;
+        return menu.getGroup(i).getChild(i2);
     }
 
     @Override
     public long getGroupId(int i) {
-        return 0;
+        return menu.getGroup(i).id;
     }
 
     @Override
     public long getChildId(int i, int i2) {
-        return 0;
+        return menu.getGroup(i).getChild(i2).id;
     }
 
     @Override
     public boolean hasStableIds() {
-        return false;
+        return true;
     }
 
     @Override
@@ -206,69 +107,33 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
         if (convertView == null) {
             LayoutInflater inflater = mainActivity.getLayoutInflater();
 
-            convertView = inflater.inflate(groupsHaveIcons ?
+            convertView = inflater.inflate(menu.groupsHaveIcons() ?
                     R.layout.menu_group_icon : R.layout.menu_group_noicon, null);
+            convertView.findViewById(R.id.menu_item).setBackground(generateRippleHighlightBackground());
         }
 
-        RelativeLayout menuItem = convertView.findViewById(R.id.menu_item);
-        menuItem.setBackground(generateRippleHighlightBackground());
-
+        MenuModel.Item item = menu.getGroup(groupPosition);
         boolean isSelected = this.selectedIndex == groupPosition;
+        if (!bindRow(convertView, item, isSelected, isExpanded)) return convertView;
 
-        // initialize color and icon
-        int color;
-        String icon;
-        if (isSelected) {
-            color = this.highlightColor;
-            icon = itemString("activeIcon", groupPosition);
-        } else {
-            color = this.foregroundColor;
-            icon = itemString("inactiveIcon", groupPosition);
-        }
-
-        if (icon == null || icon.isEmpty()) {
-            icon = itemString("icon", groupPosition);
-        }
+        int color = isSelected ? this.highlightColor : this.foregroundColor;
 
         // expand/collapse indicator
         ImageView indicator = convertView.findViewById(R.id.menu_group_indicator);
-        if (isGrouping(groupPosition)) {
+        if (item.isGrouping) {
             String iconName;
             if (isExpanded) {
                 iconName = "fas fa-angle-up";
             } else {
                 iconName = "fas fa-angle-down";
             }
-            indicator.setImageDrawable(new Icon(mainActivity, iconName, sidebar_expand_indicator_size, color).getDrawable());
+            indicator.setImageDrawable(IconCache.getInstance().getIcon(mainActivity, iconName, sidebar_expand_indicator_size, color));
             indicator.setVisibility(View.VISIBLE);
         } else {
             indicator.setVisibility(View.GONE);
         }
 
-        // set title
-        TextView title = convertView.findViewById(R.id.menu_item_title);
-        title.setText(getTitle(groupPosition));
-        title.setTextColor(color);
-
-        int typefaceStyle = isSelected ? Typeface.BOLD : Typeface.NORMAL;
-        Typeface typeface = Typeface.create("sans-serif-medium", typefaceStyle);
-
-        title.setTypeface(typeface);
-
-        // set icon
-        ImageView imageView = convertView.findViewById(R.id.menu_item_icon);
-
-        if (imageView != null) {
-            if (icon != null && !icon.isEmpty()) {
-                Drawable iconDrawable = new Icon(mainActivity, icon, sidebar_icon_size, color).getDrawable();
-                imageView.setImageDrawable(iconDrawable);
-                imageView.setVisibility(View.VISIBLE);
-
-            } else {
-                imageView.setVisibility(View.INVISIBLE);
-            }
-        }
-
+        bindTitleAndIcon(convertView, item, isSelected, color);
         return convertView;
     }
 
@@ -279,56 +144,55 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
         if (convertView == null) {
             LayoutInflater inflater = mainActivity.getLayoutInflater();
 
-            if (groupsHaveIcons || childrenHaveIcons)
+            if (menu.groupsHaveIcons() || menu.childrenHaveIcons())
                 convertView = inflater.inflate(R.layout.menu_child_icon, parent, false);
             else
                 convertView = inflater.inflate(R.layout.menu_child_noicon, parent, false);
+            convertView.findViewById(R.id.menu_item).setBackground(generateRippleHighlightBackground());
         }
 
-        RelativeLayout menuItem = convertView.findViewById(R.id.menu_item);
-        menuItem.setBackground(generateRippleHighlightBackground());
-
+        MenuModel.Item item = menu.getGroup(groupPosition).getChild(childPosition);
         int itemIndex = expandableListView.getFlatListPosition(ExpandableListView.getPackedPositionForChild(groupPosition, childPosition));
         boolean isSelected = this.selectedIndex == itemIndex;
+        if (!bindRow(convertView, item, isSelected, false)) return convertView;
 
-        // initialize color and icon
-        int color;
-        String icon;
-        if (isSelected) {
-            color = this.highlightColor;
-            icon = itemString("activeIcon", groupPosition, childPosition);
-        } else {
-            color = this.foregroundColor;
-            icon = itemString("inactiveIcon", groupPosition, childPosition);
-        }
+        int color = isSelected ? this.highlightColor : this.foregroundColor;
+        bindTitleAndIcon(convertView, item, isSelected, color);
+        return convertView;
+    }
 
-        if (icon == null || icon.isEmpty()) {
-            icon = itemString("icon", groupPosition, childPosition);
+    // records what a row shows; returns false if it already shows exactly this
+    private boolean bindRow(View row, MenuModel.Item item, boolean isSelected, boolean isExpanded) {
+        Object tag = row.getTag(R.id.menu_item);
+        if (tag instanceof BoundRow) {
+            BoundRow bound = (BoundRow) tag;
+            if (bound.isSelected == isSelected && bound.isExpanded == isExpanded && item.sameRow(bound.item)) {
+                return false;
+            }
         }
+        row.setTag(R.id.menu_item, new BoundRow(item, isSelected, isExpanded));
+        return true;
+    }
 
+    private void bindTitleAndIcon(View row, MenuModel.Item item, boolean isSelected, int color) {
         // set title
-        TextView title = convertView.findViewById(R.id.menu_item_title);
-        title.setText(getTitle(groupPosition, childPosition));
+        TextView title = row.findViewById(R.id.menu_item_title);
+        title.setText(item.label);
         title.setTextColor(color);
-
-        int typefaceStyle = isSelected ? Typeface.BOLD : Typeface.NORMAL;
-        Typeface typeface = Typeface.create("sans-serif-medium", typefaceStyle);
-
-        title.setTypeface(typeface);
+        title.setTypeface(isSelected ? selectedTitleTypeface : titleTypeface);
 
         // set icon
-        ImageView imageView = convertView.findViewById(R.id.menu_item_icon);
+        ImageView imageView = row.findViewById(R.id.menu_item_icon);
         if (imageView != null) {
+            String icon = item.getIcon(isSelected);
             if (icon != null && !icon.isEmpty()) {
-                Drawable iconDrawable = new Icon(mainActivity, icon, sidebar_icon_size, color).getDrawable();
+                Drawable iconDrawable = IconCache.getInstance().getIcon(mainActivity, icon, sidebar_icon_size, color);
                 imageView.setImageDrawable(iconDrawable);
                 imageView.setVisibility(View.VISIBLE);
             } else {
                 imageView.setVisibility(View.INVISIBLE);
             }
         }
-
-        return convertView;
     }
 
     @Override
@@ -339,12 +203,12 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
     @Override
     public boolean onGroupClick(ExpandableListView parent, View v, int groupPosition, long id) {
         try {
-            if (isGrouping(groupPosition)) {
+            MenuModel.Item item = menu.getGroup(groupPosition);
+            if (item.isGrouping) {
                 // return false for default handling behavior
                 return false;
             } else {
-                Pair<String,String> urlAndJavascript = getUrlAndJavascript(groupPosition);
-                loadUrlAndJavascript(urlAndJavascript.first, urlAndJavascript.second);
+                loadUrlAndJavascript(item.url, item.javascript);
                 return true; // tell android that we have handled it
             }
         } catch (Exception e) {
@@ -359,8 +223,8 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
         int index = parent.getFlatListPosition(ExpandableListView.getPackedPositionForChild(groupPosition, childPosition));
         parent.setItemChecked(index, true);
         this.selectedIndex = index;
-        Pair<String, String> urlAndJavascript = getUrlAndJavascript(groupPosition, childPosition);
-        loadUrlAndJavascript(urlAndJavascript.first, urlAndJavascript.second);
+        MenuModel.Item item = menu.getGroup(groupPosition).getChild(childPosition);
+        loadUrlAndJavascript(item.url, item.javascript);
         return true;
     }
 
@@ -377,15 +241,10 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
     }
 
     public void autoSelectItem(String url) {
-        String formattedUrl = url.replaceAll("/$", "");
-        if (menuItems == null) return;
-
-        for (int i = 0; i < menuItems.length(); i++) {
-            if (formattedUrl.equals(menuItems.optJSONObject(i).optString("url").replaceAll("/$", ""))) {
-                expandableListView.setItemChecked(i, true);
-                selectedIndex = i;
-                return;
-            }
+        int position = menu.findGroupPositionForUrl(url);
+        if (position >= 0) {
+            expandableListView.setItemChecked(position, true);
+            selectedIndex = position;
         }
     }
 
@@ -446,7 +305,7 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
 
     @Override
     public int getChildType(int groupPosition, int childPosition) {
-        if (groupsHaveIcons || childrenHaveIcons) return 0;
+        if (menu.groupsHaveIcons() || menu.childrenHaveIcons()) return 0;
         else return 1;
     }
 
@@ -457,7 +316,7 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
 
     @Override
     public int getGroupType(int groupPosition) {
-        if (groupsHaveIcons) return 0;
+        if (menu.groupsHaveIcons()) return 0;
         else return 1;
     }
 
@@ -465,4 +324,16 @@ public class JsonMenuAdapter extends BaseExpandableListAdapter
     public int getGroupTypeCount() {
         return 2;
     }
+
+    private static class BoundRow {
+        final MenuModel.Item item;
+        final boolean isSelected;
+        final boolean isExpanded;
+
+        BoundRow(MenuModel.Item item, boolean isSelected, boolean isExpanded) {
+            this.item = item;
+            this.isSelected = isSelected;
+            this.isExpanded = isExpanded;
+        }
+    }
 }
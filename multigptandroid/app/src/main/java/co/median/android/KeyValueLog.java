@@ -0,0 +1,227 @@
+package co.median.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped append-only log behind KeyValueStore. Each record carries a CRC and has its
+ * length written last, so a record cut short by a crash reads as the end of the log. The mapping
+ * doubles when full, and rewrite() replaces the log with a compacted copy through a temp file.
+ * Not thread safe, KeyValueStore calls it under its log lock.
+ */
+class KeyValueLog {
+    static final int MAGIC = 0x4d4b5631; // "MKV1"
+    static final int HEADER_SIZE = 8;
+    // length, crc, op and key length
+    static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 2;
+    static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final byte OP_SET = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final File file;
+    private final File tempFile;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int end = HEADER_SIZE;
+
+    KeyValueLog(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    /**
+     * Maps the log and reads it up to the first record that is incomplete or fails its checksum.
+     * @return the stored values, least recently written first
+     */
+    LinkedHashMap<String, String> open() throws IOException {
+        close();
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        // left by a compaction that did not finish, the log itself is still complete
+        if (tempFile.exists() && !tempFile.delete()) throw new IOException("Cannot delete " + tempFile);
+
+        map(Math.max(INITIAL_CAPACITY, (int) Math.min(Integer.MAX_VALUE, file.length())));
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            end = HEADER_SIZE;
+            clearTail();
+            return values;
+        }
+
+        int position = HEADER_SIZE;
+        int capacity = buffer.capacity();
+        while (position + RECORD_HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER_SIZE || position + length > capacity) break;
+            int crc = buffer.getInt(position + 4);
+            if (crc != checksum(buffer, position + 8, length - 8)) break;
+            byte op = buffer.get(position + 8);
+            int keyLength = buffer.getShort(position + 9) & 0xFFFF;
+            if (RECORD_HEADER_SIZE + keyLength > length) break;
+            String key = decode(buffer, position + RECORD_HEADER_SIZE, keyLength);
+            // re-inserted so the order follows the last write
+            values.remove(key);
+            if (op == OP_SET) {
+                values.put(key, decode(buffer, position + RECORD_HEADER_SIZE + keyLength, length - RECORD_HEADER_SIZE - keyLength));
+            }
+            position += length;
+        }
+        end = position;
+        clearTail();
+        return values;
+    }
+
+    boolean isOpen() {
+        return buffer != null;
+    }
+
+    /**
+     * Bytes used by the log, including records that have since been overwritten.
+     */
+    int size() {
+        return end;
+    }
+
+    int capacity() {
+        return buffer != null ? buffer.capacity() : 0;
+    }
+
+    /**
+     * Appends a set, or a removal if value is null, growing the mapping if needed.
+     */
+    void append(String key, String value) throws IOException {
+        if (buffer == null) throw new IOException("Log is not open");
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (keyBytes.length > 0xFFFF) throw new IOException("Key too long");
+        int length = RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        ensureCapacity(length);
+
+        int position = end;
+        buffer.put(position + 8, value != null ? OP_SET : OP_REMOVE);
+        buffer.putShort(position + 9, (short) keyBytes.length);
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + RECORD_HEADER_SIZE);
+        body.put(keyBytes);
+        body.put(valueBytes);
+        buffer.putInt(position + 4, checksum(buffer, position + 8, length - 8));
+        // the length goes in last, a record without it is not part of the log
+        buffer.putInt(position, length);
+        end += length;
+    }
+
+    /**
+     * Replaces the log with one holding only values. The new log is written and forced to a temp
+     * file first and renamed over the old one, so a crash leaves one of the two complete.
+     */
+    void rewrite(Map<String, String> values) throws IOException {
+        long needed = HEADER_SIZE + 4;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            needed += recordSize(entry.getKey(), entry.getValue());
+        }
+        int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_CAPACITY, needed * 2));
+
+        close();
+        RandomAccessFile tempRaf = new RandomAccessFile(tempFile, "rw");
+        try {
+            tempRaf.setLength(capacity);
+            raf = tempRaf;
+            buffer = tempRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt(0, MAGIC);
+            end = HEADER_SIZE;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                append(entry.getKey(), entry.getValue());
+            }
+            buffer.force();
+        } finally {
+            close();
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        int written = end;
+        map(capacity);
+        end = written;
+    }
+
+    void force() {
+        if (buffer != null) buffer.force();
+    }
+
+    /**
+     * Closes and deletes the log.
+     */
+    void delete() throws IOException {
+        close();
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.delete();
+        if (file.exists() && !file.delete()) throw new IOException("Cannot delete " + file);
+        end = HEADER_SIZE;
+    }
+
+    void close() {
+        IOUtils.close(raf);
+        raf = null;
+        buffer = null;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        // room for a zero length after the record, which marks the end of the log
+        if (end + length + 4 <= buffer.capacity()) return;
+        long capacity = buffer.capacity();
+        while (capacity < end + length + 4) capacity *= 2;
+        if (capacity > Integer.MAX_VALUE) throw new IOException("Log too large");
+        int written = end;
+        map((int) capacity);
+        end = written;
+    }
+
+    private void map(int capacity) throws IOException {
+        close();
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < capacity) raf.setLength(capacity);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // anything after a torn record is unreachable, clear its length so it is never read as valid
+    private void clearTail() {
+        for (int i = end; i < Math.min(buffer.capacity(), end + RECORD_HEADER_SIZE); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    static int recordSize(String key, String value) {
+        return RECORD_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length
+                + (value != null ? value.getBytes(StandardCharsets.UTF_8).length : 0);
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        // CRC32.update(ByteBuffer) needs API 26
+        CRC32 crc = new CRC32();
+        crc.update(read(buffer, position, length));
+        return (int) crc.getValue();
+    }
+
+    private static String decode(ByteBuffer buffer, int position, int length) {
+        return new String(read(buffer, position, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.get(bytes);
+        return bytes;
+    }
+}
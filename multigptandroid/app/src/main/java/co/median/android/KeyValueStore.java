@@ -0,0 +1,579 @@
+package co.median.android;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.WebView;
+
+import androidx.webkit.ScriptHandler;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+import co.median.median_core.AppConfig;
+import co.median.median_core.GNLog;
+
+/**
+ * String key-value store for page settings and drafts, as an alternative to localStorage that
+ * never blocks the renderer. Values are kept in memory and every change is appended to a
+ * memory-mapped log (see KeyValueLog) before it is acknowledged, so a write costs a memory copy
+ * and survives the process being killed. Operations run in order on the DISK lane and answer
+ * through callbacks, so the bridge never waits on disk, and the log is opened by the first one.
+ * If the log cannot be written, writes are refused and the log is rebuilt from the in-memory
+ * values in the background. Changes are sent to subscribed pages, and the most recently used
+ * entries are injected into every internal page at document start so that the first paint needs
+ * no bridge round trip.
+ */
+public class KeyValueStore {
+    private static final String TAG = KeyValueStore.class.getName();
+    private static final String DIR_NAME = "kv";
+    private static final String LOG_FILE = "store.log";
+    private static final long FORCE_DELAY_MS = 1000;
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+    private static final long SNAPSHOT_DELAY_MS = 500;
+    private static final String SNAPSHOT_VARIABLE = "median_kv_snapshot";
+
+    public interface Callback {
+        void onResult(JSONObject result);
+    }
+
+    private static KeyValueStore instance = null;
+
+    private final Context context;
+    private final long maxBytes;
+    private final int snapshotMaxBytes;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // every use of the log runs here, one operation at a time
+    private final Executor executor = BackgroundExecutor.getInstance()
+            .serialExecutor(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_HIGH);
+
+    private final KeyValueLog log;
+    // whether the log was ever opened, so recovery knows to replay it rather than rewrite it
+    private boolean opened = false;
+
+    // access ordered, so the snapshot takes the most recently used entries. Written on the
+    // executor, guarded by this object so the main thread can build snapshots.
+    private final LinkedHashMap<String, String> values = new LinkedHashMap<>(16, 0.75f, true);
+    // bytes of the log holding current values, the rest is garbage
+    private long liveBytes = 0;
+    private volatile boolean loaded = false;
+    private boolean loadScheduled = false;
+    private BackgroundExecutor.Task scheduledForce;
+    // why the log cannot be written, null while it is healthy
+    private String writeError = null;
+    private boolean recoveryScheduled = false;
+    private int recoveryAttempts = 0;
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final Map<WebView, ScriptHandler> snapshotScripts = new WeakHashMap<>();
+    private boolean snapshotScheduled = false;
+
+    private KeyValueStore(Context context) {
+        this.context = context.getApplicationContext();
+        this.log = new KeyValueLog(new File(new File(this.context.getFilesDir(), DIR_NAME), LOG_FILE));
+        this.maxBytes = this.context.getResources().getInteger(R.integer.kv_store_max_kb) * 1024L;
+        this.snapshotMaxBytes = this.context.getResources().getInteger(R.integer.kv_snapshot_max_kb) * 1024;
+    }
+
+    public static synchronized KeyValueStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new KeyValueStore(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Maps the log and replays it in the background. Called from a startup task so that the
+     * first WebView is likely to get a snapshot.
+     */
+    public void load() {
+        synchronized (this) {
+            if (loaded || loadScheduled) return;
+            loadScheduled = true;
+        }
+        executor.execute(this::ensureLoaded);
+    }
+
+    // runs on the executor
+    private void ensureLoaded() {
+        if (loaded) return;
+        long start = SystemClock.elapsedRealtime();
+        LinkedHashMap<String, String> stored = new LinkedHashMap<>();
+        String error = null;
+        try {
+            stored = log.open();
+            opened = true;
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error opening key-value store", e);
+            log.close();
+            error = "Store is unavailable";
+        }
+        synchronized (this) {
+            publishLocked(stored);
+            loaded = true;
+            if (error != null) {
+                writeError = error;
+                scheduleRecoveryLocked();
+            }
+        }
+        Log.d(TAG, "load: " + stored.size() + " entries, " + log.size() + " bytes in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        scheduleSnapshotUpdate();
+    }
+
+    private void submit(Runnable operation) {
+        executor.execute(() -> {
+            try {
+                ensureLoaded();
+                operation.run();
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error in key-value store operation", e);
+            }
+        });
+    }
+
+    private void publishLocked(Map<String, String> stored) {
+        values.clear();
+        liveBytes = 0;
+        for (Map.Entry<String, String> entry : stored.entrySet()) {
+            values.put(entry.getKey(), entry.getValue());
+            liveBytes += KeyValueLog.recordSize(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Values for keys, or every entry if keys is null. Missing keys are left out.
+     */
+    public void get(JSONArray keys, Callback callback) {
+        submit(() -> {
+            JSONObject result = new JSONObject();
+            synchronized (this) {
+                try {
+                    if (keys == null) {
+                        for (Map.Entry<String, String> entry : values.entrySet()) {
+                            result.put(entry.getKey(), entry.getValue());
+                        }
+                    } else {
+                        for (int i = 0; i < keys.length(); i++) {
+                            String key = keys.optString(i);
+                            String value = values.get(key);
+                            if (value != null) result.put(key, value);
+                        }
+                    }
+                } catch (JSONException e) {
+                    GNLog.getInstance().logError(TAG, e.getMessage(), e);
+                }
+            }
+            callback.onResult(result);
+        });
+    }
+
+    /**
+     * Sets each key in entries to its value, or removes it if the value is null. The result has
+     * success set once the change is in the log, otherwise an error saying why nothing changed.
+     */
+    public void set(JSONObject entries, MainActivity source, Callback callback) {
+        submit(() -> callback.onResult(result(write(entries, source))));
+    }
+
+    public void remove(JSONArray keys, MainActivity source, Callback callback) {
+        JSONObject entries = new JSONObject();
+        try {
+            for (int i = 0; keys != null && i < keys.length(); i++) {
+                entries.put(keys.optString(i), JSONObject.NULL);
+            }
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        set(entries, source, callback);
+    }
+
+    public void clear(MainActivity source, Callback callback) {
+        submit(() -> {
+            JSONObject entries = new JSONObject();
+            synchronized (this) {
+                try {
+                    for (String key : values.keySet()) {
+                        entries.put(key, JSONObject.NULL);
+                    }
+                } catch (JSONException e) {
+                    GNLog.getInstance().logError(TAG, e.getMessage(), e);
+                }
+            }
+            callback.onResult(result(write(entries, source)));
+        });
+    }
+
+    // runs on the executor, returns null on success
+    private String write(JSONObject entries, MainActivity source) {
+        List<Change> changes = new ArrayList<>();
+        long newLiveBytes;
+        synchronized (this) {
+            if (writeError != null) {
+                // accepting the change would lose it on the next restart
+                scheduleRecoveryLocked();
+                return writeError;
+            }
+            newLiveBytes = liveBytes;
+            Iterator<String> keys = entries.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                String value = entries.isNull(key) ? null : entries.optString(key);
+                String previous = values.get(key);
+                if (value != null && value.equals(previous)) continue;
+                if (value == null && previous == null) continue;
+                if (previous != null) newLiveBytes -= KeyValueLog.recordSize(key, previous);
+                if (value != null) newLiveBytes += KeyValueLog.recordSize(key, value);
+                changes.add(new Change(key, value));
+            }
+        }
+        if (changes.isEmpty()) return null;
+        if (newLiveBytes > maxBytes) return "Store is full";
+
+        try {
+            append(changes);
+        } catch (IOException e) {
+            onWriteFailed(e);
+            return "Store is unavailable";
+        }
+        synchronized (this) {
+            for (Change change : changes) {
+                if (change.value != null) {
+                    values.put(change.key, change.value);
+                } else {
+                    values.remove(change.key);
+                }
+            }
+            liveBytes = newLiveBytes;
+        }
+        scheduleForce();
+        notifySubscribers(changes, source, null);
+        scheduleSnapshotUpdate();
+        return null;
+    }
+
+    private void append(List<Change> changes) throws IOException {
+        if (!log.isOpen()) throw new IOException("Log is not open");
+        for (int i = 0; i < changes.size(); i++) {
+            Change change = changes.get(i);
+            if (shouldCompact(KeyValueLog.recordSize(change.key, change.value))) {
+                // the rewrite takes every current value, including the rest of changes
+                Map<String, String> snapshot;
+                synchronized (this) {
+                    snapshot = new LinkedHashMap<>(values);
+                }
+                for (Change rest : changes.subList(i, changes.size())) {
+                    if (rest.value != null) {
+                        snapshot.put(rest.key, rest.value);
+                    } else {
+                        snapshot.remove(rest.key);
+                    }
+                }
+                compact(snapshot);
+                return;
+            }
+            log.append(change.key, change.value);
+        }
+    }
+
+    // compacts once the log is full and mostly garbage, otherwise it grows the mapping
+    private boolean shouldCompact(int length) {
+        if (log.size() + length + 4 <= log.capacity()) return false;
+        long live;
+        synchronized (this) {
+            live = KeyValueLog.HEADER_SIZE + liveBytes;
+        }
+        return live * 2 < log.size();
+    }
+
+    private void compact(Map<String, String> snapshot) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        int oldSize = log.size();
+        log.rewrite(snapshot);
+        Log.d(TAG, "compact: " + oldSize + " -> " + log.size() + " bytes in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private void onWriteFailed(IOException e) {
+        GNLog.getInstance().logError(TAG, "Error writing key-value store", e);
+        log.close();
+        synchronized (this) {
+            writeError = "Store is unavailable";
+            scheduleRecoveryLocked();
+        }
+    }
+
+    private void scheduleRecoveryLocked() {
+        if (recoveryScheduled) return;
+        recoveryScheduled = true;
+        long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(recoveryAttempts, 6));
+        recoveryAttempts++;
+        BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                BackgroundExecutor.PRIORITY_LOW, delay, () -> executor.execute(this::recover));
+    }
+
+    // runs on the executor, reopens a log that never loaded, or rewrites one that failed from
+    // the values in memory, which a failed write never changed
+    private void recover() {
+        synchronized (this) {
+            recoveryScheduled = false;
+        }
+        try {
+            if (!opened) {
+                LinkedHashMap<String, String> stored = log.open();
+                opened = true;
+                synchronized (this) {
+                    // no write was accepted while the log was unavailable
+                    publishLocked(stored);
+                }
+            } else {
+                Map<String, String> snapshot;
+                synchronized (this) {
+                    snapshot = new LinkedHashMap<>(values);
+                }
+                compact(snapshot);
+            }
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error recovering key-value store", e);
+            log.close();
+            synchronized (this) {
+                scheduleRecoveryLocked();
+            }
+            return;
+        }
+        synchronized (this) {
+            writeError = null;
+            recoveryAttempts = 0;
+        }
+        scheduleSnapshotUpdate();
+    }
+
+    /**
+     * Drops every value, in memory and in the snapshot right away and on disk in the background.
+     * Operations submitted before are wiped too. Subscribers are not told, as this is called when
+     * the user's session is cleared. Must be called on the main thread.
+     */
+    public void wipe() {
+        synchronized (this) {
+            values.clear();
+            liveBytes = 0;
+        }
+        executor.execute(this::wipeLog);
+
+        updateSnapshots();
+        for (WebView webview : new ArrayList<>(snapshotScripts.keySet())) {
+            // the page already loaded still holds the snapshot it started with
+            webview.evaluateJavascript("if (window." + SNAPSHOT_VARIABLE + ") window." + SNAPSHOT_VARIABLE + " = {};", null);
+        }
+    }
+
+    // runs on the executor
+    private void wipeLog() {
+        synchronized (this) {
+            // a load or write that ran after wipe() brought values back
+            values.clear();
+            liveBytes = 0;
+            loaded = true;
+        }
+        // the log is empty now, recovery must not replay the old one
+        opened = true;
+        try {
+            log.delete();
+            log.rewrite(new LinkedHashMap<>());
+        } catch (IOException e) {
+            onWriteFailed(e);
+            return;
+        }
+        synchronized (this) {
+            writeError = null;
+            recoveryAttempts = 0;
+        }
+        scheduleSnapshotUpdate();
+    }
+
+    // the mapping already survives a process crash, force() covers the device losing power
+    private void scheduleForce() {
+        synchronized (this) {
+            if (scheduledForce != null && !scheduledForce.isDone()) return;
+            scheduledForce = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                    BackgroundExecutor.PRIORITY_LOW, FORCE_DELAY_MS, () -> executor.execute(log::force));
+        }
+    }
+
+    /**
+     * Sends every change made from now on to callback in the activity's page, until it is
+     * destroyed or subscribes again.
+     */
+    public void subscribe(MainActivity activity, String callback) {
+        synchronized (subscribers) {
+            Iterator<Subscriber> it = subscribers.iterator();
+            while (it.hasNext()) {
+                MainActivity existing = it.next().activity.get();
+                if (existing == null || existing == activity) it.remove();
+            }
+            if (!TextUtils.isEmpty(callback)) subscribers.add(new Subscriber(activity, callback));
+        }
+    }
+
+    // error is set, with no changes, when changes already reported could not be saved
+    private void notifySubscribers(List<Change> changes, MainActivity source, String error) {
+        List<Subscriber> targets;
+        synchronized (subscribers) {
+            if (subscribers.isEmpty()) return;
+            targets = new ArrayList<>(subscribers);
+        }
+
+        JSONArray list = new JSONArray();
+        try {
+            for (Change change : changes) {
+                JSONObject json = new JSONObject();
+                json.put("key", change.key);
+                json.put("value", change.value != null ? change.value : JSONObject.NULL);
+                list.put(json);
+            }
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+            return;
+        }
+        for (Subscriber subscriber : targets) {
+            MainActivity activity = subscriber.activity.get();
+            if (activity == null || activity.isDestroyed()) continue;
+            // the callback is built later on the main thread, so each page gets its own event
+            JSONObject event = new JSONObject();
+            try {
+                event.put("changes", list);
+                event.put("local", activity == source);
+                if (error != null) event.put("error", error);
+            } catch (JSONException e) {
+                GNLog.getInstance().logError(TAG, e.getMessage(), e);
+            }
+            ShellBridge.sendCallback(activity, subscriber.callback, event);
+        }
+    }
+
+    /**
+     * Injects the snapshot into every document the WebView loads from the app's bridge origins.
+     * Must be called on the main thread.
+     */
+    public void attach(WebView webview) {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT)) return;
+        String script;
+        synchronized (this) {
+            if (!loaded) {
+                // not worth blocking the main thread on, the page falls back to the bridge
+                snapshotScripts.put(webview, null);
+                scheduleSnapshotUpdate();
+                return;
+            }
+            script = buildSnapshotScript();
+        }
+        installSnapshot(webview, script);
+    }
+
+    private void scheduleSnapshotUpdate() {
+        synchronized (this) {
+            if (snapshotScheduled) return;
+            snapshotScheduled = true;
+        }
+        mainHandler.postDelayed(this::updateSnapshots, SNAPSHOT_DELAY_MS);
+    }
+
+    private void updateSnapshots() {
+        String script;
+        synchronized (this) {
+            snapshotScheduled = false;
+            if (snapshotScripts.isEmpty()) return;
+            if (!loaded) {
+                scheduleSnapshotUpdate();
+                return;
+            }
+            script = buildSnapshotScript();
+        }
+        for (WebView webview : new ArrayList<>(snapshotScripts.keySet())) {
+            installSnapshot(webview, script);
+        }
+    }
+
+    private void installSnapshot(WebView webview, String script) {
+        ScriptHandler previous = snapshotScripts.get(webview);
+        if (previous != null) previous.remove();
+        Set<String> origins = LaunchAccelerator.getBridgeOrigins(AppConfig.getInstance(context));
+        if (origins.isEmpty()) return;
+        try {
+            snapshotScripts.put(webview, WebViewCompat.addDocumentStartJavaScript(webview, script, origins));
+        } catch (Exception e) {
+            // thrown for a destroyed WebView or an invalid origin rule
+            snapshotScripts.remove(webview);
+            Log.w(TAG, "installSnapshot: failed", e);
+        }
+    }
+
+    // most recently used entries first, within the snapshot size cap
+    private String buildSnapshotScript() {
+        JSONObject snapshot = new JSONObject();
+        List<Map.Entry<String, String>> entries = new ArrayList<>(values.entrySet());
+        int bytes = 0;
+        try {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                Map.Entry<String, String> entry = entries.get(i);
+                bytes += (entry.getKey().length() + entry.getValue().length()) * 2;
+                if (bytes > snapshotMaxBytes) break;
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return "window." + SNAPSHOT_VARIABLE + " = " + snapshot + ";";
+    }
+
+    // error is null on success
+    private static JSONObject result(String error) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("success", error == null);
+            if (error != null) json.put("error", error);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    private static class Change {
+        final String key;
+        // null for a removal
+        final String value;
+
+        Change(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class Subscriber {
+        final WeakReference<MainActivity> activity;
+        final String callback;
+
+        Subscriber(MainActivity activity, String callback) {
+            this.activity = new WeakReference<>(activity);
+            this.callback = callback;
+        }
+    }
+}
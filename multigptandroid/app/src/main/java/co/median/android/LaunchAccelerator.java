@@ -0,0 +1,320 @@
+package co.median.android;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.WebSettings;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import co.median.median_core.AppConfig;
+import co.median.median_core.GNLog;
+import co.median.median_core.LeanUtils;
+
+/**
+ * Starts network work for the first page while the splash screen is showing. Resolves and
+ * TLS-handshakes the initial URL and native bridge origins, and prefetches the initial document
+ * when HtmlIntercept would fetch it natively anyway, so the first interception is served from memory.
+ */
+public class LaunchAccelerator {
+    private static final String TAG = LaunchAccelerator.class.getName();
+    private static final int CONNECT_TIMEOUT = 5000;
+    // a server that accepts the connection and then stalls must not hold a lane thread
+    private static final int READ_TIMEOUT = 10000;
+    private static final long PREFETCH_TTL_MS = 15000;
+    private static final long PREFETCH_WAIT_MS = 3000;
+    private static final int MAX_REDIRECTS = 5;
+    // literal scheme and host at the start of a nativeBridgeUrls regex
+    private static final Pattern LITERAL_ORIGIN = Pattern.compile("^\\^?(https?)(\\?)?:(?:\\\\/|/){2}((?:[A-Za-z0-9-]|\\\\\\.)+)(?:[/:?]|\\\\/|\\.\\*|$)");
+
+    private static LaunchAccelerator instance = null;
+
+    private final Object lock = new Object();
+    private String prefetchUrl;
+    private CountDownLatch prefetchDone;
+    private String prefetchedHtml;
+    private long prefetchedAt;
+
+    private LaunchAccelerator() {
+    }
+
+    public static synchronized LaunchAccelerator getInstance() {
+        if (instance == null) {
+            instance = new LaunchAccelerator();
+        }
+        return instance;
+    }
+
+    public void start(Context context) {
+        Context appContext = context.getApplicationContext();
+        AppConfig appConfig = AppConfig.getInstance(appContext);
+        String initialUrl = appConfig.getInitialUrl();
+        if (TextUtils.isEmpty(initialUrl)) return;
+
+        if (shouldPrefetch(appConfig)) {
+            synchronized (lock) {
+                prefetchUrl = initialUrl;
+                prefetchDone = new CountDownLatch(1);
+            }
+            BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO,
+                    BackgroundExecutor.PRIORITY_HIGH, () -> prefetch(appContext, initialUrl));
+        }
+
+        Set<String> origins = getBridgeOrigins(appConfig);
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO, () -> {
+            for (String origin : origins) {
+                preconnect(origin);
+            }
+        });
+    }
+
+    /**
+     * The initial URL's origin and the origins named literally in nativeBridgeUrls.
+     */
+    static Set<String> getBridgeOrigins(AppConfig appConfig) {
+        Set<String> origins = new LinkedHashSet<>();
+        String initialUrl = appConfig.getInitialUrl();
+        if (!TextUtils.isEmpty(initialUrl)) addOrigin(origins, initialUrl);
+        if (appConfig.nativeBridgeUrls == null) return origins;
+        for (Pattern pattern : appConfig.nativeBridgeUrls) {
+            Matcher matcher = LITERAL_ORIGIN.matcher(pattern.pattern());
+            if (matcher.find()) {
+                // "https?" in the regex allows either scheme, prefer https
+                String scheme = matcher.group(2) != null ? "https" : matcher.group(1);
+                origins.add(scheme + "://" + matcher.group(3).replace("\\.", "."));
+            }
+        }
+        return origins;
+    }
+
+    // HtmlIntercept only fetches documents natively in these cases, so serving a prefetched
+    // document never changes what the WebView would otherwise have received
+    static boolean shouldPrefetch(AppConfig appConfig) {
+        return appConfig.interceptHtml || (appConfig.customHeaders != null && !appConfig.customHeaders.isEmpty());
+    }
+
+    private static void addOrigin(Set<String> origins, String url) {
+        try {
+            URL parsed = new URL(url);
+            origins.add(parsed.getProtocol() + "://" + parsed.getAuthority());
+        } catch (Exception e) {
+            Log.w(TAG, "addOrigin: invalid url " + url);
+        }
+    }
+
+    private void preconnect(String origin) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            URL url = new URL(origin);
+            InetAddress address = InetAddress.getByName(url.getHost());
+            if (!"https".equalsIgnoreCase(url.getProtocol())) {
+                Log.d(TAG, "preconnect: resolved " + origin + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                return;
+            }
+
+            int port = url.getPort() != -1 ? url.getPort() : 443;
+            // the handshake populates the default SSL session cache used by HttpURLConnection
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+            try {
+                socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+                socket.startHandshake();
+            } finally {
+                IOUtils.close(socket);
+            }
+            Log.d(TAG, "preconnect: connected to " + origin + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (Exception e) {
+            Log.w(TAG, "preconnect: failed for " + origin, e);
+        }
+    }
+
+    private void prefetch(Context context, String initialUrl) {
+        long start = SystemClock.elapsedRealtime();
+        String html = null;
+        try {
+            WebkitCookieManagerProxy.installDefault();
+            html = fetchHtml(context, initialUrl, 0, false, null);
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error prefetching initial document", e);
+        }
+
+        synchronized (lock) {
+            // the document may have been given up on while the prefetch was in flight
+            if (initialUrl.equals(prefetchUrl)) {
+                prefetchedHtml = html;
+                prefetchedAt = SystemClock.elapsedRealtime();
+                prefetchDone.countDown();
+            }
+        }
+        Log.d(TAG, "prefetch: " + (html != null ? "fetched " : "skipped ") + initialUrl + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Receives each connection fetchHtml opens, so that a cancelled fetch can disconnect it.
+     * Interrupting the fetching thread does not unblock a socket read.
+     */
+    interface ConnectionListener {
+        /**
+         * @return false if the fetch was cancelled, the connection is then not used
+         */
+        boolean onConnection(HttpURLConnection connection);
+    }
+
+    /**
+     * Fetches url the way HtmlIntercept would, following redirects.
+     * @param speculative true if the user may not navigate to url. The request is marked as a
+     *                    prefetch, so that the server can decline it with an error status.
+     * @param listener    told about each connection before it is used, or null
+     * @return the document, or null if the response was not a successful html response
+     */
+    static String fetchHtml(Context context, String url, int redirects, boolean speculative,
+                            ConnectionListener listener) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        setRequestHeaders(context, connection, url);
+        if (speculative) connection.setRequestProperty("Sec-Purpose", "prefetch");
+
+        try {
+            if (listener != null && !listener.onConnection(connection)) return null;
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_MOVED_PERM ||
+                    responseCode == HttpURLConnection.HTTP_MOVED_TEMP ||
+                    responseCode == HttpURLConnection.HTTP_SEE_OTHER ||
+                    responseCode == 307) {
+                String location = connection.getHeaderField("Location");
+                if (TextUtils.isEmpty(location) || redirects >= MAX_REDIRECTS) return null;
+                return fetchHtml(context, new URL(new URL(url), location).toString(), redirects + 1, speculative, listener);
+            }
+
+            // only cache successful html responses; anything else is left to the WebView
+            String mimetype = connection.getContentType();
+            if (responseCode != HttpURLConnection.HTTP_OK || mimetype == null || !mimetype.startsWith("text/html")) {
+                return null;
+            }
+
+            return readHtml(connection, mimetype);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads an html response body in the charset from contentType, the way HtmlIntercept does.
+     * The caller disconnects the connection.
+     */
+    static String readHtml(HttpURLConnection connection, String contentType) throws IOException {
+        String characterEncoding = HtmlIntercept.getCharset(contentType);
+        if (characterEncoding == null) {
+            characterEncoding = "UTF-8";
+        } else if (characterEncoding.equalsIgnoreCase("iso-8859-1")) {
+            characterEncoding = "windows-1252";
+        }
+
+        int initialLength = connection.getContentLength();
+        if (initialLength < 0) initialLength = UrlNavigation.DEFAULT_HTML_SIZE;
+
+        InputStream is = null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(initialLength);
+        try {
+            is = new BufferedInputStream(connection.getInputStream());
+            IOUtils.copy(is, baos);
+            try {
+                return baos.toString(characterEncoding);
+            } catch (UnsupportedEncodingException e) {
+                return baos.toString("UTF-8");
+            }
+        } finally {
+            IOUtils.close(is);
+        }
+    }
+
+    /**
+     * Sets the user agent and headers HtmlIntercept sends for a document request.
+     */
+    static void setRequestHeaders(Context context, HttpURLConnection connection, String url) {
+        AppConfig appConfig = AppConfig.getInstance(context);
+        String customUserAgent = appConfig.userAgentForUrl(url);
+        if (customUserAgent != null) {
+            connection.setRequestProperty("User-Agent", customUserAgent);
+        } else if (!TextUtils.isEmpty(appConfig.userAgent)) {
+            connection.setRequestProperty("User-Agent", appConfig.userAgent);
+        } else {
+            connection.setRequestProperty("User-Agent", WebSettings.getDefaultUserAgent(context) + " " + appConfig.userAgentAdd);
+        }
+        connection.setRequestProperty("Cache-Control", "no-cache");
+        connection.setRequestProperty("Accept-Language", Locale.getDefault().toLanguageTag());
+
+        Map<String, String> customHeaders = CustomHeaders.getCustomHeaders(context);
+        if (customHeaders != null) {
+            for (Map.Entry<String, String> entry : customHeaders.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the prefetched document for url and removes it from the cache. Waits briefly if the
+     * prefetch is still in flight. Returns null if there is no usable document.
+     */
+    public String takePrefetchedHtml(String url) {
+        CountDownLatch latch;
+        synchronized (lock) {
+            if (prefetchUrl == null || !LeanUtils.urlsMatchIgnoreTrailing(prefetchUrl, url)) return null;
+            latch = prefetchDone;
+        }
+
+        try {
+            if (latch != null && !latch.await(PREFETCH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "takePrefetchedHtml: prefetch not ready, loading normally");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            String html = prefetchedHtml;
+            boolean fresh = html != null && SystemClock.elapsedRealtime() - prefetchedAt < PREFETCH_TTL_MS;
+
+            // the cache is single-use
+            prefetchUrl = null;
+            prefetchedHtml = null;
+            prefetchDone = null;
+
+            return fresh ? html : null;
+        }
+    }
+
+    /**
+     * Drops any prefetched document that has not been consumed yet.
+     * @return estimated number of bytes released
+     */
+    public long releasePrefetchedHtml() {
+        synchronized (lock) {
+            long bytes = prefetchedHtml != null ? prefetchedHtml.length() * 2L : 0;
+            prefetchedHtml = null;
+            return bytes;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package co.median.android;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.webkit.CookieManager;
 
 import org.json.JSONObject;
 
@@ -17,31 +18,101 @@ import co.median.median_core.GNLog;
 
 /**
  * Created by weiyin on 3/16/14.
+ *
+ * The last detected login state is cached. checkLogin() notifies observers with a cached state
+ * once it has checked the cookies in the background, and only goes to the network when the state
+ * is older than the TTL, or when the cookies for the login detection url changed since it was
+ * detected. Concurrent checks share one request.
  */
 public class LoginManager extends Observable {
     private static final String TAG = LoginManager.class.getName();
 
     private Context context;
-    private CheckRedirectionTask task = null;
+    private BackgroundExecutor.Task task = null;
+    // identifies the latest check so results of cancelled ones are ignored
+    private int checkGeneration = 0;
 
     private boolean loggedIn = false;
 
+    // cache of the last detected state
+    private long cacheTtlMs;
+    private boolean hasCachedState = false;
+    private long cachedAt;
+    private int cachedCookiesHash;
+
     LoginManager(Context context) {
         this.context = context;
+        this.cacheTtlMs = context.getResources().getInteger(R.integer.login_status_cache_ttl_seconds) * 1000L;
         checkLogin();
     }
 
-    public void checkLogin() {
-        if (task != null)
-            task.cancel(true);
+    public void setCacheTtlMs(long cacheTtlMs) {
+        this.cacheTtlMs = Math.max(0, cacheTtlMs);
+    }
 
+    public void checkLogin() {
         String loginDetectionUrl = AppConfig.getInstance(context).loginDetectionUrl;
         if (loginDetectionUrl == null) {
             return;
         }
 
-        task = new CheckRedirectionTask(this);
-        task.execute(AppConfig.getInstance(context).loginDetectionUrl);
+        if (hasCachedState) {
+            // CookieManager can block on its database, so the cookies are compared off the main thread
+            BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO,
+                    BackgroundExecutor.PRIORITY_HIGH, () -> {
+                        int cookiesHash = getCookiesHash(loginDetectionUrl);
+                        BackgroundExecutor.getInstance().postToMain(() -> onCookiesHashed(loginDetectionUrl, cookiesHash));
+                    });
+            return;
+        }
+        startCheck(loginDetectionUrl);
+    }
+
+    private void onCookiesHashed(String loginDetectionUrl, int cookiesHash) {
+        if (hasCachedState) {
+            if (cookiesHash != cachedCookiesHash) {
+                // logged in or out since the last check, the cached state is wrong
+                invalidate();
+            } else {
+                // serve the cached state, and revalidate in the background once it is stale
+                setChanged();
+                notifyObservers();
+                if (SystemClock.elapsedRealtime() - cachedAt < cacheTtlMs) return;
+            }
+        }
+        startCheck(loginDetectionUrl);
+    }
+
+    private void startCheck(String loginDetectionUrl) {
+        if (isCheckInFlight()) return;
+
+        CheckRedirectionTask check = new CheckRedirectionTask(this, loginDetectionUrl, ++checkGeneration);
+        // menus and login-dependent navigation wait on this
+        task = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO,
+                BackgroundExecutor.PRIORITY_HIGH, check);
+    }
+
+    /**
+     * Drops the cached state and any in-flight check, e.g. after cookies were cleared. The next
+     * checkLogin() always goes to the network.
+     */
+    public void invalidate() {
+        hasCachedState = false;
+        if (task != null) {
+            task.cancel(true);
+            task = null;
+        }
+        // results of a check that already finished are ignored as well
+        checkGeneration++;
+    }
+
+    private boolean isCheckInFlight() {
+        return task != null && !task.isDone();
+    }
+
+    private static int getCookiesHash(String url) {
+        String cookies = CookieManager.getInstance().getCookie(url);
+        return cookies != null ? cookies.hashCode() : 0;
     }
 
     public boolean isLoggedIn() {
@@ -49,20 +120,34 @@ public class LoginManager extends Observable {
     }
 
 
-    private static class CheckRedirectionTask extends AsyncTask<String, Void, String> {
+    private static class CheckRedirectionTask implements Runnable {
         private WeakReference<LoginManager> loginManagerReference;
+        private final String url;
+        private final int generation;
 
-        public CheckRedirectionTask(LoginManager loginManager) {
+        public CheckRedirectionTask(LoginManager loginManager, String url, int generation) {
             this.loginManagerReference = new WeakReference<>(loginManager);
+            this.url = url;
+            this.generation = generation;
         }
 
         @Override
-        protected String doInBackground(String... urls){
+        public void run() {
+            String finalUrl = checkRedirection();
+            // a newer check cancels this one by interrupting it
+            if (Thread.currentThread().isInterrupted()) return;
+            // read after the redirects, which can set cookies through the shared cookie handler,
+            // and here so the first check at startup does not load cookies on the main thread
+            int cookiesHash = getCookiesHash(url);
+            BackgroundExecutor.getInstance().postToMain(() -> onPostExecute(finalUrl, cookiesHash));
+        }
+
+        private String checkRedirection() {
             LoginManager loginManager = loginManagerReference.get();
             if (loginManager == null) return null;
 
             try {
-                URL parsedUrl = new URL(urls[0]);
+                URL parsedUrl = new URL(url);
                 HttpURLConnection connection = null;
                 boolean wasRedirected;
                 int numRedirects = 0;
@@ -85,7 +170,7 @@ public class LoginManager extends Observable {
                     } else {
                         wasRedirected = false;
                     }
-                } while (!isCancelled() && wasRedirected && numRedirects < 10);
+                } while (!Thread.currentThread().isInterrupted() && wasRedirected && numRedirects < 10);
 
                 String finalUrl = connection.getURL().toString();
                 connection.disconnect();
@@ -97,14 +182,24 @@ public class LoginManager extends Observable {
             }
         }
 
-        @Override
-        protected void onPostExecute(String finalUrl) {
+        private void onPostExecute(String finalUrl, int cookiesHash) {
             LoginManager loginManager = loginManagerReference.get();
-            if (loginManager == null) return;
+            if (loginManager == null || loginManager.checkGeneration != generation) return;
 
             UrlInspector.getInstance().inspectUrl(finalUrl);
             String loginStatus;
 
+            if (finalUrl == null && loginManager.hasCachedState) {
+                // keep serving the cached state if revalidation failed
+                return;
+            }
+
+            if (finalUrl != null) {
+                loginManager.hasCachedState = true;
+                loginManager.cachedAt = SystemClock.elapsedRealtime();
+                loginManager.cachedCookiesHash = cookiesHash;
+            }
+
             if (finalUrl == null) {
                 loginManager.loggedIn = false;
                 loginStatus = "default";
@@ -19,12 +19,10 @@ import android.content.res.Configuration;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Parcel;
 import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
@@ -58,6 +56,7 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.splashscreen.SplashScreen;
 import androidx.core.splashscreen.SplashScreenViewProvider;
+import androidx.lifecycle.Lifecycle;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.webkit.WebSettingsCompat;
 import androidx.webkit.WebViewFeature;
@@ -100,7 +99,8 @@ import co.median.median_core.dto.ContextMenuConfig;
 
 public class MainActivity extends AppCompatActivity implements Observer,
         GoNativeActivity,
-        GoNativeSwipeRefreshLayout.OnRefreshListener {
+        GoNativeSwipeRefreshLayout.OnRefreshListener,
+        GoNativeWindowManager.WindowHost {
     public static final String BROADCAST_RECEIVER_ACTION_WEBVIEW_LIMIT_REACHED = "io.gonative.android.MainActivity.Extra.BROADCAST_RECEIVER_ACTION_WEBVIEW_LIMIT_REACHED";
     private static final String webviewDatabaseSubdir = "webviewDatabase";
     private static final String TAG = MainActivity.class.getName();
@@ -125,6 +125,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
     private static final String SAVED_STATE_SCROLL_X = "scrollX";
     private static final String SAVED_STATE_SCROLL_Y = "scrollY";
     private static final String SAVED_STATE_WEBVIEW_STATE = "webViewState";
+    private static final String SAVED_STATE_WEBVIEW_HISTORY = "webViewHistory";
     private static final String SAVED_STATE_IGNORE_THEME_SETUP = "ignoreThemeSetup";
 
     private static final int CONTEXT_MENU_ID_COPY = 1;
@@ -177,7 +178,11 @@ public class MainActivity extends AppCompatActivity implements Observer,
     private boolean startedLoading = false; // document readystate checke
     protected String postLoadJavascript;
     protected String postLoadJavascriptForRefresh;
-    private Stack<Bundle>previousWebviewStates;
+    private WebViewStateHistory previousWebviewStates;
+    // the WebView was replaced by an empty one while in the background, see hibernateWebview
+    private boolean webviewHibernated = false;
+    private int hibernatedScrollX = 0;
+    private int hibernatedScrollY = 0;
     private LocationServiceHelper locationServiceHelper;
     private ArrayList<PermissionsCallbackPair> pendingPermissionRequests = new ArrayList<>();
     private ArrayList<Intent> pendingStartActivityAfterPermissions = new ArrayList<>();
@@ -199,6 +204,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
     private UrlLoader urlLoader;
     private boolean shouldRemoveSplash = false;
     private SystemBarManager systemBarManager;
+    private final PageLoadTimeline pageLoadTimeline = new PageLoadTimeline();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -279,6 +285,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
 
         windowManager.addNewWindow(activityId, isRoot);
         windowManager.setUrlLevels(activityId, urlLevel, parentUrlLevel);
+        windowManager.setWindowHost(activityId, this);
 
         if (appConfig.maxWindowsEnabled) {
             windowManager.setIgnoreInterceptMaxWindows(activityId, getIntent().getBooleanExtra(EXTRA_IGNORE_INTERCEPT_MAXWINDOWS, false));
@@ -289,14 +296,11 @@ public class MainActivity extends AppCompatActivity implements Observer,
         }
 
         this.loginManager = application.getLoginManager();
-        this.weChatLoginManager = new WeChatLoginManager(this);
-        this.weChatLoginManager.setListener(this::handleWeChatLoginResult);
-        this.weChatPayManager = new WeChatPayManager(this);
-        this.weChatPayManager.setListener(this::handleWeChatPayResult);
+        // WeChat managers and the events manager are created on first use
 
         this.fileWriterSharer = new FileWriterSharer(this);
+        // registers its permission launcher here, binds DownloadService when a download starts
         this.fileDownloader = new FileDownloader(this);
-        this.eventsManager = new MedianEventsManager(this);
 
         // register launchers
         this.requestPermissionLauncher = registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
@@ -418,7 +422,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
         this.postLoadJavascript = getIntent().getStringExtra("postLoadJavascript");
         this.postLoadJavascriptForRefresh = this.postLoadJavascript;
 
-        this.previousWebviewStates = new Stack<>();
+        this.previousWebviewStates = WebViewStateHistory.forActivity(this, activityId);
 
         // tab navigation
         this.tabManager = new TabManager(this, findViewById(R.id.bottom_navigation));
@@ -448,7 +452,10 @@ public class MainActivity extends AppCompatActivity implements Observer,
 
         boolean isWebViewStateRestored = false;
         if (savedInstanceState != null) {
-            Bundle webViewStateBundle = savedInstanceState.getBundle(SAVED_STATE_WEBVIEW_STATE);
+            // states are kept in WebViewStateHistory, the instance state only marks that one exists
+            previousWebviewStates.restore(savedInstanceState.getLongArray(SAVED_STATE_WEBVIEW_HISTORY));
+            Bundle webViewStateBundle = savedInstanceState.getBoolean(SAVED_STATE_WEBVIEW_STATE, false)
+                    ? previousWebviewStates.getCurrentState() : null;
             if (webViewStateBundle != null) {
                 // Restore page and history
                 mWebview.restoreStateFromBundle(webViewStateBundle);
@@ -488,6 +495,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
                 }
 
                 this.initialUrl = url;
+                pageLoadTimeline.begin(url, false);
                 this.mWebview.loadUrl(url);
             } else if (isFromWindowOpenRequest()) {
                 // no worries, loadUrl will be called when this new web view is passed back to the message
@@ -647,15 +655,15 @@ public class MainActivity extends AppCompatActivity implements Observer,
             unregisterReceiver(this.connectivityReceiver);
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            CookieManager.getInstance().flush();
-        }
+        CookieFlushScheduler.getInstance().flushNow();
     }
 
     @Override
     protected void onStart() {
         super.onStart();
         GoNativeApplication application = (GoNativeApplication)getApplication();
+        getGNWindowManager().onWindowVisible(activityId);
+        restoreHibernatedWebview();
         application.mBridge.onActivityStart(this);
         if (AppConfig.getInstance(this).permissions.isWebRTCBluetoothAudioEnabled()) {
             AudioUtils.initAudioFocusListener(this);
@@ -672,6 +680,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
         application.setAppBackgrounded(false);
         application.mBridge.onActivityResume(this);
         if (this.mWebview != null) this.mWebview.onResume();
+        StreamRelay.getInstance(this).onActivityResumed(this);
 
         AppConfig appConfig = AppConfig.getInstance(this);
 
@@ -710,6 +719,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
         super.onStop();
         GoNativeApplication application = (GoNativeApplication)getApplication();
         application.mBridge.onActivityStop(this);
+        getGNWindowManager().onWindowHidden(activityId);
         if (isRoot) {
             if (AppConfig.getInstance(this).clearCache) {
                 this.mWebview.clearCache(true);
@@ -723,6 +733,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
         GoNativeApplication application = (GoNativeApplication)getApplication();
         application.mBridge.onActivityDestroy(this);
         application.getWindowManager().removeWindow(activityId);
+        if (isFinishing() && previousWebviewStates != null) previousWebviewStates.clear();
 
         if (fileDownloader != null) fileDownloader.unbindDownloadService();
         if (weChatLoginManager != null) weChatLoginManager.unregister();
@@ -801,38 +812,90 @@ public class MainActivity extends AppCompatActivity implements Observer,
         outState.putBoolean(CONFIGURATION_CHANGED, true);
 
         if (mWebview != null) {
-            // Saves current WebView's history and URL or loaded page state
-            Bundle webViewOutState = new Bundle();
-            mWebview.saveStateToBundle(webViewOutState);
-            outState.putBundle(SAVED_STATE_WEBVIEW_STATE, webViewOutState);
+            // Saves current WebView's history and URL or loaded page state. A hibernated window
+            // already saved the state of its real WebView.
+            if (!webviewHibernated) {
+                Bundle webViewOutState = new Bundle();
+                mWebview.saveStateToBundle(webViewOutState);
+                previousWebviewStates.saveCurrentState(webViewOutState);
+            }
+            outState.putBoolean(SAVED_STATE_WEBVIEW_STATE, true);
+            outState.putLongArray(SAVED_STATE_WEBVIEW_HISTORY, previousWebviewStates.getEntryIds());
 
             // Save other WebView data
             outState.putString(SAVED_STATE_ACTIVITY_ID, activityId);
             outState.putBoolean(SAVED_STATE_IS_ROOT, getGNWindowManager().isRoot(activityId));
             outState.putInt(SAVED_STATE_URL_LEVEL, getGNWindowManager().getUrlLevel(activityId));
             outState.putInt(SAVED_STATE_PARENT_URL_LEVEL, getGNWindowManager().getParentUrlLevel(activityId));
-            outState.putInt(SAVED_STATE_SCROLL_X, mWebview.getWebViewScrollX());
-            outState.putInt(SAVED_STATE_SCROLL_Y, mWebview.getWebViewScrollY());
+            outState.putInt(SAVED_STATE_SCROLL_X, webviewHibernated ? hibernatedScrollX : mWebview.getWebViewScrollX());
+            outState.putInt(SAVED_STATE_SCROLL_Y, webviewHibernated ? hibernatedScrollY : mWebview.getWebViewScrollY());
         }
 
         if (flagThemeConfigurationChange) {
             outState.putBoolean(SAVED_STATE_IGNORE_THEME_SETUP, true);
         }
 
-        if (getBundleSizeInBytes(outState) > 512000) {
-            outState.clear();
-        }
-
         super.onSaveInstanceState(outState);
     }
 
-    private int getBundleSizeInBytes(Bundle bundle) {
-        Parcel parcel = Parcel.obtain();
-        parcel.writeValue(bundle);
+    /**
+     * Saves the WebView's state and scroll position to disk and swaps in an empty WebView, which
+     * releases the page's memory in the renderer. The page is restored when the window is started
+     * again. Called by GoNativeWindowManager while this window is in the background.
+     */
+    @Override
+    public boolean hibernateWebview() {
+        if (webviewHibernated || isPoolWebview || isFinishing() || isFromWindowOpenRequest()) return false;
+        // restoring breaks window.opener and in-flight loads, and gecko has no saved state
+        if (!(mWebview instanceof LeanWebView) || mWebview.getProgress() < 100) return false;
+        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) return false;
+
+        Bundle state = new Bundle();
+        mWebview.saveStateToBundle(state);
+        hibernatedScrollX = mWebview.getWebViewScrollX();
+        hibernatedScrollY = mWebview.getWebViewScrollY();
+        state.putInt(SAVED_STATE_SCROLL_X, hibernatedScrollX);
+        state.putInt(SAVED_STATE_SCROLL_Y, hibernatedScrollY);
+        previousWebviewStates.saveCurrentState(state);
+
+        replaceWebview(new LeanWebView(this));
+        webviewHibernated = true;
+        return true;
+    }
+
+    private void restoreHibernatedWebview() {
+        if (!webviewHibernated) return;
+        webviewHibernated = false;
 
-        byte[] bytes = parcel.marshall();
-        parcel.recycle();
-        return bytes.length;
+        // the empty WebView has not loaded anything, so it can take the saved state
+        Bundle state = previousWebviewStates.getCurrentState();
+        if (state != null) {
+            mWebview.restoreStateFromBundle(state);
+            mWebview.scrollTo(state.getInt(SAVED_STATE_SCROLL_X, hibernatedScrollX),
+                    state.getInt(SAVED_STATE_SCROLL_Y, hibernatedScrollY));
+        }
+        if (TextUtils.isEmpty(mWebview.getUrl()) && !backHistory.isEmpty()) {
+            loadUrl(backHistory.peek());
+        }
+    }
+
+    private void replaceWebview(LeanWebView webview) {
+        View prev = (View) mWebview;
+        ViewGroup parent = (ViewGroup) prev.getParent();
+        webview.setLayoutParams(prev.getLayoutParams());
+        if (parent != null) {
+            int index = parent.indexOfChild(prev);
+            parent.removeView(prev);
+            parent.addView(webview, index);
+        }
+
+        WebViewSetup.removeCallbacks((LeanWebView) prev);
+        ((LeanWebView) prev).stopLoading();
+        ((LeanWebView) prev).destroy();
+
+        this.mWebview = webview;
+        WebViewSetup.setupWebviewForActivity(webview, this);
+        setupWebviewTheme(appTheme);
     }
 
     public void addToHistory(String url) {
@@ -863,6 +926,8 @@ public class MainActivity extends AppCompatActivity implements Observer,
             hideWebview();
         }
 
+        // the history item's url is filled in by the load
+        pageLoadTimeline.begin(null, false);
         this.mWebview.goBack();
     }
 
@@ -877,6 +942,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
             hideWebview();
         }
 
+        pageLoadTimeline.begin(null, false);
         this.mWebview.goForward();
     }
 
@@ -922,7 +988,8 @@ public class MainActivity extends AppCompatActivity implements Observer,
     public void logout() {
         this.mWebview.stopLoading();
 
-        // log out by clearing all cookies and going to home page
+        // log out by clearing all cookies and going to home page, clearWebviewCookies also drops
+        // the data kept natively for the signed in user
         clearWebviewCookies();
 
         updateMenu(false);
@@ -960,7 +1027,13 @@ public class MainActivity extends AppCompatActivity implements Observer,
     public void clearWebviewCookies() {
         CookieManager cookieManager = CookieManager.getInstance();
         cookieManager.removeAllCookies(aBoolean -> Log.d(TAG, "clearWebviewCookies: onReceiveValue callback: " + aBoolean));
-        AsyncTask.THREAD_POOL_EXECUTOR.execute(cookieManager::flush);
+        CookieFlushScheduler.getInstance().flushNow();
+        if (loginManager != null) loginManager.invalidate();
+        // archived pages, conversations, page settings and drafts belong to the signed in user.
+        // They outlive a cache clear, but not the session.
+        OfflineArchive.getInstance(this).clear();
+        ConversationCache.getInstance(this).clear(null);
+        KeyValueStore.getInstance(this).wipe();
     }
 
     @Override
@@ -1170,6 +1243,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
             return true;
         } else if (!this.previousWebviewStates.isEmpty()) {
             Bundle state = previousWebviewStates.pop();
+            if (state == null) return false;
             LeanWebView webview = new LeanWebView(this);
             webview.restoreStateFromBundle(state);
             switchToWebview(webview, /* isPool */ false, /* isBack */ true);
@@ -1200,6 +1274,15 @@ public class MainActivity extends AppCompatActivity implements Observer,
     // isBack means the webview is being switched in as part of back navigation behavior. If isBack=false,
     // then we will save the state of the old one switched out.
     public void switchToWebview(GoNativeWebviewInterface newWebview, boolean isPoolWebview, boolean isBack) {
+        Tracing.beginSection("MainActivity.switchToWebview");
+        try {
+            doSwitchToWebview(newWebview, isPoolWebview, isBack);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private void doSwitchToWebview(GoNativeWebviewInterface newWebview, boolean isPoolWebview, boolean isBack) {
         this.mWebviewContainer.setupWebview(this, isRoot);
 
         // scroll to top
@@ -1211,7 +1294,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
             // save the state for back button behavior
             Bundle stateBundle = new Bundle();
             this.mWebview.saveStateToBundle(stateBundle);
-            this.previousWebviewStates.add(stateBundle);
+            this.previousWebviewStates.push(stateBundle);
         }
 
         // replace the current web view in the parent with the new view
@@ -1319,6 +1402,7 @@ public class MainActivity extends AppCompatActivity implements Observer,
         }
         else {
             this.postLoadJavascript = this.postLoadJavascriptForRefresh;
+            pageLoadTimeline.begin(url, false);
             this.mWebview.loadUrl(url);
         }
     }
@@ -1485,15 +1569,19 @@ public class MainActivity extends AppCompatActivity implements Observer,
     }
 
     public void startWeChatLogin(String callback) {
-        if (weChatLoginManager != null) {
-            weChatLoginManager.startLogin(callback);
+        if (weChatLoginManager == null) {
+            weChatLoginManager = new WeChatLoginManager(this);
+            weChatLoginManager.setListener(this::handleWeChatLoginResult);
         }
+        weChatLoginManager.startLogin(callback);
     }
 
     public void startWeChatPay(String callback, String payload) {
-        if (weChatPayManager != null) {
-            weChatPayManager.startPay(callback, payload);
+        if (weChatPayManager == null) {
+            weChatPayManager = new WeChatPayManager(this);
+            weChatPayManager.setListener(this::handleWeChatPayResult);
         }
+        weChatPayManager.startPay(callback, payload);
     }
 
     private void handleWeChatLoginResult(WeChatLoginResult result) {
@@ -1562,9 +1650,12 @@ public class MainActivity extends AppCompatActivity implements Observer,
         } else if ((!Double.isNaN(interactiveDelay) && status.equals("interactive"))
                 || (startedLoading && status.equals("complete"))) {
 
+            int navigationId = pageLoadTimeline.findId(mWebview.getUrl());
             if (status.equals("interactive")) {
+                pageLoadTimeline.mark(navigationId, PageLoadTimeline.READY_INTERACTIVE);
                 showWebview(interactiveDelay);
             } else {
+                pageLoadTimeline.mark(navigationId, PageLoadTimeline.READY_COMPLETE);
                 showWebview();
             }
             if (isContentReady) {
@@ -2394,12 +2485,12 @@ public class MainActivity extends AppCompatActivity implements Observer,
 
     @Override
     public void invokeCallback(String callback, JSONObject data) {
-        if (eventsManager != null) eventsManager.invokeCallback(callback, data);
+        getEventsManager().invokeCallback(callback, data);
     }
 
     @Override
     public void subscribeEvent(String callback) {
-        if (eventsManager != null) eventsManager.subscribe(callback);
+        getEventsManager().subscribe(callback);
     }
 
     @Override
@@ -2408,6 +2499,9 @@ public class MainActivity extends AppCompatActivity implements Observer,
     }
 
     public MedianEventsManager getEventsManager() {
+        if (this.eventsManager == null) {
+            this.eventsManager = new MedianEventsManager(this);
+        }
         return this.eventsManager;
     }
 
@@ -2448,9 +2542,12 @@ public class MainActivity extends AppCompatActivity implements Observer,
         runOnUiThread(() -> {
             try {
                 JSONObject commandObject = new JSONObject(message);
+                if (ShellBridge.handle(this, commandObject)) return;
                 bridge.handleJSBridgeFunctions(this, commandObject);
             } catch (JSONException jsonException){ // pass it as a uri
-                bridge.handleJSBridgeFunctions(this, Uri.parse(message));
+                Uri uri = Uri.parse(message);
+                if (ShellBridge.handle(this, uri, null)) return;
+                bridge.handleJSBridgeFunctions(this, uri);
             }
         });
     }
@@ -2510,4 +2607,8 @@ public class MainActivity extends AppCompatActivity implements Observer,
     public UrlLoader getUrlLoader() {
         return urlLoader;
     }
+
+    public PageLoadTimeline getPageLoadTimeline() {
+        return pageLoadTimeline;
+    }
 }
@@ -0,0 +1,305 @@
+package co.median.android;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Opt-in monitor for main thread stalls. Looper message logging times every message the main
+ * thread handles and records the ones that take longer than a threshold, with the handler and
+ * callback class responsible. Choreographer frame callbacks count frames and record the ones that
+ * dropped frames. Events are kept in a ring buffer and only watched while an activity is started.
+ */
+public class MainThreadMonitor implements Printer, Choreographer.FrameCallback {
+    private static final String TAG = MainThreadMonitor.class.getName();
+    private static final int BUFFER_SIZE = 100;
+    // a late frame is recorded when it misses at least this many vsyncs
+    private static final int MIN_DROPPED_FRAMES = 2;
+
+    private static MainThreadMonitor instance = null;
+
+    private final Event[] events = new Event[BUFFER_SIZE];
+    private int nextEvent = 0;
+    private int eventCount = 0;
+
+    private Application application;
+    private boolean enabled = false;
+    private boolean watching = false;
+    private int startedActivities = 0;
+    private long longTaskThresholdMs = 50;
+    private long frameIntervalNanos = 16_666_667;
+
+    // message being dispatched, set on the main thread only
+    private String dispatching;
+    private long dispatchStart;
+    private long lastFrameNanos = 0;
+
+    private long totalFrames = 0;
+    private long droppedFrames = 0;
+    private long totalLongTasks = 0;
+    private long longestTaskMs = 0;
+
+    private MainThreadMonitor() {
+    }
+
+    public static synchronized MainThreadMonitor getInstance() {
+        if (instance == null) {
+            instance = new MainThreadMonitor();
+        }
+        return instance;
+    }
+
+    /**
+     * Tracks started activities so the monitor only runs while the app is visible, and enables it
+     * if main_thread_monitor_enabled is set. Must be called on the main thread, before the first
+     * activity starts.
+     */
+    public void init(Application application) {
+        if (this.application != null) return;
+        this.application = application;
+        this.longTaskThresholdMs = application.getResources().getInteger(R.integer.main_thread_long_task_threshold_ms);
+        application.registerActivityLifecycleCallbacks(lifecycleCallbacks);
+        if (application.getResources().getBoolean(R.bool.main_thread_monitor_enabled)) enable();
+    }
+
+    /**
+     * Starts monitoring while the app has a started activity. Must be called on the main thread.
+     */
+    public void enable() {
+        if (enabled) return;
+        enabled = true;
+        if (startedActivities > 0) startWatching();
+    }
+
+    /**
+     * Stops monitoring. Recorded events are kept. Must be called on the main thread.
+     */
+    public void disable() {
+        if (!enabled) return;
+        enabled = false;
+        stopWatching();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void startWatching() {
+        if (watching) return;
+        watching = true;
+        lastFrameNanos = 0;
+        Looper.getMainLooper().setMessageLogging(this);
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void stopWatching() {
+        if (!watching) return;
+        watching = false;
+        dispatching = null;
+        Looper.getMainLooper().setMessageLogging(null);
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    // Looper message logging: ">>>>> Dispatching to <target> <callback>: <what>" before each
+    // message and "<<<<< Finished to <target> <callback>" after it
+    @Override
+    public void println(String x) {
+        if (x.startsWith(">>>>>")) {
+            dispatching = x;
+            dispatchStart = SystemClock.uptimeMillis();
+        } else if (x.startsWith("<<<<<") && dispatching != null) {
+            long duration = SystemClock.uptimeMillis() - dispatchStart;
+            if (duration >= longTaskThresholdMs) {
+                onLongTask(dispatching, duration);
+            }
+            dispatching = null;
+        }
+    }
+
+    private void onLongTask(String message, long durationMs) {
+        String target = parseTarget(message);
+        String callback = parseCallback(message);
+        synchronized (this) {
+            totalLongTasks++;
+            longestTaskMs = Math.max(longestTaskMs, durationMs);
+            add(Event.longTask(System.currentTimeMillis(), durationMs, target, callback));
+        }
+        Log.w(TAG, "long main thread task " + durationMs + "ms " + target + (callback != null ? " " + callback : ""));
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!watching) return;
+        if (lastFrameNanos > 0) {
+            long interval = frameTimeNanos - lastFrameNanos;
+            long dropped = interval / frameIntervalNanos - 1;
+            synchronized (this) {
+                totalFrames++;
+                if (dropped > 0) droppedFrames += dropped;
+                if (dropped >= MIN_DROPPED_FRAMES) {
+                    add(Event.droppedFrames(System.currentTimeMillis(), interval / 1_000_000, dropped));
+                }
+            }
+        }
+        lastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void add(Event event) {
+        events[nextEvent] = event;
+        nextEvent = (nextEvent + 1) % BUFFER_SIZE;
+        eventCount = Math.min(eventCount + 1, BUFFER_SIZE);
+    }
+
+    // "Handler (android.view.Choreographer$FrameHandler) {1a2b3c}" -> handler class
+    private static String parseTarget(String message) {
+        int open = message.indexOf('(');
+        int close = message.indexOf(')', open + 1);
+        if (open < 0 || close < 0) return message;
+        return message.substring(open + 1, close);
+    }
+
+    // callback class without the identity hash, or null if the message had no callback
+    private static String parseCallback(String message) {
+        int start = message.indexOf("} ");
+        int end = message.lastIndexOf(':');
+        if (start < 0 || end <= start + 2) return null;
+        String callback = message.substring(start + 2, end).trim();
+        if (callback.equals("null")) return null;
+        int hash = callback.indexOf('@');
+        return hash > 0 ? callback.substring(0, hash) : callback;
+    }
+
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("enabled", enabled);
+            json.put("longTaskThresholdMs", longTaskThresholdMs);
+            json.put("totalFrames", totalFrames);
+            json.put("droppedFrames", droppedFrames);
+            json.put("longTasks", totalLongTasks);
+            json.put("longestTaskMs", longestTaskMs);
+
+            JSONArray list = new JSONArray();
+            int first = (nextEvent - eventCount + BUFFER_SIZE) % BUFFER_SIZE;
+            for (int i = 0; i < eventCount; i++) {
+                list.put(events[(first + i) % BUFFER_SIZE].toJson());
+            }
+            json.put("events", list);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    public synchronized void logSummary() {
+        if (totalFrames == 0 && totalLongTasks == 0) return;
+        Log.i(TAG, "frames=" + totalFrames + " dropped=" + droppedFrames + " longTasks=" + totalLongTasks
+                + " longest=" + longestTaskMs + "ms");
+    }
+
+    private final Application.ActivityLifecycleCallbacks lifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityStarted(@NonNull Activity activity) {
+            startedActivities++;
+            updateFrameInterval(activity);
+            if (enabled) startWatching();
+        }
+
+        @Override
+        public void onActivityStopped(@NonNull Activity activity) {
+            startedActivities = Math.max(0, startedActivities - 1);
+            if (startedActivities == 0) {
+                stopWatching();
+                logSummary();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(@NonNull Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(@NonNull Activity activity) {
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    private void updateFrameInterval(Activity activity) {
+        WindowManager windowManager = activity.getWindowManager();
+        Display display = windowManager != null ? windowManager.getDefaultDisplay() : null;
+        if (display == null) return;
+        float refreshRate = display.getRefreshRate();
+        if (refreshRate >= 30) {
+            frameIntervalNanos = (long) (1_000_000_000L / refreshRate);
+        }
+    }
+
+    private static class Event {
+        final boolean isLongTask;
+        final long time;
+        final long durationMs;
+        final String target;
+        final String callback;
+        final long droppedFrames;
+
+        private Event(boolean isLongTask, long time, long durationMs, String target, String callback, long droppedFrames) {
+            this.isLongTask = isLongTask;
+            this.time = time;
+            this.durationMs = durationMs;
+            this.target = target;
+            this.callback = callback;
+            this.droppedFrames = droppedFrames;
+        }
+
+        static Event longTask(long time, long durationMs, String target, String callback) {
+            return new Event(true, time, durationMs, target, callback, 0);
+        }
+
+        static Event droppedFrames(long time, long durationMs, long droppedFrames) {
+            return new Event(false, time, durationMs, null, null, droppedFrames);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("type", isLongTask ? "longTask" : "droppedFrames");
+            json.put("time", time);
+            json.put("durationMs", durationMs);
+            if (isLongTask) {
+                json.put("target", target);
+                if (callback != null) json.put("callback", callback);
+            } else {
+                json.put("droppedFrames", droppedFrames);
+            }
+            return json;
+        }
+    }
+}
@@ -1,80 +1,25 @@
 package co.median.android
 
 import android.content.Context
-import android.graphics.Bitmap
-import android.graphics.BitmapFactory
 import android.net.Uri
 import androidx.core.content.FileProvider
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
-import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.FileOutputStream
 
 object MediaFileHelper {
-    @JvmStatic
-    fun resizeJpgUriTo480p(
-        context: Context, imageUri: Uri, callback: FileCallback?
-    ) {
-        CoroutineScope(Dispatchers.IO).launch {
-            try {
-                val contentResolver = context.contentResolver
-                val originalBitmap: Bitmap? = contentResolver.openInputStream(imageUri)?.use { inputStream ->
-                    BitmapFactory.decodeStream(inputStream)
-                }
-
-                if (originalBitmap == null) {
-                    withContext(Dispatchers.Main) { callback?.onFailure(Exception("Failed to decode image")) }
-                    return@launch
-                }
-
-                val width = originalBitmap.width
-                val height = originalBitmap.height
-                val isPortrait = height > width
-                val shortSide = if (isPortrait) width else height
-                val longSide = if (isPortrait) height else width
-                val scaleFactor = 480f / shortSide
-                val newShortSide = 480
-                val newLongSide = (longSide * scaleFactor).toInt()
-                val targetWidth = if (isPortrait) newShortSide else newLongSide
-                val targetHeight = if (isPortrait) newLongSide else newShortSide
-
-                // Resize bitmap
-                val resizedBitmap = Bitmap.createScaledBitmap(originalBitmap, targetWidth, targetHeight, true)
-
-                // Clean up original bitmap to free memory
-                if (!originalBitmap.isRecycled) {
-                    originalBitmap.recycle()
-                }
-
-                // Create output file
-                val downloadsCacheDir = File(context.cacheDir, "downloads")
-                if (!downloadsCacheDir.exists())
-                    downloadsCacheDir.mkdirs()
-
-                // Should only have one instance to save memory
-                val outputFile = File(downloadsCacheDir, "temp_capture_image.jpg")
-
-                // Save resized image
-                FileOutputStream(outputFile).use { outputStream ->
-                    resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 90, outputStream)
-                }
-
-                withContext(Dispatchers.Main) {
-                    callback?.onSuccess(fileToUri(context, outputFile))
-                }
-            } catch (e: Exception) {
-                withContext(Dispatchers.Main) {
-                    callback?.onFailure(e)
-                }
-            }
-        }
-    }
+    private const val BUFFER_SIZE = 64 * 1024
 
+    /**
+     * Copies a recorded video into the downloads cache and deletes the original. The callback runs
+     * on the main thread. Callers keep the returned task and cancel it with cancel(true) in
+     * onDestroy, which stops the copy and drops the callback. Must be called on the main thread.
+     */
     @JvmStatic
-    fun moveVideoToCache(context: Context, file: Uri,  callback: FileCallback?) {
-        CoroutineScope(Dispatchers.IO).launch {
+    fun moveVideoToCache(context: Context, file: Uri, callback: FileCallback?): BackgroundExecutor.Task {
+        val executor = BackgroundExecutor.getInstance()
+        lateinit var task: BackgroundExecutor.Task
+        // videos can be hundreds of megabytes, too long for the disk lane
+        task = executor.execute(BackgroundExecutor.Lane.BULK_TRANSFER) {
             val contentResolver = context.contentResolver
 
             // Create output file
@@ -87,9 +32,20 @@ object MediaFileHelper {
             try {
                 contentResolver.openInputStream(file)?.use { inputStream ->
                     FileOutputStream(destinationFile).use { outputStream ->
-                        inputStream.copyTo(outputStream)
+                        val buffer = ByteArray(BUFFER_SIZE)
+                        while (true) {
+                            if (Thread.currentThread().isInterrupted) break
+                            val read = inputStream.read(buffer)
+                            if (read < 0) break
+                            outputStream.write(buffer, 0, read)
+                        }
                     }
                 }
+                if (Thread.currentThread().isInterrupted) {
+                    // cancelled, the original is kept
+                    destinationFile.delete()
+                    return@execute
+                }
 
                 // Delete original file
                 val originalFile = File(file.path ?: "")
@@ -97,15 +53,16 @@ object MediaFileHelper {
                     originalFile.delete()
                 }
 
-                withContext(Dispatchers.Main) {
-                    callback?.onSuccess(fileToUri(context, destinationFile))
+                executor.postToMain {
+                    if (!task.isCancelled) callback?.onSuccess(fileToUri(context, destinationFile))
                 }
             } catch (ex: Exception) {
-                withContext(Dispatchers.Main) {
-                    callback?.onFailure(ex)
+                executor.postToMain {
+                    if (!task.isCancelled) callback?.onFailure(ex)
                 }
             }
         }
+        return task
     }
 
     @JvmStatic
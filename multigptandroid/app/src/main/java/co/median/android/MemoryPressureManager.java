@@ -0,0 +1,148 @@
+package co.median.android;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Releases registered caches when the system asks the app to trim memory. Components register
+ * with the tier that describes how expensive they are to rebuild; the cheapest tiers are released
+ * first and the more expensive ones only at higher trim levels.
+ */
+public class MemoryPressureManager {
+    private static final String TAG = MemoryPressureManager.class.getName();
+    // rough size of a WebView with a page loaded, for reporting what releasing one frees, as the
+    // real figure is not observable from the app
+    public static final long WEBVIEW_BYTES_ESTIMATE = 20L * 1024 * 1024;
+
+    public enum Tier {
+        // derived data that is rebuilt from memory or assets almost for free
+        CHEAP,
+        // data that needs disk or some CPU work to rebuild
+        MODERATE,
+        // live objects such as WebViews that need network or user-visible reloads to rebuild
+        EXPENSIVE
+    }
+
+    public interface Reclaimable {
+        /**
+         * Releases what this component can give up at the given trim level.
+         * @return estimated number of bytes released, or 0 if unknown
+         */
+        long reclaim(int level);
+    }
+
+    private static MemoryPressureManager instance = null;
+
+    private final Map<String, Registration> registrations = new LinkedHashMap<>();
+    private JSONObject lastReport;
+    private long totalReclaimed = 0;
+
+    private MemoryPressureManager() {
+    }
+
+    public static synchronized MemoryPressureManager getInstance() {
+        if (instance == null) {
+            instance = new MemoryPressureManager();
+        }
+        return instance;
+    }
+
+    public synchronized void register(String name, Tier tier, Reclaimable reclaimable) {
+        registrations.put(name, new Registration(name, tier, reclaimable));
+    }
+
+    public synchronized void unregister(String name) {
+        registrations.remove(name);
+    }
+
+    // highest tier that may be released at a trim level
+    static Tier maxTierForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // next in line to be killed: MODERATE and COMPLETE
+            return Tier.EXPENSIVE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Tier.MODERATE;
+        } else {
+            // RUNNING_MODERATE, RUNNING_LOW and UI_HIDDEN
+            return Tier.CHEAP;
+        }
+    }
+
+    public void onTrimMemory(int level) {
+        List<Registration> targets = new ArrayList<>();
+        Tier maxTier = maxTierForLevel(level);
+        synchronized (this) {
+            for (Tier tier : Tier.values()) {
+                if (tier.ordinal() > maxTier.ordinal()) break;
+                for (Registration registration : registrations.values()) {
+                    if (registration.tier == tier) targets.add(registration);
+                }
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        long reclaimed = 0;
+        JSONObject components = new JSONObject();
+        for (Registration registration : targets) {
+            long bytes = 0;
+            try {
+                bytes = Math.max(0, registration.reclaimable.reclaim(level));
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error reclaiming " + registration.name, e);
+            }
+            reclaimed += bytes;
+            try {
+                components.put(registration.name, bytes);
+            } catch (JSONException ignored) {
+            }
+        }
+
+        JSONObject report = new JSONObject();
+        try {
+            report.put("level", level);
+            report.put("maxTier", maxTier.name());
+            report.put("reclaimedBytes", reclaimed);
+            report.put("durationMs", SystemClock.elapsedRealtime() - start);
+            report.put("components", components);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+
+        synchronized (this) {
+            totalReclaimed += reclaimed;
+            lastReport = report;
+        }
+        Log.d(TAG, "onTrimMemory: " + report);
+    }
+
+    public synchronized JSONObject getLastReport() {
+        return lastReport;
+    }
+
+    public synchronized long getTotalReclaimed() {
+        return totalReclaimed;
+    }
+
+    private static class Registration {
+        final String name;
+        final Tier tier;
+        final Reclaimable reclaimable;
+
+        Registration(String name, Tier tier, Reclaimable reclaimable) {
+            this.name = name;
+            this.tier = tier;
+            this.reclaimable = reclaimable;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package co.median.android;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable side menu, compiled once from the menu JSON. Items carry ids that stay the same across
+ * menu updates as long as the item keeps its label and url, so the list can keep expansion and
+ * scroll state and skip rebinding rows that did not change.
+ */
+public class MenuModel {
+    public static final MenuModel EMPTY = new MenuModel(Collections.emptyList(), false, false);
+
+    private final List<Item> groups;
+    private final boolean groupsHaveIcons;
+    private final boolean childrenHaveIcons;
+    // normalized url to top level position, for auto selection
+    private final Map<String, Integer> groupPositionByUrl = new HashMap<>();
+
+    private MenuModel(List<Item> groups, boolean groupsHaveIcons, boolean childrenHaveIcons) {
+        this.groups = groups;
+        this.groupsHaveIcons = groupsHaveIcons;
+        this.childrenHaveIcons = childrenHaveIcons;
+        for (int i = groups.size() - 1; i >= 0; i--) {
+            // first item wins for duplicate urls
+            groupPositionByUrl.put(groups.get(i).selectionUrl, i);
+        }
+    }
+
+    public static MenuModel compile(JSONArray menuItems) {
+        if (menuItems == null || menuItems.length() == 0) return EMPTY;
+
+        boolean groupsHaveIcons = false;
+        boolean childrenHaveIcons = false;
+        List<Item> groups = compileItems(menuItems, 0, false);
+        for (Item group : groups) {
+            if (group.hasIcon) groupsHaveIcons = true;
+            for (Item child : group.children) {
+                if (child.hasIcon) childrenHaveIcons = true;
+            }
+        }
+        return new MenuModel(groups, groupsHaveIcons, childrenHaveIcons);
+    }
+
+    private static List<Item> compileItems(JSONArray items, long parentId, boolean isChild) {
+        List<Item> result = new ArrayList<>(items.length());
+        Map<Long, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject json = items.optJSONObject(i);
+            // entries that are not objects have nothing to show, at either level
+            if (json == null) continue;
+
+            String label = optTrimmed(json, "label");
+            String url = optTrimmed(json, "url");
+            long baseId = 31 * (31 * parentId + Objects.hashCode(label)) + Objects.hashCode(url);
+            // items with the same label and url are told apart by their order
+            int occurrence = occurrences.containsKey(baseId) ? occurrences.get(baseId) + 1 : 0;
+            occurrences.put(baseId, occurrence);
+            long id = 31 * baseId + occurrence;
+
+            boolean isGrouping = !isChild && json.optBoolean("isGrouping", false);
+            List<Item> children = Collections.emptyList();
+            if (isGrouping) {
+                JSONArray subLinks = json.optJSONArray("subLinks");
+                if (subLinks != null) children = compileItems(subLinks, id, true);
+            }
+            result.add(new Item(id, json, label, url, isGrouping, children));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static String optTrimmed(JSONObject json, String name) {
+        if (json.isNull(name)) return null;
+        return json.optString(name).trim();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public Item getGroup(int groupPosition) {
+        return groups.get(groupPosition);
+    }
+
+    public boolean groupsHaveIcons() {
+        return groupsHaveIcons;
+    }
+
+    public boolean childrenHaveIcons() {
+        return childrenHaveIcons;
+    }
+
+    /**
+     * Returns the top level position of the first item linking to url, ignoring a trailing slash,
+     * or -1 if there is none.
+     */
+    public int findGroupPositionForUrl(String url) {
+        if (url == null) return -1;
+        Integer position = groupPositionByUrl.get(normalizeUrl(url));
+        return position != null ? position : -1;
+    }
+
+    /**
+     * True if both menus have the same items with the same content, in which case nothing needs to
+     * be rebound.
+     */
+    public boolean contentEquals(MenuModel other) {
+        if (other == null || other.groups.size() != groups.size()) return false;
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).contentEquals(other.groups.get(i))) return false;
+        }
+        return true;
+    }
+
+    private static String normalizeUrl(String url) {
+        return url.replaceAll("/$", "");
+    }
+
+    public static class Item {
+        public final long id;
+        public final String label;
+        public final String url;
+        public final String javascript;
+        public final String icon;
+        public final String activeIcon;
+        public final String inactiveIcon;
+        public final boolean isGrouping;
+        public final List<Item> children;
+        final boolean hasIcon;
+        final String selectionUrl;
+
+        private Item(long id, JSONObject json, String label, String url, boolean isGrouping, List<Item> children) {
+            this.id = id;
+            this.label = label;
+            this.url = url;
+            this.javascript = optTrimmed(json, "javascript");
+            this.icon = optTrimmed(json, "icon");
+            this.activeIcon = optTrimmed(json, "activeIcon");
+            this.inactiveIcon = optTrimmed(json, "inactiveIcon");
+            this.isGrouping = isGrouping;
+            this.children = children;
+            this.hasIcon = !json.optString("icon").isEmpty() || !json.optString("activeIcon").isEmpty();
+            this.selectionUrl = normalizeUrl(json.optString("url"));
+        }
+
+        public Item getChild(int childPosition) {
+            return children.get(childPosition);
+        }
+
+        /**
+         * Icon to show for the given selection state, falling back to the plain icon.
+         */
+        public String getIcon(boolean selected) {
+            String stateIcon = selected ? activeIcon : inactiveIcon;
+            return stateIcon == null || stateIcon.isEmpty() ? icon : stateIcon;
+        }
+
+        boolean contentEquals(Item other) {
+            if (!sameRow(other) || children.size() != other.children.size()) return false;
+            for (int i = 0; i < children.size(); i++) {
+                if (!children.get(i).contentEquals(other.children.get(i))) return false;
+            }
+            return true;
+        }
+
+        /**
+         * True if other would render the same row, ignoring children.
+         */
+        public boolean sameRow(Item other) {
+            if (other == this) return true;
+            return other != null && id == other.id && isGrouping == other.isGrouping
+                    && Objects.equals(label, other.label)
+                    && Objects.equals(url, other.url)
+                    && Objects.equals(javascript, other.javascript)
+                    && Objects.equals(icon, other.icon)
+                    && Objects.equals(activeIcon, other.activeIcon)
+                    && Objects.equals(inactiveIcon, other.inactiveIcon);
+        }
+    }
+}
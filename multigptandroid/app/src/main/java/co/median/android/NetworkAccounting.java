@@ -0,0 +1,532 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Counts the requests and bytes each page costs. Every request the WebView makes is recorded
+ * with its initiating page. Responses the app serves itself are counted exactly as they are read.
+ * Requests left to the WebView are completed from onLoadResource and the page's Resource Timing
+ * entries, and their byte counts are marked as estimates. Only the most recent pages are kept.
+ * Off unless network_accounting_enabled is set or it is enabled through the bridge.
+ */
+public class NetworkAccounting {
+    private static final String TAG = NetworkAccounting.class.getName();
+    private static final int MAX_PAGES = 20;
+    private static final int MAX_REQUESTS_PER_PAGE = 500;
+    private static final int TOP_RESOURCES = 20;
+
+    public static final String CLASS_DOCUMENT = "document";
+    public static final String CLASS_SCRIPT = "script";
+    public static final String CLASS_STYLESHEET = "stylesheet";
+    public static final String CLASS_FONT = "font";
+    public static final String CLASS_IMAGE = "image";
+    public static final String CLASS_MEDIA = "media";
+    public static final String CLASS_API = "api";
+    public static final String CLASS_OTHER = "other";
+
+    // what answered a request
+    public static final String SERVED_BY_WEBVIEW = "webview";
+    public static final String SERVED_BY_SHELL = "shell";
+    public static final String SERVED_BY_PREFETCH = "prefetch";
+    public static final String SERVED_BY_ARCHIVE = "archive";
+    public static final String SERVED_BY_NATIVE = "native";
+
+    private static final String RESOURCE_TIMING_JS = "(function() {" +
+            "if (!window.performance || !performance.getEntriesByType) return null;" +
+            "return performance.getEntriesByType('resource').map(function(e) {" +
+            "return {name: e.name, initiatorType: e.initiatorType, duration: e.duration," +
+            "transferSize: e.transferSize || 0, encodedBodySize: e.encodedBodySize || 0," +
+            "responseStatus: e.responseStatus || 0};" +
+            "});" +
+            "})()";
+
+    private static NetworkAccounting instance = null;
+
+    private volatile boolean enabled = false;
+
+    // page url -> page, least recently used first
+    private final LinkedHashMap<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    public static synchronized NetworkAccounting getInstance() {
+        if (instance == null) {
+            instance = new NetworkAccounting();
+        }
+        return instance;
+    }
+
+    /**
+     * Enables accounting if network_accounting_enabled is set.
+     */
+    public void init(Context context) {
+        if (context.getResources().getBoolean(R.bool.network_accounting_enabled)) enabled = true;
+    }
+
+    /**
+     * Starts or stops recording requests. Recorded pages are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records a request as it is made. Called on the WebView's request threads.
+     *
+     * @return the record, or null if accounting is off
+     */
+    public Request begin(String pageUrl, WebResourceRequest request) {
+        if (!enabled) return null;
+        String url = request.getUrl().toString();
+        String page = pageKey(request.isForMainFrame() || pageUrl == null ? url : pageUrl);
+        Request record = new Request(url, request.getMethod(), classify(request));
+        synchronized (this) {
+            Page p = pages.get(page);
+            if (p == null) {
+                p = new Page(page);
+                pages.put(page, p);
+            }
+            p.add(record);
+        }
+        return record;
+    }
+
+    /**
+     * Completes the record with the response the app serves, or marks it as left to the WebView
+     * if response is null. The response body is counted as the WebView reads it.
+     */
+    public WebResourceResponse end(Request record, WebResourceResponse response) {
+        if (record == null) return response;
+        if (response == null) {
+            record.passthrough = true;
+            record.servedBy = SERVED_BY_WEBVIEW;
+            return null;
+        }
+        if (record.servedBy == null) record.servedBy = SERVED_BY_SHELL;
+        record.status = response.getStatusCode();
+        InputStream data = response.getData();
+        if (data == null) {
+            record.finish(0);
+        } else {
+            response.setData(new CountingInputStream(data, record));
+        }
+        return response;
+    }
+
+    /**
+     * Records which path answered the request, see the SERVED_BY constants.
+     *
+     * @param record the record from begin, null if accounting is off
+     */
+    public static void setServedBy(Request record, String servedBy) {
+        if (record != null) record.servedBy = servedBy;
+    }
+
+    /**
+     * Moves the requests recorded under the main-frame request URL to the URL the page ended up
+     * at after redirects, which is the one Resource Timing entries are merged into.
+     */
+    public synchronized void onPageUrl(String requestUrl, String finalUrl) {
+        if (requestUrl == null || finalUrl == null) return;
+        String from = pageKey(requestUrl);
+        String to = pageKey(finalUrl);
+        if (from.equals(to)) return;
+        Page moved = pages.remove(from);
+        if (moved == null) return;
+        Page page = pages.get(to);
+        if (page == null) {
+            page = new Page(to, moved.startedAt, moved.startedAtWall);
+            pages.put(to, page);
+        }
+        for (Request record : moved.requests) {
+            page.add(record);
+        }
+        page.dropped += moved.dropped;
+    }
+
+    /**
+     * Marks the most recent passthrough request for url on the page as loaded.
+     */
+    public synchronized void onLoadResource(String pageUrl, String url) {
+        if (!enabled || pageUrl == null || url == null) return;
+        Page page = pages.get(pageKey(pageUrl));
+        if (page == null) return;
+        Request record = page.latestByUrl.get(url);
+        if (record != null && record.passthrough && record.durationMs < 0) {
+            record.durationMs = SystemClock.elapsedRealtime() - record.startedAt;
+        }
+    }
+
+    /**
+     * Reads the page's Resource Timing entries, merges them into the current page, then runs
+     * onDone. Must be called on the main thread.
+     */
+    public void collectResourceTiming(MainActivity activity, Runnable onDone) {
+        String pageUrl = enabled && activity.getWebView() != null ? activity.getWebView().getUrl() : null;
+        if (pageUrl == null) {
+            if (onDone != null) onDone.run();
+            return;
+        }
+        activity.runJavascript(RESOURCE_TIMING_JS, value -> {
+            if (value != null && value.startsWith("[")) {
+                try {
+                    mergeResourceTiming(pageUrl, new JSONArray(value));
+                } catch (JSONException e) {
+                    Log.w(TAG, "collectResourceTiming: invalid entries", e);
+                }
+            }
+            if (onDone != null) onDone.run();
+        });
+    }
+
+    private synchronized void mergeResourceTiming(String pageUrl, JSONArray entries) {
+        Page page = pages.get(pageKey(pageUrl));
+        if (page == null) {
+            page = new Page(pageKey(pageUrl));
+            pages.put(page.url, page);
+        }
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.optJSONObject(i);
+            if (entry == null) continue;
+            String url = entry.optString("name");
+            Request record = page.latestByUrl.get(url);
+            if (record == null) {
+                // served from the memory cache or by a service worker, never seen by the app
+                record = new Request(url, "GET", classify(url, entry.optString("initiatorType")));
+                record.passthrough = true;
+                page.add(record);
+            }
+            if (!record.passthrough) continue;
+
+            String initiatorType = entry.optString("initiatorType");
+            if ("xmlhttprequest".equals(initiatorType) || "fetch".equals(initiatorType)) {
+                record.urlClass = CLASS_API;
+            }
+            long transferSize = entry.optLong("transferSize");
+            long bodySize = entry.optLong("encodedBodySize");
+            // cross-origin entries without Timing-Allow-Origin report zero sizes
+            if (transferSize > 0 || bodySize > 0) record.bytes = transferSize > 0 ? transferSize : bodySize;
+            double duration = entry.optDouble("duration", 0);
+            if (duration > 0) record.durationMs = Math.round(duration);
+            int status = entry.optInt("responseStatus");
+            if (status > 0) record.status = status;
+        }
+    }
+
+    /**
+     * @param details include every request of each page instead of the largest ones
+     */
+    public synchronized JSONObject toJson(boolean details) {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray pageList = new JSONArray();
+            Map<String, Totals> origins = new HashMap<>();
+            for (Page page : pages.values()) {
+                pageList.put(page.toJson(details));
+                for (Request record : page.requests) {
+                    String origin = originOf(record.url);
+                    Totals totals = origins.get(origin);
+                    if (totals == null) {
+                        totals = new Totals();
+                        origins.put(origin, totals);
+                    }
+                    totals.add(record);
+                }
+            }
+            json.put("pages", pageList);
+
+            JSONObject originJson = new JSONObject();
+            for (Map.Entry<String, Totals> entry : origins.entrySet()) {
+                originJson.put(entry.getKey(), entry.getValue().toJson());
+            }
+            json.put("origins", originJson);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+    }
+
+    // pages differing only in the fragment are the same document
+    private static String pageKey(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+
+    private static String originOf(String url) {
+        Uri uri = Uri.parse(url);
+        if (uri.getScheme() == null || uri.getHost() == null) return String.valueOf(uri.getScheme());
+        return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() >= 0 ? ":" + uri.getPort() : "");
+    }
+
+    static String classify(WebResourceRequest request) {
+        if (request.isForMainFrame()) return CLASS_DOCUMENT;
+        String accept = request.getRequestHeaders().get("Accept");
+        if (accept != null) {
+            if (accept.startsWith("text/css")) return CLASS_STYLESHEET;
+            if (accept.startsWith("image/")) return CLASS_IMAGE;
+            if (accept.startsWith("application/json")) return CLASS_API;
+            if (accept.startsWith("text/html")) return CLASS_DOCUMENT;
+        }
+        return classify(request.getUrl().toString(), null);
+    }
+
+    private static String classify(String url, String initiatorType) {
+        if ("xmlhttprequest".equals(initiatorType) || "fetch".equals(initiatorType)) return CLASS_API;
+        String path = Uri.parse(url).getPath();
+        if (path == null) return CLASS_OTHER;
+        String lower = path.toLowerCase(Locale.ROOT);
+        int dot = lower.lastIndexOf('.');
+        String extension = dot >= 0 && dot > lower.lastIndexOf('/') ? lower.substring(dot + 1) : "";
+        switch (extension) {
+            case "js":
+            case "mjs":
+                return CLASS_SCRIPT;
+            case "css":
+                return CLASS_STYLESHEET;
+            case "woff":
+            case "woff2":
+            case "ttf":
+            case "otf":
+            case "eot":
+                return CLASS_FONT;
+            case "png":
+            case "jpg":
+            case "jpeg":
+            case "gif":
+            case "webp":
+            case "svg":
+            case "ico":
+            case "avif":
+                return CLASS_IMAGE;
+            case "mp4":
+            case "webm":
+            case "mp3":
+            case "m4a":
+            case "ogg":
+            case "wav":
+                return CLASS_MEDIA;
+            case "json":
+                return CLASS_API;
+            case "html":
+            case "htm":
+                return CLASS_DOCUMENT;
+        }
+        if ("script".equals(initiatorType)) return CLASS_SCRIPT;
+        if ("css".equals(initiatorType) || "link".equals(initiatorType)) return CLASS_STYLESHEET;
+        if ("img".equals(initiatorType)) return CLASS_IMAGE;
+        return CLASS_OTHER;
+    }
+
+    public static class Request {
+        final String url;
+        final String method;
+        final long startedAt = SystemClock.elapsedRealtime();
+        volatile String urlClass;
+        volatile int status;
+        volatile long bytes = -1;
+        volatile long durationMs = -1;
+        // left to the WebView, so bytes and timing are estimates
+        volatile boolean passthrough;
+        volatile String servedBy;
+
+        Request(String url, String method, String urlClass) {
+            this.url = url;
+            this.method = method;
+            this.urlClass = urlClass;
+        }
+
+        void finish(long bytes) {
+            if (durationMs >= 0) return;
+            this.bytes = bytes;
+            this.durationMs = SystemClock.elapsedRealtime() - startedAt;
+        }
+
+        JSONObject toJson(long pageStart) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("method", method);
+            json.put("class", urlClass);
+            json.put("startMs", startedAt - pageStart);
+            if (status > 0) json.put("status", status);
+            if (bytes >= 0) json.put("bytes", bytes);
+            if (durationMs >= 0) json.put("durationMs", durationMs);
+            json.put("estimated", passthrough);
+            if (servedBy != null) json.put("servedBy", servedBy);
+            return json;
+        }
+    }
+
+    private static class Page {
+        final String url;
+        final long startedAt;
+        final long startedAtWall;
+        final List<Request> requests = new ArrayList<>();
+        final Map<String, Request> latestByUrl = new HashMap<>();
+        int dropped = 0;
+
+        Page(String url) {
+            this(url, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+        }
+
+        Page(String url, long startedAt, long startedAtWall) {
+            this.url = url;
+            this.startedAt = startedAt;
+            this.startedAtWall = startedAtWall;
+        }
+
+        void add(Request record) {
+            if (requests.size() >= MAX_REQUESTS_PER_PAGE) {
+                Request oldest = requests.remove(0);
+                if (latestByUrl.get(oldest.url) == oldest) latestByUrl.remove(oldest.url);
+                dropped++;
+            }
+            requests.add(record);
+            latestByUrl.put(record.url, record);
+        }
+
+        JSONObject toJson(boolean details) throws JSONException {
+            Totals totals = new Totals();
+            for (Request record : requests) {
+                totals.add(record);
+            }
+            JSONObject json = totals.toJson();
+            json.put("url", url);
+            json.put("startTime", startedAtWall);
+            if (dropped > 0) json.put("droppedRequests", dropped);
+
+            List<Request> listed = requests;
+            if (!details) {
+                // sizes can still change on other threads, so sort on a snapshot of them
+                Map<Request, Long> sizes = new HashMap<>();
+                for (Request record : requests) {
+                    sizes.put(record, record.bytes);
+                }
+                listed = new ArrayList<>(requests);
+                Collections.sort(listed, (a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+                if (listed.size() > TOP_RESOURCES) listed = listed.subList(0, TOP_RESOURCES);
+            }
+            JSONArray list = new JSONArray();
+            for (Request record : listed) {
+                list.put(record.toJson(startedAt));
+            }
+            json.put(details ? "requests" : "largestRequests", list);
+            return json;
+        }
+    }
+
+    private static class Totals {
+        int requests = 0;
+        long exactBytes = 0;
+        long estimatedBytes = 0;
+        int unknownSize = 0;
+        final Map<String, long[]> byClass = new HashMap<>();
+
+        void add(Request record) {
+            requests++;
+            long bytes = Math.max(0, record.bytes);
+            if (record.bytes < 0) unknownSize++;
+            else if (record.passthrough) estimatedBytes += bytes;
+            else exactBytes += bytes;
+
+            long[] classTotals = byClass.get(record.urlClass);
+            if (classTotals == null) {
+                classTotals = new long[2];
+                byClass.put(record.urlClass, classTotals);
+            }
+            classTotals[0]++;
+            classTotals[1] += bytes;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("requests", requests);
+            json.put("bytes", exactBytes + estimatedBytes);
+            json.put("exactBytes", exactBytes);
+            json.put("estimatedBytes", estimatedBytes);
+            json.put("unknownSizeRequests", unknownSize);
+            JSONObject classes = new JSONObject();
+            Iterator<Map.Entry<String, long[]>> it = byClass.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, long[]> entry = it.next();
+                JSONObject classJson = new JSONObject();
+                classJson.put("requests", entry.getValue()[0]);
+                classJson.put("bytes", entry.getValue()[1]);
+                classes.put(entry.getKey(), classJson);
+            }
+            json.put("byClass", classes);
+            return json;
+        }
+    }
+
+    // counts the bytes the WebView reads from a response the app serves
+    private static class CountingInputStream extends FilterInputStream {
+        private final Request record;
+        private long count = 0;
+
+        CountingInputStream(InputStream in, Request record) {
+            super(in);
+            this.record = record;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            else record.finish(count);
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            else if (n < 0) record.finish(count);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            record.finish(count);
+            super.close();
+        }
+    }
+}
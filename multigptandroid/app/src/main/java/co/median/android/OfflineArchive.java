@@ -0,0 +1,646 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebSettings;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import co.median.median_core.AppConfig;
+import co.median.median_core.GNLog;
+
+/**
+ * Disk archive of recently visited internal pages, so that pages viewed before can be shown when
+ * the network is down instead of the offline page. HtmlIntercept stores the documents it fetches
+ * and revalidates them with their ETag and Last-Modified validators. Scripts, stylesheets and
+ * fonts requested by an archived page are fetched in the background once the page has loaded.
+ * Entries are evicted least recently used first, within a page count and a total size cap.
+ * Archived copies are served when offline, or always with background revalidation if
+ * offline_archive_serve_stale is set. Archived pages can hold signed-in content, so the archive
+ * is off unless offline_archive_enabled is set.
+ */
+public class OfflineArchive {
+    private static final String TAG = OfflineArchive.class.getName();
+    private static final String ARCHIVE_DIR = "offline-archive";
+    private static final String INDEX_FILE = "index.json";
+    private static final int MAX_PAGES = 20;
+    private static final int MAX_ENTRY_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_RESOURCES_PER_PAGE = 40;
+    private static final long SAVE_INDEX_DELAY_MS = 2000;
+    // an entry is checked against the server at most this often
+    private static final long REVALIDATE_INTERVAL_MS = 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private static OfflineArchive instance = null;
+
+    private final Context context;
+    private final File dir;
+    private final boolean enabled;
+    private final boolean serveStale;
+    private final long maxBytes;
+
+    // access ordered, eldest first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // subresources requested by pages that are still loading
+    private final Map<String, Set<String>> pageResources = new HashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private long totalBytes = 0;
+    private boolean loaded = false;
+    private BackgroundExecutor.Task scheduledSave;
+    // bumped by clear(), so fetches started for the previous session are not stored
+    private int generation = 0;
+
+    private OfflineArchive(Context context) {
+        this.context = context.getApplicationContext();
+        this.dir = new File(this.context.getCacheDir(), ARCHIVE_DIR);
+        this.enabled = this.context.getResources().getBoolean(R.bool.offline_archive_enabled);
+        this.serveStale = this.context.getResources().getBoolean(R.bool.offline_archive_serve_stale);
+        this.maxBytes = this.context.getResources().getInteger(R.integer.offline_archive_max_kb) * 1024L;
+    }
+
+    public static synchronized OfflineArchive getInstance(Context context) {
+        if (instance == null) {
+            instance = new OfflineArchive(context);
+        }
+        return instance;
+    }
+
+    /**
+     * True if archived documents should be served without waiting for the network.
+     */
+    public boolean shouldServeArchived() {
+        return enabled && (serveStale || isOffline());
+    }
+
+    private boolean isOffline() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm != null ? cm.getActiveNetworkInfo() : null;
+        return ni == null || !ni.isConnected();
+    }
+
+    /**
+     * Reads the index. Called from a startup task so the first navigation does not pay for it.
+     */
+    public synchronized void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!enabled) {
+            // left by a build that had the archive enabled
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+            return;
+        }
+
+        File indexFile = new File(dir, INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                JSONArray list = new JSONObject(new String(readFile(indexFile), StandardCharsets.UTF_8)).optJSONArray("entries");
+                if (list != null) {
+                    for (int i = 0; i < list.length(); i++) {
+                        Entry entry = Entry.fromJson(list.optJSONObject(i));
+                        if (entry == null || !new File(dir, entry.file).exists()) continue;
+                        entries.put(entry.url, entry);
+                        totalBytes += entry.size;
+                    }
+                }
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error reading offline archive index", e);
+            }
+        }
+
+        // files written before a crash that never made it into the index
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Set<String> known = new HashSet<>();
+            for (Entry entry : entries.values()) known.add(entry.file);
+            for (File file : files) {
+                if (!file.getName().equals(INDEX_FILE) && !known.contains(file.getName())) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every archived page and resource, e.g. when the user logs out or cookies are cleared,
+     * so the next user is never shown the previous user's pages.
+     */
+    public void clear() {
+        synchronized (this) {
+            generation++;
+            // an index that was not read yet belongs to the previous session too
+            loaded = true;
+            entries.clear();
+            pageResources.clear();
+            totalBytes = 0;
+            if (scheduledSave != null) scheduledSave.cancel(false);
+            scheduledSave = null;
+        }
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_HIGH, () -> {
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            Set<String> keep = new HashSet<>();
+            synchronized (this) {
+                // stored since the clear
+                for (Entry entry : entries.values()) keep.add(entry.file);
+            }
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                if (!keep.contains(file.getName())) file.delete();
+            }
+        });
+    }
+
+    /**
+     * @return the archived document for url, or null
+     */
+    public Document getDocument(String url) {
+        if (!enabled) return null;
+        Entry entry;
+        synchronized (this) {
+            load();
+            entry = entries.get(key(url));
+            if (entry == null || !entry.document) return null;
+        }
+        try {
+            return new Document(entry, new String(readFile(new File(dir, entry.file)), entry.encoding));
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error reading archived document for " + url, e);
+            remove(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Archives a document fetched by HtmlIntercept, unless the response forbids storing it.
+     */
+    public void putDocument(String url, String html, HttpURLConnection connection) {
+        if (!enabled) return;
+        if (!isStorable(connection)) {
+            remove(key(url));
+            return;
+        }
+        Entry entry = new Entry(key(url), fileName(url), true);
+        synchronized (this) {
+            entry.generation = generation;
+        }
+        entry.mimeType = "text/html";
+        entry.encoding = "UTF-8";
+        entry.readValidators(connection);
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_LOW,
+                () -> store(entry, bytes));
+    }
+
+    /**
+     * Marks the archived document as confirmed current by the server.
+     */
+    public synchronized void onNotModified(String url) {
+        Entry entry = entries.get(key(url));
+        if (entry == null) return;
+        entry.savedAt = System.currentTimeMillis();
+        entry.checkedAt = entry.savedAt;
+        scheduleSave();
+    }
+
+    /**
+     * Checks an archived document or resource against the server in the background.
+     */
+    public void revalidate(String url) {
+        if (isOffline()) return;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(url));
+            if (entry == null || System.currentTimeMillis() - entry.checkedAt < REVALIDATE_INTERVAL_MS) return;
+            entry.checkedAt = System.currentTimeMillis();
+        }
+        fetch(url, entry.document, entry);
+    }
+
+    /**
+     * Called for every subresource request of a page. Remembers scripts, stylesheets and fonts so
+     * they can be archived with the page, and serves them from the archive when offline.
+     * @return archived response, or null to let the WebView load the request
+     */
+    public WebResourceResponse interceptSubresource(String pageUrl, WebResourceRequest request) {
+        if (!enabled || pageUrl == null || !"GET".equalsIgnoreCase(request.getMethod())) return null;
+        String url = request.getUrl().toString();
+        if (!url.startsWith("http")) return null;
+
+        String resourceClass = NetworkAccounting.classify(request);
+        if (!NetworkAccounting.CLASS_SCRIPT.equals(resourceClass)
+                && !NetworkAccounting.CLASS_STYLESHEET.equals(resourceClass)
+                && !NetworkAccounting.CLASS_FONT.equals(resourceClass)) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            load();
+            Set<String> resources = pageResources.get(key(pageUrl));
+            if (resources == null) {
+                resources = new LinkedHashSet<>();
+                pageResources.put(key(pageUrl), resources);
+            }
+            if (resources.size() < MAX_RESOURCES_PER_PAGE) resources.add(url);
+
+            entry = entries.get(key(url));
+        }
+        if (entry == null || !shouldServeArchived()) return null;
+
+        try {
+            InputStream is = new FileInputStream(new File(dir, entry.file));
+            Map<String, String> headers = new HashMap<>();
+            if (entry.allowOrigin != null) headers.put("Access-Control-Allow-Origin", entry.allowOrigin);
+            if (serveStale) revalidate(url);
+            return new WebResourceResponse(entry.mimeType, entry.encoding, 200, "OK", headers, is);
+        } catch (IOException e) {
+            remove(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Archives the subresources a page requested, if the page itself was archived.
+     */
+    public void onPageFinished(String pageUrl) {
+        if (!enabled || pageUrl == null) return;
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            Set<String> resources = pageResources.remove(key(pageUrl));
+            // other pages that never finished loading
+            pageResources.clear();
+            Entry page = entries.get(key(pageUrl));
+            if (resources == null || page == null || !page.document) return;
+
+            long now = System.currentTimeMillis();
+            for (String url : resources) {
+                Entry entry = entries.get(key(url));
+                if (entry == null || now - entry.checkedAt > REVALIDATE_INTERVAL_MS) {
+                    missing.add(url);
+                    if (entry != null) entry.checkedAt = now;
+                }
+            }
+        }
+        if (missing.isEmpty() || isOffline()) return;
+        for (String url : missing) {
+            fetch(url, false, null);
+        }
+    }
+
+    private void fetch(String url, boolean document, Entry existing) {
+        int fetchGeneration;
+        synchronized (this) {
+            if (!inFlight.add(key(url))) return;
+            fetchGeneration = generation;
+        }
+        BackgroundExecutor.Lane lane = document ? BackgroundExecutor.Lane.NETWORK : BackgroundExecutor.Lane.BULK_TRANSFER;
+        BackgroundExecutor.getInstance().execute(lane, BackgroundExecutor.PRIORITY_LOW, () -> {
+            try {
+                doFetch(url, document, existing, fetchGeneration);
+            } catch (Exception e) {
+                Log.w(TAG, "fetch: failed for " + url, e);
+            } finally {
+                synchronized (this) {
+                    inFlight.remove(key(url));
+                }
+            }
+        });
+    }
+
+    private void doFetch(String url, boolean document, Entry existing, int fetchGeneration) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(CONNECT_TIMEOUT);
+        if (document) {
+            LaunchAccelerator.setRequestHeaders(context, connection, url);
+        } else {
+            // subresources are often on other origins, so custom headers are not sent
+            AppConfig appConfig = AppConfig.getInstance(context);
+            String userAgent = !TextUtils.isEmpty(appConfig.userAgent) ? appConfig.userAgent
+                    : WebSettings.getDefaultUserAgent(context) + " " + appConfig.userAgentAdd;
+            connection.setRequestProperty("User-Agent", userAgent);
+        }
+        if (existing != null) existing.addValidators(connection);
+
+        InputStream is = null;
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                onNotModified(url);
+                return;
+            }
+            // a page that now redirects or fails should not be shown from the archive
+            if (responseCode != HttpURLConnection.HTTP_OK || !isStorable(connection)) {
+                remove(key(url));
+                return;
+            }
+
+            String contentType = connection.getContentType();
+            if (document && (contentType == null || !contentType.startsWith("text/html"))) {
+                remove(key(url));
+                return;
+            }
+            int length = connection.getContentLength();
+            if (length > MAX_ENTRY_BYTES) return;
+
+            is = connection.getInputStream();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(length > 0 ? length : 16 * 1024);
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                baos.write(buf, 0, read);
+                if (baos.size() > MAX_ENTRY_BYTES) return;
+            }
+
+            Entry entry = new Entry(key(url), fileName(url), document);
+            entry.generation = fetchGeneration;
+            entry.mimeType = mimeTypeOf(contentType, url);
+            String charset = HtmlIntercept.getCharset(contentType);
+            entry.encoding = charset != null ? charset : "UTF-8";
+            entry.allowOrigin = connection.getHeaderField("Access-Control-Allow-Origin");
+            entry.readValidators(connection);
+            store(entry, baos.toByteArray());
+        } finally {
+            IOUtils.close(is);
+            connection.disconnect();
+        }
+    }
+
+    private void store(Entry entry, byte[] bytes) {
+        if (bytes.length > MAX_ENTRY_BYTES) return;
+        File file = new File(dir, entry.file);
+        File tempFile = new File(dir, entry.file + ".tmp");
+        FileOutputStream os = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            os = new FileOutputStream(tempFile);
+            os.write(bytes);
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "store: could not replace " + file);
+                return;
+            }
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error archiving " + entry.url, e);
+            return;
+        } finally {
+            IOUtils.close(os);
+        }
+
+        synchronized (this) {
+            if (entry.generation != generation) {
+                // fetched for a session that has since been cleared
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return;
+            }
+            load();
+            Entry previous = entries.remove(entry.url);
+            if (previous != null) totalBytes -= previous.size;
+            entry.size = bytes.length;
+            entry.savedAt = System.currentTimeMillis();
+            entry.checkedAt = entry.savedAt;
+            entries.put(entry.url, entry);
+            totalBytes += entry.size;
+            evict();
+            scheduleSave();
+        }
+    }
+
+    private void evict() {
+        int pages = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.document) pages++;
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && (totalBytes > maxBytes || pages > MAX_PAGES)) {
+            Entry entry = it.next();
+            // while only the page count is over, keep evicting pages and leave resources
+            if (totalBytes <= maxBytes && !entry.document) continue;
+            it.remove();
+            totalBytes -= entry.size;
+            if (entry.document) pages--;
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, entry.file).delete();
+        }
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.get(entry.url) == entry) remove(entry.url);
+    }
+
+    private synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) return;
+        totalBytes -= entry.size;
+        //noinspection ResultOfMethodCallIgnored
+        new File(dir, entry.file).delete();
+        scheduleSave();
+    }
+
+    private void scheduleSave() {
+        if (scheduledSave != null && !scheduledSave.isDone()) return;
+        scheduledSave = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK,
+                BackgroundExecutor.PRIORITY_LOW, SAVE_INDEX_DELAY_MS, this::saveIndex);
+    }
+
+    private void saveIndex() {
+        String json;
+        synchronized (this) {
+            try {
+                JSONArray list = new JSONArray();
+                for (Entry entry : entries.values()) {
+                    list.put(entry.toJson());
+                }
+                json = new JSONObject().put("entries", list).toString();
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error saving offline archive index", e);
+                return;
+            }
+        }
+
+        File indexFile = new File(dir, INDEX_FILE);
+        File tempFile = new File(dir, INDEX_FILE + ".tmp");
+        FileOutputStream os = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            os = new FileOutputStream(tempFile);
+            os.write(json.getBytes(StandardCharsets.UTF_8));
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(indexFile)) {
+                Log.w(TAG, "saveIndex: could not replace " + indexFile);
+            }
+        } catch (IOException e) {
+            GNLog.getInstance().logError(TAG, "Error saving offline archive index", e);
+        } finally {
+            IOUtils.close(os);
+        }
+    }
+
+    // private responses are meant for the signed in user only and would outlive their session
+    private static boolean isStorable(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl == null) return true;
+        String lower = cacheControl.toLowerCase(Locale.ROOT);
+        return !lower.contains("no-store") && !lower.contains("private");
+    }
+
+    private static String mimeTypeOf(String contentType, String url) {
+        if (contentType != null) {
+            int semicolon = contentType.indexOf(';');
+            return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+        }
+        String path = url.toLowerCase(Locale.ROOT);
+        if (path.contains(".css")) return "text/css";
+        if (path.contains(".js")) return "application/javascript";
+        return "application/octet-stream";
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            IOUtils.copy(is, baos);
+            return baos.toByteArray();
+        } finally {
+            IOUtils.close(is);
+        }
+    }
+
+    // the fragment never reaches the server
+    private static String key(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+
+    private static String fileName(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key(url).getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(String.format(Locale.US, "%02x", b));
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(key(url).hashCode());
+        }
+    }
+
+    public static class Document {
+        public final String html;
+        private final Entry entry;
+
+        Document(Entry entry, String html) {
+            this.entry = entry;
+            this.html = html;
+        }
+
+        /**
+         * Makes the request conditional on the archived copy having changed.
+         */
+        public void addValidators(HttpURLConnection connection) {
+            entry.addValidators(connection);
+        }
+    }
+
+    private static class Entry {
+        final String url;
+        final String file;
+        final boolean document;
+        String mimeType;
+        String encoding;
+        String etag;
+        String lastModified;
+        String allowOrigin;
+        long size;
+        long savedAt;
+        // not persisted, revalidation is rate limited per process
+        long checkedAt;
+        // OfflineArchive.generation when the fetch started
+        int generation;
+
+        Entry(String url, String file, boolean document) {
+            this.url = url;
+            this.file = file;
+            this.document = document;
+        }
+
+        void readValidators(HttpURLConnection connection) {
+            etag = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+        }
+
+        void addValidators(HttpURLConnection connection) {
+            if (etag != null) connection.setRequestProperty("If-None-Match", etag);
+            if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+
+        JSONObject toJson() throws Exception {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("file", file);
+            json.put("document", document);
+            json.put("mimeType", mimeType);
+            json.put("encoding", encoding);
+            if (etag != null) json.put("etag", etag);
+            if (lastModified != null) json.put("lastModified", lastModified);
+            if (allowOrigin != null) json.put("allowOrigin", allowOrigin);
+            json.put("size", size);
+            json.put("savedAt", savedAt);
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) {
+            if (json == null || json.optString("url").isEmpty() || json.optString("file").isEmpty()) return null;
+            Entry entry = new Entry(json.optString("url"), json.optString("file"), json.optBoolean("document"));
+            entry.mimeType = json.optString("mimeType", "application/octet-stream");
+            entry.encoding = json.optString("encoding", "UTF-8");
+            entry.etag = json.has("etag") ? json.optString("etag") : null;
+            entry.lastModified = json.has("lastModified") ? json.optString("lastModified") : null;
+            entry.allowOrigin = json.has("allowOrigin") ? json.optString("allowOrigin") : null;
+            entry.size = json.optLong("size");
+            entry.savedAt = json.optLong("savedAt");
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package co.median.android;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Records when each phase of a page load happens in the app, from the navigation decision to the
+ * webview being shown, and merges in the page's own PerformanceNavigationTiming. All times are
+ * milliseconds from the start of the navigation, so time spent in the app can be told apart from
+ * time spent waiting on the server. Keeps the most recent navigations of one activity.
+ */
+public class PageLoadTimeline {
+    private static final String TAG = PageLoadTimeline.class.getName();
+
+    public static final String NAVIGATION_REQUESTED = "navigationRequested";
+    public static final String INTERCEPT_START = "htmlInterceptStart";
+    public static final String INTERCEPT_RESPONSE = "htmlInterceptResponse";
+    public static final String INTERCEPT_END = "htmlInterceptEnd";
+    public static final String PAGE_STARTED = "pageStarted";
+    public static final String PAGE_FINISHED = "pageFinished";
+    public static final String INJECTIONS_DONE = "injectionsDone";
+    public static final String FINISHED_BROADCAST = "finishedBroadcast";
+    public static final String READY_INTERACTIVE = "readyInteractive";
+    public static final String READY_COMPLETE = "readyComplete";
+
+    // navigation timing fields kept from the page, converted to offsets from the navigation start
+    private static final String[] PAGE_TIMESTAMPS = {"fetchStart", "domainLookupStart", "connectStart",
+            "requestStart", "responseStart", "responseEnd", "domInteractive",
+            "domContentLoadedEventEnd", "loadEventEnd"};
+    private static final String PAGE_TIMING_JS = "(function() {" +
+            "if (!window.performance || !performance.getEntriesByType) return null;" +
+            "var t = performance.getEntriesByType('navigation')[0];" +
+            "if (!t) return null;" +
+            "var result = t.toJSON();" +
+            "result.timeOrigin = performance.timeOrigin;" +
+            "return result;" +
+            "})()";
+
+    private static final int MAX_NAVIGATIONS = 20;
+    // an unfinished navigation is not continued by a page start this much later
+    private static final long STALE_NAVIGATION_MS = 60 * 1000;
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final ArrayDeque<Navigation> navigations = new ArrayDeque<>();
+
+    /**
+     * Starts a new navigation, unless url is a redirect of the navigation in progress or the
+     * navigation in progress was already begun for url. The activity begins history navigations
+     * with a null url, which the first begin or page start fills in.
+     * @return id of the navigation
+     */
+    public synchronized int begin(String url, boolean isRedirect) {
+        Navigation current = navigations.peekLast();
+        if (current != null && isInProgress(current)) {
+            if (isRedirect) {
+                current.redirects++;
+                current.url = url;
+                return current.id;
+            }
+            if (current.url == null || current.url.equals(url)) {
+                if (url != null) current.url = url;
+                return current.id;
+            }
+        }
+        return start(url).id;
+    }
+
+    private Navigation start(String url) {
+        Navigation navigation = new Navigation(nextId.getAndIncrement(), url);
+        navigations.addLast(navigation);
+        while (navigations.size() > MAX_NAVIGATIONS) {
+            navigations.removeFirst();
+        }
+        return navigation;
+    }
+
+    /**
+     * Marks the start of the html intercept. A document request that no navigation was begun for,
+     * such as a restored page, starts its navigation here.
+     * @return id of the navigation, for marking the rest of the intercept
+     */
+    public synchronized int interceptStarted(String url) {
+        Navigation current = navigations.peekLast();
+        if (current == null || !isInProgress(current)) {
+            current = start(url);
+        } else if (current.url == null) {
+            current.url = url;
+        }
+        current.mark(INTERCEPT_START);
+        return current.id;
+    }
+
+    /**
+     * Marks the page start. Loads that no navigation was begun for start their navigation here.
+     */
+    public synchronized void pageStarted(String url) {
+        Navigation current = navigations.peekLast();
+        if (current == null || !isInProgress(current)) {
+            current = start(url);
+        }
+        current.url = url;
+        current.mark(PAGE_STARTED);
+    }
+
+    // begun recently and its page has not started yet
+    private static boolean isInProgress(Navigation navigation) {
+        return !navigation.marks.containsKey(PAGE_STARTED)
+                && SystemClock.elapsedRealtime() - navigation.startedAt <= STALE_NAVIGATION_MS;
+    }
+
+    /**
+     * Records the phase for the navigation with the given id. Marks for a navigation that is no
+     * longer kept, or for id 0, are ignored, so a late callback from an earlier page never lands on
+     * the next one. Only the first time a phase is reached counts, so repeated callbacks do not
+     * move it.
+     */
+    public synchronized void mark(int id, String phase) {
+        Navigation navigation = find(id);
+        if (navigation != null) navigation.mark(phase);
+    }
+
+    /**
+     * @return id of the most recent navigation that ended up at url, or 0 if there is none
+     */
+    public synchronized int findId(String url) {
+        if (url == null) return 0;
+        Iterator<Navigation> it = navigations.descendingIterator();
+        while (it.hasNext()) {
+            Navigation navigation = it.next();
+            if (url.equals(navigation.url)) return navigation.id;
+        }
+        return 0;
+    }
+
+    private Navigation find(int id) {
+        if (id == 0) return null;
+        Iterator<Navigation> it = navigations.descendingIterator();
+        while (it.hasNext()) {
+            Navigation navigation = it.next();
+            if (navigation.id == id) return navigation;
+        }
+        return null;
+    }
+
+    /**
+     * Asks the page for its navigation timing and stores it with the navigation with the given id.
+     * Must be called on the main thread.
+     */
+    public void collectPageTiming(MainActivity activity, int id) {
+        if (id == 0) return;
+        activity.runJavascript(PAGE_TIMING_JS, value -> {
+            if (value == null || !value.startsWith("{")) return;
+            try {
+                setPageTiming(id, new JSONObject(value));
+            } catch (JSONException e) {
+                Log.w(TAG, "collectPageTiming: invalid timing " + value, e);
+            }
+        });
+    }
+
+    private synchronized void setPageTiming(int id, JSONObject timing) {
+        Navigation navigation = find(id);
+        if (navigation == null) return;
+        navigation.pageTiming = timing;
+        if (BuildConfig.DEBUG) Log.d(TAG, navigation.summary());
+    }
+
+    /**
+     * @param limit maximum number of navigations, most recent last
+     */
+    public synchronized JSONObject toJson(int limit) {
+        JSONObject result = new JSONObject();
+        try {
+            JSONArray list = new JSONArray();
+            int skip = Math.max(0, navigations.size() - limit);
+            Iterator<Navigation> it = navigations.iterator();
+            while (it.hasNext()) {
+                Navigation navigation = it.next();
+                if (skip-- > 0) continue;
+                list.put(navigation.toJson());
+            }
+            result.put("navigations", list);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return result;
+    }
+
+    public synchronized void logSummary() {
+        if (navigations.isEmpty()) {
+            Log.i(TAG, "no page loads recorded");
+            return;
+        }
+        for (Navigation navigation : navigations) {
+            Log.i(TAG, navigation.summary());
+        }
+    }
+
+    private static class Navigation {
+        final int id;
+        final long startedAt = SystemClock.elapsedRealtime();
+        // wall clock at the start, to line up the page's timestamps with ours
+        final long startedAtWall = System.currentTimeMillis();
+        final Map<String, Long> marks = new LinkedHashMap<>();
+        String url;
+        int redirects = 0;
+        JSONObject pageTiming;
+
+        Navigation(int id, String url) {
+            this.id = id;
+            this.url = url;
+            marks.put(NAVIGATION_REQUESTED, 0L);
+        }
+
+        void mark(String phase) {
+            if (!marks.containsKey(phase)) {
+                marks.put(phase, SystemClock.elapsedRealtime() - startedAt);
+            }
+        }
+
+        long between(String from, String to) {
+            Long start = marks.get(from);
+            Long end = marks.get(to);
+            if (start == null || end == null) return -1;
+            return end - start;
+        }
+
+        // page timestamp as an offset from the navigation start, or -1
+        long pageOffset(String name) {
+            if (pageTiming == null) return -1;
+            double value = pageTiming.optDouble(name, 0);
+            double timeOrigin = pageTiming.optDouble("timeOrigin", 0);
+            if (value <= 0 || timeOrigin <= 0) return -1;
+            return Math.round(timeOrigin + value - startedAtWall);
+        }
+
+        long pageDuration(String from, String to) {
+            if (pageTiming == null) return -1;
+            double start = pageTiming.optDouble(from, 0);
+            double end = pageTiming.optDouble(to, 0);
+            if (start <= 0 || end <= 0) return -1;
+            return Math.round(end - start);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("url", url);
+            json.put("startTime", startedAtWall);
+            json.put("redirects", redirects);
+
+            JSONObject phases = new JSONObject();
+            for (Map.Entry<String, Long> entry : marks.entrySet()) {
+                phases.put(entry.getKey(), entry.getValue());
+            }
+            json.put("phases", phases);
+
+            if (pageTiming != null) {
+                JSONObject page = new JSONObject();
+                for (String name : PAGE_TIMESTAMPS) {
+                    long offset = pageOffset(name);
+                    if (offset >= 0) page.put(name, offset);
+                }
+                page.put("type", pageTiming.optString("type"));
+                page.put("transferSize", pageTiming.optLong("transferSize"));
+                json.put("page", page);
+            }
+
+            json.put("breakdown", breakdown());
+            return json;
+        }
+
+        JSONObject breakdown() throws JSONException {
+            JSONObject breakdown = new JSONObject();
+            long interceptNetwork = between(INTERCEPT_START, INTERCEPT_RESPONSE);
+            long interceptTotal = between(INTERCEPT_START, INTERCEPT_END);
+            long beforePageStart = between(NAVIGATION_REQUESTED, PAGE_STARTED);
+            long pageFinishedHandler = between(PAGE_FINISHED, INJECTIONS_DONE);
+
+            putIfKnown(breakdown, "beforePageStartMs", beforePageStart);
+            putIfKnown(breakdown, "htmlInterceptNetworkMs", interceptNetwork);
+            putIfKnown(breakdown, "htmlInterceptProcessingMs", between(INTERCEPT_RESPONSE, INTERCEPT_END));
+            putIfKnown(breakdown, "serverResponseMs", pageDuration("requestStart", "responseStart"));
+            putIfKnown(breakdown, "responseDownloadMs", pageDuration("responseStart", "responseEnd"));
+            putIfKnown(breakdown, "pageLoadMs", pageDuration("responseEnd", "loadEventEnd"));
+            putIfKnown(breakdown, "pageFinishedHandlerMs", pageFinishedHandler);
+            putIfKnown(breakdown, "toInteractiveMs", marks.containsKey(READY_INTERACTIVE) ? marks.get(READY_INTERACTIVE) : -1);
+            putIfKnown(breakdown, "toCompleteMs", marks.containsKey(READY_COMPLETE) ? marks.get(READY_COMPLETE) : -1);
+
+            // app time that is not spent waiting for the network
+            if (beforePageStart >= 0 && pageFinishedHandler >= 0) {
+                long nativeOverhead = beforePageStart - Math.max(0, interceptTotal) + pageFinishedHandler;
+                breakdown.put("nativeOverheadMs", Math.max(0, nativeOverhead));
+            }
+            return breakdown;
+        }
+
+        private static void putIfKnown(JSONObject json, String name, long value) throws JSONException {
+            if (value >= 0) json.put(name, value);
+        }
+
+        String summary() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("navigation ").append(id).append(' ').append(url);
+            for (Map.Entry<String, Long> entry : marks.entrySet()) {
+                builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            try {
+                builder.append(' ').append(breakdown());
+            } catch (JSONException e) {
+                // summary without the breakdown
+            }
+            return builder.toString();
+        }
+    }
+}
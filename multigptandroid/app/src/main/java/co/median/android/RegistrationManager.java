@@ -1,15 +1,11 @@
 package co.median.android;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -17,7 +13,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
-import co.median.median_core.GNLog;
 import co.median.median_core.LeanUtils;
 
 /**
@@ -102,62 +97,30 @@ public class RegistrationManager {
         }
 
         void sendRegistrationInfo() {
-            new SendRegistrationTask(context, this, RegistrationManager.this).execute();
+            TelemetryOutbox.getInstance(context).enqueue(postUrl, true,
+                    RegistrationManager.this::buildRegistrationInfo);
         }
     }
 
-    private static class SendRegistrationTask extends AsyncTask<Void,Void,Void> {
-        private RegistrationEndpoint registrationEndpoint;
-        private RegistrationManager registrationManager;
-        private Context context;
+    private JSONObject buildRegistrationInfo() {
+        Map<String, Object> toSend = new HashMap<>();
 
-        SendRegistrationTask(Context context, RegistrationEndpoint registrationEndpoint, RegistrationManager registrationManager) {
-            this.registrationEndpoint = registrationEndpoint;
-            this.registrationManager = registrationManager;
-            this.context = context;
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            Map<String, Object> toSend = new HashMap<>();
-
-            toSend.putAll(Installation.getInfo(registrationManager.context));
-
-            // Append provider info to Map toSend
-            if (((GoNativeApplication) context).getAnalyticsProviderInfo() != null) {
-                toSend.putAll(((GoNativeApplication) context).getAnalyticsProviderInfo());
-            }
+        toSend.putAll(Installation.getInfo(context));
 
-            if (registrationManager.customData != null) {
-                Iterator<String> keys = registrationManager.customData.keys();
-                while(keys.hasNext()) {
-                    String key = keys.next();
-                    toSend.put("customData_" + key, registrationManager.customData.opt(key));
-                }
-            }
+        // Append provider info to Map toSend
+        if (((GoNativeApplication) context).getAnalyticsProviderInfo() != null) {
+            toSend.putAll(((GoNativeApplication) context).getAnalyticsProviderInfo());
+        }
 
-            try {
-                JSONObject json = new JSONObject(toSend);
-
-                URL url = new URL(registrationEndpoint.postUrl);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setDoOutput(true);
-                OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-                writer.write(json.toString());
-                writer.close();
-                connection.connect();
-                int result = connection.getResponseCode();
-
-                if (result < 200 || result > 299) {
-                    Log.w(TAG, "Recevied status code " + result + " when posting to " + registrationEndpoint.postUrl);
-                }
-            } catch (Exception e) {
-                GNLog.getInstance().logError(TAG, "Error posting to " + registrationEndpoint.postUrl, e);
+        JSONObject customData = this.customData;
+        if (customData != null) {
+            Iterator<String> keys = customData.keys();
+            while(keys.hasNext()) {
+                String key = keys.next();
+                toSend.put("customData_" + key, customData.opt(key));
             }
-
-            return null;
         }
+
+        return new JSONObject(toSend);
     }
 }
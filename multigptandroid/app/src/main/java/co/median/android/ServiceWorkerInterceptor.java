@@ -0,0 +1,228 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.webkit.ServiceWorkerClientCompat;
+import androidx.webkit.ServiceWorkerControllerCompat;
+import androidx.webkit.ServiceWorkerWebSettingsCompat;
+import androidx.webkit.WebViewFeature;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.median.median_core.AppConfig;
+import co.median.median_core.GNLog;
+
+/**
+ * Routes requests made by service workers through the same pipeline as page requests, which
+ * WebViewClient.shouldInterceptRequest never sees. Documents are served from the launch and touch
+ * prefetches or the offline archive when possible, otherwise fetched natively with the app's
+ * headers and archived. Scripts, stylesheets and fonts come from the offline archive when offline.
+ * Every request is recorded by NetworkAccounting under a separate page, with the path that served it.
+ */
+public class ServiceWorkerInterceptor extends ServiceWorkerClientCompat {
+    private static final String TAG = ServiceWorkerInterceptor.class.getName();
+    // NetworkAccounting page that worker requests are recorded under
+    public static final String SERVICE_WORKER_PAGE = "service-worker";
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int MAX_REDIRECTS = 5;
+
+    private static boolean installed = false;
+
+    private final Context context;
+
+    private ServiceWorkerInterceptor(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Installs the interceptor and applies the page cache mode to service workers. Must be called
+     * on the main thread, after the WebView has been loaded.
+     */
+    public static void install(Context context) {
+        if (installed) return;
+        installed = true;
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.SERVICE_WORKER_BASIC_USAGE)
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.SERVICE_WORKER_SHOULD_INTERCEPT_REQUEST)) {
+            return;
+        }
+
+        ServiceWorkerControllerCompat controller = ServiceWorkerControllerCompat.getInstance();
+        if (WebViewFeature.isFeatureSupported(WebViewFeature.SERVICE_WORKER_CACHE_MODE)) {
+            ServiceWorkerWebSettingsCompat settings = controller.getServiceWorkerWebSettings();
+            settings.setCacheMode(AppConfig.getInstance(context).cacheMode.webSettingsCacheMode());
+        }
+        controller.setServiceWorkerClient(new ServiceWorkerInterceptor(context));
+    }
+
+    @Nullable
+    @Override
+    public WebResourceResponse shouldInterceptRequest(@NonNull WebResourceRequest request) {
+        NetworkAccounting accounting = NetworkAccounting.getInstance();
+        NetworkAccounting.Request record = accounting.begin(SERVICE_WORKER_PAGE, request);
+        WebResourceResponse response = null;
+        try {
+            response = intercept(request, record);
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error intercepting service worker request " + request.getUrl(), e);
+        }
+        return accounting.end(record, response);
+    }
+
+    private WebResourceResponse intercept(WebResourceRequest request, NetworkAccounting.Request record) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) return null;
+        Uri uri = request.getUrl();
+        if (uri.getScheme() == null || !uri.getScheme().startsWith("http")) return null;
+
+        if (NetworkAccounting.CLASS_DOCUMENT.equals(NetworkAccounting.classify(request))) {
+            return interceptDocument(uri, record);
+        }
+
+        WebResourceResponse response = OfflineArchive.getInstance(context).interceptSubresource(SERVICE_WORKER_PAGE, request);
+        if (response != null) NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_ARCHIVE);
+        return response;
+    }
+
+    // mirrors HtmlIntercept for documents the worker fetches on behalf of a navigation
+    private WebResourceResponse interceptDocument(Uri uri, NetworkAccounting.Request record) {
+        // the page path only fetches documents natively in these cases
+        if (!LaunchAccelerator.shouldPrefetch(AppConfig.getInstance(context))) return null;
+        if (!UrlNavigation.isInternalUri(context, uri)) return null;
+        String url = uri.toString();
+
+        String html = LaunchAccelerator.getInstance().takePrefetchedHtml(url);
+        if (html == null) html = SpeculativePrefetcher.getInstance().take(url);
+        if (html != null) {
+            NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_PREFETCH);
+            return documentResponse(html);
+        }
+
+        OfflineArchive archive = OfflineArchive.getInstance(context);
+        OfflineArchive.Document archived = archive.getDocument(url);
+        if (archived != null && archive.shouldServeArchived()) {
+            archive.revalidate(url);
+            NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_ARCHIVE);
+            return documentResponse(archived.html);
+        }
+
+        try {
+            return fetchDocument(url, archived, record);
+        } catch (IOException e) {
+            if (archived == null) {
+                Log.w(TAG, "fetchDocument: failed for " + url, e);
+                return null;
+            }
+            NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_ARCHIVE);
+            return documentResponse(archived.html);
+        }
+    }
+
+    private WebResourceResponse fetchDocument(String url, OfflineArchive.Document archived,
+                                              NetworkAccounting.Request record) throws IOException {
+        WebkitCookieManagerProxy.installDefault();
+        OfflineArchive archive = OfflineArchive.getInstance(context);
+
+        String location = url;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(CONNECT_TIMEOUT);
+            LaunchAccelerator.setRequestHeaders(context, connection, location);
+            if (archived != null && redirects == 0) archived.addValidators(connection);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && archived != null) {
+                connection.disconnect();
+                archive.onNotModified(url);
+                NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_ARCHIVE);
+                return documentResponse(archived.html);
+            }
+
+            if (responseCode >= 300 && responseCode < 400) {
+                String next = connection.getHeaderField("Location");
+                connection.disconnect();
+                if (TextUtils.isEmpty(next)) return null;
+                location = new URL(new URL(location), next).toString();
+                // leaving the app is decided by the page, not here
+                if (!UrlNavigation.isInternalUri(context, Uri.parse(location))) return null;
+                continue;
+            }
+
+            NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_NATIVE);
+            String contentType = connection.getContentType();
+            if (responseCode != HttpURLConnection.HTTP_OK || contentType == null || !contentType.startsWith("text/html")) {
+                // already on the wire, hand it over as is rather than fetching it again
+                return passResponse(connection, responseCode, contentType);
+            }
+
+            String html;
+            try {
+                html = LaunchAccelerator.readHtml(connection, contentType);
+            } finally {
+                connection.disconnect();
+            }
+            if (redirects == 0) archive.putDocument(url, html, connection);
+            return documentResponse(html);
+        }
+        return null;
+    }
+
+    private static WebResourceResponse passResponse(HttpURLConnection connection, int responseCode, String contentType) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() == null || header.getValue() == null) continue;
+            headers.put(header.getKey(), TextUtils.join(", ", header.getValue()));
+        }
+
+        InputStream data;
+        try {
+            data = connection.getInputStream();
+        } catch (IOException e) {
+            data = connection.getErrorStream();
+        }
+        if (data == null) data = new ByteArrayInputStream(new byte[0]);
+
+        String mimeType = contentType;
+        String encoding = null;
+        if (contentType != null) {
+            int semicolon = contentType.indexOf(';');
+            if (semicolon >= 0) mimeType = contentType.substring(0, semicolon).trim();
+            encoding = HtmlIntercept.getCharset(contentType);
+        }
+        String reason = responseMessage(connection);
+        return new WebResourceResponse(mimeType, encoding, responseCode,
+                TextUtils.isEmpty(reason) ? "OK" : reason, headers, data);
+    }
+
+    private static String responseMessage(HttpURLConnection connection) {
+        try {
+            return connection.getResponseMessage();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private WebResourceResponse documentResponse(String html) {
+        // worker documents end up in a full width WebView
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        String newHtml = HtmlIntercept.injectViewport(context, metrics.widthPixels / metrics.density, html, html.length());
+        return new WebResourceResponse("text/html", "UTF-8",
+                new ByteArrayInputStream(newHtml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,221 @@
+package co.median.android;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.json.JSONObject;
+
+import co.median.median_core.GNLog;
+import co.median.median_core.LeanUtils;
+
+/**
+ * Bridge commands implemented by the app itself instead of the core library or plugins. Handles
+ * median:// urls and JSON messages whose command host it knows, and leaves everything else to
+ * the core bridge.
+ */
+public class ShellBridge {
+    private static final String TAG = ShellBridge.class.getName();
+
+    /**
+     * Handles a JSON message of the form {"medianCommand": "median://...", "data": {...}}.
+     * @return true if the command was handled here
+     */
+    public static boolean handle(MainActivity activity, JSONObject commandObject) {
+        String command = commandObject.optString("medianCommand");
+        if (command.isEmpty()) return false;
+        return handle(activity, Uri.parse(command), commandObject.optJSONObject("data"));
+    }
+
+    /**
+     * @return true if the command was handled here
+     */
+    public static boolean handle(MainActivity activity, Uri uri, JSONObject params) {
+        if (!"median".equals(uri.getScheme()) && !"gonative".equals(uri.getScheme())) return false;
+        String host = uri.getHost();
+        if (host == null || !isShellCommand(host)) return false;
+
+        String currentUrl = activity.getWebView() != null ? activity.getWebView().getUrl() : null;
+        if (currentUrl != null && !LeanUtils.checkNativeBridgeUrls(currentUrl, activity)) {
+            GNLog.getInstance().logError(TAG, "URL not authorized for native bridge: " + currentUrl);
+            return true;
+        }
+
+        if (params == null) params = new JSONObject();
+        String path = uri.getPath() != null ? uri.getPath() : "";
+
+        if ("performance".equals(host)) {
+            handlePerformance(activity, uri, path, params);
+        } else if ("console".equals(host)) {
+            handleConsole(activity, uri, path, params);
+        } else if ("stream".equals(host)) {
+            handleStream(activity, uri, path, params, currentUrl);
+        } else if ("conversations".equals(host)) {
+            handleConversations(activity, uri, path, params);
+        } else if ("kv".equals(host)) {
+            handleKeyValue(activity, uri, path, params);
+        }
+        return true;
+    }
+
+    private static boolean isShellCommand(String host) {
+        return "performance".equals(host) || "console".equals(host) || "stream".equals(host)
+                || "conversations".equals(host) || "kv".equals(host);
+    }
+
+    private static void handleKeyValue(MainActivity activity, Uri uri, String path, JSONObject params) {
+        KeyValueStore store = KeyValueStore.getInstance(activity);
+        String callback = getCallback(uri, params);
+        KeyValueStore.Callback result = data -> sendCallback(activity, callback, data);
+        switch (path) {
+            case "/get":
+                store.get(params.optJSONArray("keys"), result);
+                break;
+            case "/set": {
+                JSONObject values = params.optJSONObject("values");
+                store.set(values != null ? values : new JSONObject(), activity, result);
+                break;
+            }
+            case "/remove":
+                store.remove(params.optJSONArray("keys"), activity, result);
+                break;
+            case "/clear":
+                store.clear(activity, result);
+                break;
+            case "/subscribe":
+                store.subscribe(activity, params.optString("statuscallback"));
+                break;
+            default:
+                GNLog.getInstance().logError(TAG, "Unknown command " + uri);
+        }
+    }
+
+    private static void handleConversations(MainActivity activity, Uri uri, String path, JSONObject params) {
+        ConversationCache cache = ConversationCache.getInstance(activity);
+        String callback = getCallback(uri, params);
+        ConversationCache.Callback result = data -> sendCallback(activity, callback, data);
+        String id = params.optString("id");
+        int limit = params.optInt("limit", 0);
+        if (limit <= 0) limit = Integer.MAX_VALUE;
+        switch (path) {
+            case "/list":
+                cache.list(limit, result);
+                break;
+            case "/get":
+                cache.get(id, limit, result);
+                break;
+            case "/put":
+                cache.putConversation(id, params.optJSONObject("conversation"), result);
+                break;
+            case "/append":
+                cache.appendMessages(id, params.optJSONArray("messages"), result);
+                break;
+            case "/replace":
+                if (params.has("conversation")) cache.putConversation(id, params.optJSONObject("conversation"), null);
+                cache.replaceMessages(id, params.optJSONArray("messages"), result);
+                break;
+            case "/delete":
+                cache.delete(id, result);
+                break;
+            case "/clear":
+                cache.clear(result);
+                break;
+            default:
+                GNLog.getInstance().logError(TAG, "Unknown command " + uri);
+        }
+    }
+
+    private static void handleStream(MainActivity activity, Uri uri, String path, JSONObject params, String currentUrl) {
+        StreamRelay relay = StreamRelay.getInstance(activity);
+        switch (path) {
+            case "/start":
+                sendCallback(activity, getCallback(uri, params), relay.start(activity, currentUrl, params));
+                break;
+            case "/read":
+                sendCallback(activity, getCallback(uri, params),
+                        relay.read(params.optString("id"), params.optInt("maxBytes", 0)));
+                break;
+            case "/cancel":
+                relay.cancel(params.optString("id"));
+                break;
+            case "/list":
+                sendCallback(activity, getCallback(uri, params), relay.toJson());
+                break;
+            default:
+                GNLog.getInstance().logError(TAG, "Unknown command " + uri);
+        }
+    }
+
+    private static void handleConsole(MainActivity activity, Uri uri, String path, JSONObject params) {
+        switch (path) {
+            case "/messages":
+                sendCallback(activity, getCallback(uri, params), ConsoleSink.getInstance().toJson());
+                break;
+            case "/dump":
+                ConsoleSink.getInstance().dumpToLogcat();
+                break;
+            default:
+                GNLog.getInstance().logError(TAG, "Unknown command " + uri);
+        }
+    }
+
+    private static void handlePerformance(MainActivity activity, Uri uri, String path, JSONObject params) {
+        PageLoadTimeline timeline = activity.getPageLoadTimeline();
+        switch (path) {
+            case "/pageLoads":
+                int limit = params.optInt("limit", 0);
+                if (limit <= 0) limit = Integer.MAX_VALUE;
+                sendCallback(activity, getCallback(uri, params), timeline.toJson(limit));
+                break;
+            case "/logPageLoads":
+                timeline.logSummary();
+                break;
+            case "/mainThread":
+                sendCallback(activity, getCallback(uri, params), MainThreadMonitor.getInstance().toJson());
+                break;
+            case "/mainThreadMonitor":
+                if (params.optBoolean("enabled", Boolean.parseBoolean(uri.getQueryParameter("enabled")))) {
+                    MainThreadMonitor.getInstance().enable();
+                } else {
+                    MainThreadMonitor.getInstance().disable();
+                }
+                break;
+            case "/logMainThread":
+                MainThreadMonitor.getInstance().logSummary();
+                break;
+            case "/network": {
+                // picks up requests made since the page finished loading
+                String callback = getCallback(uri, params);
+                boolean details = params.optBoolean("details", false);
+                NetworkAccounting.getInstance().collectResourceTiming(activity, () ->
+                        sendCallback(activity, callback, NetworkAccounting.getInstance().toJson(details)));
+                break;
+            }
+            case "/networkAccounting":
+                NetworkAccounting.getInstance().setEnabled(params.optBoolean("enabled",
+                        Boolean.parseBoolean(uri.getQueryParameter("enabled"))));
+                break;
+            case "/clearNetwork":
+                NetworkAccounting.getInstance().clear();
+                break;
+            case "/executor":
+                sendCallback(activity, getCallback(uri, params), BackgroundExecutor.getInstance().getMetrics());
+                break;
+            case "/cookies":
+                sendCallback(activity, getCallback(uri, params), CookieFlushScheduler.getInstance().getMetrics());
+                break;
+            default:
+                GNLog.getInstance().logError(TAG, "Unknown command " + uri);
+        }
+    }
+
+    static String getCallback(Uri uri, JSONObject params) {
+        String callback = params.optString("callback");
+        if (TextUtils.isEmpty(callback)) callback = uri.getQueryParameter("callback");
+        return callback;
+    }
+
+    static void sendCallback(MainActivity activity, String callback, JSONObject data) {
+        if (TextUtils.isEmpty(callback)) return;
+        activity.runOnUiThread(() -> activity.runJavascript(LeanUtils.createJsForCallback(callback, data)));
+    }
+}
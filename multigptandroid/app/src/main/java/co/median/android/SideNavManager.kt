@@ -17,7 +17,6 @@ import androidx.core.content.ContextCompat
 import androidx.core.view.GravityCompat
 import androidx.drawerlayout.widget.DrawerLayout
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
-import co.median.android.icons.Icon
 import co.median.android.widget.GoNativeDrawerLayout
 import co.median.median_core.AppConfig
 import com.google.android.material.navigation.NavigationView
@@ -174,7 +173,7 @@ class SideNavManager(val main: MainActivity) {
                 val menuItemSize: Int =
                     main.resources.getDimensionPixelSize(R.dimen.action_menu_icon_size)
                 val colorForeground = ContextCompat.getColor(main, R.color.titleTextColor)
-                val drawableIcon = Icon(main, appConfig.sideBarMenuIcon, menuItemSize, colorForeground).getDrawable()
+                val drawableIcon = IconCache.getInstance().getIcon(main, appConfig.sideBarMenuIcon, menuItemSize, colorForeground)
                 setHomeAsUpIndicator(drawableIcon)
             }
         }
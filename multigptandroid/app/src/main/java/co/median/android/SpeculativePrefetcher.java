@@ -0,0 +1,240 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import co.median.median_core.AppConfig;
+import co.median.median_core.GNLog;
+
+/**
+ * Fetches the document behind a link as soon as the user touches it, so that HtmlIntercept can
+ * serve it from memory when the tap turns into a navigation. A fetch started for a touch that
+ * becomes a scroll or long press is cancelled and dropped. Only plain https links without a query
+ * are fetched, and requests carry Sec-Purpose: prefetch so the server can decline them. Documents
+ * are kept briefly and are single-use, like the launch prefetch in LaunchAccelerator. Fetches run
+ * on the network lane, so that touches never hold up the critical lane login checks and client
+ * certificate prompts use.
+ */
+public class SpeculativePrefetcher {
+    private static final String TAG = SpeculativePrefetcher.class.getName();
+    private static final long TTL_MS = 10000;
+    private static final long WAIT_MS = 2000;
+    private static final int MAX_ENTRIES = 3;
+    // links that change server state when fetched are never prefetched
+    private static final String[] UNSAFE_PATH_WORDS = {"logout", "log-out", "signout", "sign-out"};
+
+    private static SpeculativePrefetcher instance = null;
+
+    // insertion ordered so the oldest entry is evicted first
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    // entry for the touch that has not yet become a tap, null once confirmed or cancelled
+    private Entry pending;
+
+    private SpeculativePrefetcher() {
+    }
+
+    public static synchronized SpeculativePrefetcher getInstance() {
+        if (instance == null) {
+            instance = new SpeculativePrefetcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts fetching url for a touch on a link. Does nothing if HtmlIntercept would not fetch the
+     * document natively, or if the url is already cached or in flight.
+     */
+    public void onTouchDown(Context context, String url) {
+        Context appContext = context.getApplicationContext();
+        if (!LaunchAccelerator.shouldPrefetch(AppConfig.getInstance(appContext)) || !isSafe(url)) return;
+
+        String key = key(url);
+        Entry entry;
+        synchronized (this) {
+            cancelPendingLocked();
+            Entry existing = entries.get(key);
+            if (existing != null && !existing.isExpired()) return;
+
+            entry = new Entry(url);
+            entries.put(key, entry);
+            trimLocked();
+            pending = entry;
+        }
+
+        entry.task = BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.NETWORK,
+                BackgroundExecutor.PRIORITY_DEFAULT, () -> fetch(appContext, entry));
+    }
+
+    /**
+     * The touch became a tap, keep the document for the navigation that follows.
+     */
+    public synchronized void onTap() {
+        pending = null;
+    }
+
+    /**
+     * The touch became a scroll, fling or long press, drop its document.
+     */
+    public synchronized void onTouchCancelled() {
+        cancelPendingLocked();
+    }
+
+    private void cancelPendingLocked() {
+        if (pending == null) return;
+        Entry entry = pending;
+        pending = null;
+        entries.remove(key(entry.url));
+        entry.cancel();
+        Log.d(TAG, "cancelled prefetch of " + entry.url);
+    }
+
+    private void trimLocked() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && entries.size() > MAX_ENTRIES) {
+            it.next().cancel();
+            it.remove();
+        }
+    }
+
+    private void fetch(Context context, Entry entry) {
+        long start = SystemClock.elapsedRealtime();
+        String html = null;
+        try {
+            WebkitCookieManagerProxy.installDefault();
+            html = LaunchAccelerator.fetchHtml(context, entry.url, 0, true, entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // cancelling the fetch disconnects the connection, which is not an error
+            if (!entry.isCancelled()) {
+                GNLog.getInstance().logError(TAG, "Error prefetching " + entry.url, e);
+            }
+        }
+
+        synchronized (this) {
+            if (entries.get(key(entry.url)) == entry) {
+                entry.html = html;
+                entry.fetchedAt = SystemClock.elapsedRealtime();
+            }
+        }
+        entry.done.countDown();
+        Log.d(TAG, "prefetch: " + (html != null ? "fetched " : "skipped ") + entry.url + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Returns the prefetched document for url and removes it from the cache. Waits briefly if the
+     * fetch is still in flight. Returns null if there is no usable document.
+     */
+    public String take(String url) {
+        Entry entry;
+        synchronized (this) {
+            if (entries.isEmpty()) return null;
+            entry = entries.get(key(url));
+            if (entry == null) return null;
+            if (pending == entry) pending = null;
+        }
+
+        try {
+            if (!entry.done.await(WAIT_MS, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "take: prefetch not ready, loading normally");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (entries.get(key(url)) == entry) entries.remove(key(url));
+            return entry.html != null && !entry.isExpired() ? entry.html : null;
+        }
+    }
+
+    /**
+     * Cancels in flight fetches and drops cached documents.
+     * @return estimated number of bytes released
+     */
+    public synchronized long release() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.html != null) bytes += entry.html.length() * 2L;
+            entry.cancel();
+        }
+        entries.clear();
+        pending = null;
+        return bytes;
+    }
+
+    private static boolean isSafe(String url) {
+        Uri uri = Uri.parse(url);
+        // a query often carries an action or a one-time token, fetching it twice may not be harmless
+        if (!"https".equals(uri.getScheme()) || uri.getQuery() != null) return false;
+        String lower = url.toLowerCase(Locale.ROOT);
+        for (String word : UNSAFE_PATH_WORDS) {
+            if (lower.contains(word)) return false;
+        }
+        return true;
+    }
+
+    // the fragment never reaches the server
+    private static String key(String url) {
+        int hash = url.indexOf('#');
+        if (hash >= 0) url = url.substring(0, hash);
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static class Entry implements LaunchAccelerator.ConnectionListener {
+        final String url;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile BackgroundExecutor.Task task;
+        String html;
+        long fetchedAt;
+        // guarded by this entry
+        private HttpURLConnection connection;
+        private boolean cancelled;
+
+        Entry(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public synchronized boolean onConnection(HttpURLConnection connection) {
+            if (cancelled) return false;
+            this.connection = connection;
+            return true;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        void cancel() {
+            HttpURLConnection connection;
+            synchronized (this) {
+                cancelled = true;
+                connection = this.connection;
+            }
+            if (task != null) task.cancel(true);
+            // unblocks a read waiting on the socket. Not on the network lane, whose threads may all
+            // be blocked in such reads.
+            if (connection != null) {
+                BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO,
+                        BackgroundExecutor.PRIORITY_HIGH, connection::disconnect);
+            }
+            done.countDown();
+        }
+
+        boolean isExpired() {
+            return fetchedAt > 0 && SystemClock.elapsedRealtime() - fetchedAt > TTL_MS;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package co.median.android;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Runs application startup initializers as a dependency graph. Main thread tasks run inline, in the
+ * order they were added, when start() is called. Background tasks run on BackgroundExecutor's UI
+ * critical I/O lane as soon as all of their dependencies have finished. Every task records its
+ * duration for the startup report.
+ */
+public class StartupTaskGraph {
+    private static final String TAG = StartupTaskGraph.class.getName();
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private long startTime;
+    private long totalDuration = -1;
+    private boolean started = false;
+
+    public StartupTaskGraph addMainTask(String name, Runnable action, String... dependencies) {
+        return addTask(name, true, action, dependencies);
+    }
+
+    public StartupTaskGraph addBackgroundTask(String name, Runnable action, String... dependencies) {
+        return addTask(name, false, action, dependencies);
+    }
+
+    private StartupTaskGraph addTask(String name, boolean mainThread, Runnable action, String... dependencies) {
+        if (started) throw new IllegalStateException("Cannot add task " + name + " after start()");
+        if (tasks.containsKey(name)) throw new IllegalArgumentException("Duplicate startup task " + name);
+
+        Task task = new Task(name, mainThread, action);
+        for (String dependencyName : dependencies) {
+            Task dependency = tasks.get(dependencyName);
+            // dependencies must be declared first, which also rules out cycles
+            if (dependency == null) {
+                throw new IllegalArgumentException("Startup task " + name + " depends on undeclared task " + dependencyName);
+            }
+            // main thread tasks run inline and cannot wait for background work
+            if (mainThread && !dependency.mainThread) {
+                throw new IllegalArgumentException("Main thread task " + name + " cannot depend on background task " + dependencyName);
+            }
+            task.dependencies.add(dependency);
+            dependency.dependents.add(task);
+        }
+        task.pendingDependencies.set(task.dependencies.size());
+        tasks.put(name, task);
+        return this;
+    }
+
+    public void start() {
+        if (started) return;
+        started = true;
+        startTime = SystemClock.elapsedRealtime();
+        remaining.set(tasks.size());
+
+        // background tasks without dependencies can start right away
+        for (Task task : tasks.values()) {
+            if (!task.mainThread && task.dependencies.isEmpty()) {
+                runInBackground(task);
+            }
+        }
+
+        for (Task task : tasks.values()) {
+            if (task.mainThread) run(task);
+        }
+    }
+
+    private void run(Task task) {
+        task.startOffset = SystemClock.elapsedRealtime() - startTime;
+        task.threadName = Thread.currentThread().getName();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            task.action.run();
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Startup task " + task.name + " failed", e);
+        }
+        task.duration = SystemClock.elapsedRealtime() - start;
+        task.done.countDown();
+
+        for (Task dependent : task.dependents) {
+            if (dependent.mainThread) continue;
+            if (dependent.pendingDependencies.decrementAndGet() == 0) {
+                runInBackground(dependent);
+            }
+        }
+
+        if (remaining.decrementAndGet() == 0) {
+            onFinished();
+        }
+    }
+
+    // the first page load waits on startup work such as the custom CSS and JS
+    private void runInBackground(Task task) {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.UI_CRITICAL_IO,
+                BackgroundExecutor.PRIORITY_HIGH, () -> run(task));
+    }
+
+    private void onFinished() {
+        totalDuration = SystemClock.elapsedRealtime() - startTime;
+        Log.d(TAG, "Startup report: " + getReport());
+    }
+
+    /**
+     * Blocks until the named task has finished. Returns immediately for unknown tasks or when the
+     * graph was never started.
+     */
+    public void await(String name) {
+        Task task = tasks.get(name);
+        if (task == null || !started || task.done.getCount() == 0) return;
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "Main thread waiting for startup task " + name);
+        }
+        try {
+            task.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isFinished() {
+        return started && remaining.get() == 0;
+    }
+
+    public JSONObject getReport() {
+        JSONObject report = new JSONObject();
+        try {
+            report.put("finished", isFinished());
+            report.put("totalMs", totalDuration);
+
+            JSONArray taskList = new JSONArray();
+            for (Task task : tasks.values()) {
+                JSONObject entry = new JSONObject();
+                entry.put("name", task.name);
+                entry.put("mainThread", task.mainThread);
+                entry.put("thread", task.threadName);
+                entry.put("startMs", task.startOffset);
+                entry.put("durationMs", task.duration);
+                taskList.put(entry);
+            }
+            report.put("tasks", taskList);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return report;
+    }
+
+    private static class Task {
+        final String name;
+        final boolean mainThread;
+        final Runnable action;
+        final List<Task> dependencies = new ArrayList<>();
+        final List<Task> dependents = new ArrayList<>();
+        final AtomicInteger pendingDependencies = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String threadName;
+        volatile long startOffset = -1;
+        volatile long duration = -1;
+
+        Task(String name, boolean mainThread, Runnable action) {
+            this.name = name;
+            this.mainThread = mainThread;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.lifecycle.Lifecycle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Reads streaming responses (server-sent events or chunked bodies) natively on behalf of the page,
+ * so that a chat answer keeps arriving while the activity is paused and its WebView timers are
+ * stopped. Each stream is read on the STREAMING lane into a bounded file in the cache directory,
+ * and the page drains it over the bridge when it resumes instead of requesting it again. While a
+ * stream is being read, StreamRelayService keeps the process in the foreground so that it is not
+ * frozen in the background. Only app hosts and the page's own origin can be streamed, and
+ * redirects are not followed.
+ */
+public class StreamRelay {
+    private static final String TAG = StreamRelay.class.getName();
+    private static final String DIR_NAME = "stream-relay";
+    private static final int MAX_STREAMS = 4;
+    private static final int CONNECT_TIMEOUT = 15000;
+    // SSE endpoints normally send keep-alive comments well within this
+    private static final int READ_TIMEOUT = 120000;
+    private static final int DEFAULT_READ_BYTES = 64 * 1024;
+    // the longest UTF-8 sequence, a shorter read could never return a whole character
+    private static final int MIN_READ_BYTES = 4;
+    private static final long NOTIFY_INTERVAL_MS = 250;
+    // finished streams the page never drains are dropped after this
+    private static final long FINISHED_TTL_MS = 10 * 60 * 1000;
+
+    interface KeepAlive {
+        /**
+         * Called with true when the first stream task starts and false when the last one exits.
+         */
+        void onStreamsRunning(boolean running);
+    }
+
+    private static StreamRelay instance = null;
+
+    private final File dir;
+    private final long maxBufferBytes;
+    private final KeepAlive keepAlive;
+    private final Map<String, Stream> streams = new LinkedHashMap<>();
+    // stream tasks that have not exited, including cancelled ones still blocked on the socket
+    private int running = 0;
+
+    private StreamRelay(Context context) {
+        this(new File(context.getCacheDir(), DIR_NAME),
+                context.getResources().getInteger(R.integer.stream_relay_max_kb) * 1024L,
+                running -> StreamRelayService.setStreamsRunning(context, running));
+    }
+
+    StreamRelay(File dir, long maxBufferBytes, KeepAlive keepAlive) {
+        this.dir = dir;
+        this.maxBufferBytes = maxBufferBytes;
+        this.keepAlive = keepAlive;
+    }
+
+    public static synchronized StreamRelay getInstance(Context context) {
+        if (instance == null) {
+            instance = new StreamRelay(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Deletes buffers left by a previous process, whose connections are gone.
+     */
+    public void pruneOrphans() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        synchronized (this) {
+            for (File file : files) {
+                if (!streams.containsKey(idOf(file))) file.delete();
+            }
+        }
+    }
+
+    /**
+     * Opens a stream described by params: url, method, headers, body and an optional statuscallback
+     * that is told when data arrives while the activity is resumed.
+     * @return {"id": ...} or {"error": ...}
+     */
+    public JSONObject start(MainActivity activity, String pageUrl, JSONObject params) {
+        String url = params.optString("url");
+        if (!url.startsWith("http://") && !url.startsWith("https://")) return error("Invalid url");
+        // the relay sends WebView cookies, so it may only read what the page could read itself
+        boolean internal = UrlNavigation.isInternalUri(activity, Uri.parse(url));
+        if (!internal && !isSameOrigin(url, pageUrl)) return error("Url not allowed");
+        return start(activity.getApplicationContext(), activity, url, internal, params);
+    }
+
+    JSONObject start(Context context, MainActivity activity, String url, boolean internal, JSONObject params) {
+        Stream stream;
+        boolean first;
+        synchronized (this) {
+            if (running >= MAX_STREAMS) return error("Too many open streams");
+            if (!dir.exists() && !dir.mkdirs()) return error("Cannot create buffer");
+            stream = new Stream(UUID.randomUUID().toString(), url, internal, activity, params);
+            streams.put(stream.id, stream);
+            first = running++ == 0;
+        }
+        if (first) keepAlive.onStreamsRunning(true);
+        // never cancelled, so that it always runs and releases its slot
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.STREAMING,
+                BackgroundExecutor.PRIORITY_DEFAULT, () -> {
+                    try {
+                        run(context, stream);
+                    } finally {
+                        boolean last;
+                        synchronized (this) {
+                            last = --running == 0;
+                        }
+                        if (last) keepAlive.onStreamsRunning(false);
+                    }
+                });
+
+        JSONObject result = new JSONObject();
+        try {
+            result.put("id", stream.id);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private void run(Context context, Stream stream) {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = null;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            WebkitCookieManagerProxy.installDefault();
+            connection = (HttpURLConnection) new URL(stream.url).openConnection();
+            synchronized (stream) {
+                // either this sees the cancel, or cancel() sees the connection to disconnect
+                if (stream.cancelled) return;
+                stream.connection = connection;
+            }
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod(stream.method);
+            // a redirect could take the cookies and headers to another host, hand it to the page instead
+            connection.setInstanceFollowRedirects(false);
+            // the app's custom headers are meant for its own hosts only
+            if (stream.internal) LaunchAccelerator.setRequestHeaders(context, connection, stream.url);
+            connection.setRequestProperty("Accept", "text/event-stream");
+            // the page's own headers win, e.g. Accept and Authorization
+            if (stream.headers != null) {
+                Iterator<String> names = stream.headers.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    connection.setRequestProperty(name, stream.headers.optString(name));
+                }
+            }
+            if (stream.body != null) {
+                byte[] body = stream.body.getBytes(StandardCharsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            synchronized (stream) {
+                stream.status = status;
+                stream.contentType = connection.getContentType();
+            }
+            is = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            os = new FileOutputStream(stream.file, true);
+
+            byte[] buffer = new byte[8192];
+            int read;
+            while (is != null && (read = is.read(buffer)) != -1) {
+                synchronized (stream) {
+                    if (stream.cancelled) break;
+                    if (stream.written - stream.readOffset + read > maxBufferBytes) {
+                        // the page is not draining, stop rather than drop data in the middle
+                        stream.error = "Buffer full";
+                        break;
+                    }
+                    os.write(buffer, 0, read);
+                    stream.written += read;
+                }
+                notifyPage(stream, false);
+            }
+        } catch (IOException e) {
+            synchronized (stream) {
+                if (!stream.cancelled) stream.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            }
+            Log.w(TAG, "run: stream " + stream.id + " failed", e);
+        } catch (Exception e) {
+            synchronized (stream) {
+                stream.error = e.getMessage();
+            }
+            GNLog.getInstance().logError(TAG, "Error relaying stream " + stream.url, e);
+        } finally {
+            IOUtils.close(is);
+            IOUtils.close(os);
+            if (connection != null) connection.disconnect();
+        }
+
+        synchronized (stream) {
+            stream.done = true;
+            stream.finishedAt = SystemClock.elapsedRealtime();
+        }
+        Log.d(TAG, "run: stream " + stream.id + " finished with " + stream.written + " bytes in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        notifyPage(stream, true);
+        BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_LOW,
+                FINISHED_TTL_MS, this::dropExpired);
+    }
+
+    /**
+     * Returns up to maxBytes of data that has not been read yet, cut at a UTF-8 character
+     * boundary. A finished stream is released once everything has been read.
+     */
+    public JSONObject read(String id, int maxBytes) {
+        Stream stream;
+        synchronized (this) {
+            stream = streams.get(id);
+        }
+        if (stream == null) return error("Unknown stream");
+        if (maxBytes <= 0) maxBytes = DEFAULT_READ_BYTES;
+        maxBytes = Math.max(maxBytes, MIN_READ_BYTES);
+
+        JSONObject result = new JSONObject();
+        boolean release;
+        synchronized (stream) {
+            stream.notified = false;
+            String data = "";
+            long available = stream.written - stream.readOffset;
+            if (available > 0) {
+                try {
+                    byte[] bytes = readBytes(stream.file, stream.readOffset, (int) Math.min(available, maxBytes));
+                    // a partial character at the end waits for the next read, unless nothing more is coming
+                    int length = stream.done && bytes.length == available ? bytes.length : utf8Boundary(bytes);
+                    data = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                    stream.readOffset += length;
+                } catch (IOException e) {
+                    GNLog.getInstance().logError(TAG, "Error reading stream buffer " + id, e);
+                    return error(e.getMessage());
+                }
+            }
+            // everything written has been handed over, start the file over
+            if (stream.readOffset == stream.written && stream.written > 0) {
+                truncate(stream);
+            }
+            release = stream.done && stream.readOffset == stream.written;
+            try {
+                result.put("id", id);
+                result.put("data", data);
+                result.put("done", release);
+                putState(stream, result);
+            } catch (JSONException e) {
+                GNLog.getInstance().logError(TAG, e.getMessage(), e);
+            }
+        }
+        if (release) remove(stream);
+        return result;
+    }
+
+    public void cancel(String id) {
+        Stream stream;
+        synchronized (this) {
+            stream = streams.get(id);
+        }
+        if (stream == null) return;
+        HttpURLConnection connection;
+        synchronized (stream) {
+            stream.cancelled = true;
+            connection = stream.connection;
+        }
+        // unblocks a read waiting on the socket
+        if (connection != null) {
+            BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.NETWORK, connection::disconnect);
+        }
+        remove(stream);
+    }
+
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray list = new JSONArray();
+            for (Stream stream : streams.values()) {
+                synchronized (stream) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("id", stream.id);
+                    entry.put("url", stream.url);
+                    entry.put("available", stream.written - stream.readOffset);
+                    entry.put("finished", stream.done);
+                    putState(stream, entry);
+                    list.put(entry);
+                }
+            }
+            json.put("streams", list);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    /**
+     * Tells the page about streams that received data while the activity was paused.
+     */
+    public void onActivityResumed(MainActivity activity) {
+        Stream[] open;
+        synchronized (this) {
+            if (streams.isEmpty()) return;
+            open = streams.values().toArray(new Stream[0]);
+        }
+        for (Stream stream : open) {
+            if (stream.activity.get() != activity) continue;
+            synchronized (stream) {
+                stream.lastNotifiedAt = 0;
+                stream.notified = false;
+            }
+            notifyPage(stream, stream.done);
+        }
+    }
+
+    // at most one notification per interval, and none until the page reads what it was told about
+    private void notifyPage(Stream stream, boolean force) {
+        if (TextUtils.isEmpty(stream.statusCallback)) return;
+        MainActivity activity = stream.activity.get();
+        if (activity == null || !activity.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) return;
+
+        JSONObject status = new JSONObject();
+        synchronized (stream) {
+            long now = SystemClock.elapsedRealtime();
+            if (!force && (stream.notified || now - stream.lastNotifiedAt < NOTIFY_INTERVAL_MS)) return;
+            stream.notified = true;
+            stream.lastNotifiedAt = now;
+            try {
+                status.put("id", stream.id);
+                status.put("available", stream.written - stream.readOffset);
+                status.put("finished", stream.done);
+                putState(stream, status);
+            } catch (JSONException e) {
+                GNLog.getInstance().logError(TAG, e.getMessage(), e);
+            }
+        }
+        ShellBridge.sendCallback(activity, stream.statusCallback, status);
+    }
+
+    private void dropExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Stream[] all;
+        synchronized (this) {
+            all = streams.values().toArray(new Stream[0]);
+        }
+        for (Stream stream : all) {
+            if (stream.done && now - stream.finishedAt >= FINISHED_TTL_MS) {
+                Log.d(TAG, "dropExpired: stream " + stream.id + " was never drained");
+                remove(stream);
+            }
+        }
+    }
+
+    private void remove(Stream stream) {
+        synchronized (this) {
+            if (streams.get(stream.id) == stream) streams.remove(stream.id);
+        }
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_LOW, () -> {
+            synchronized (stream) {
+                stream.file.delete();
+            }
+        });
+    }
+
+    private void truncate(Stream stream) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(stream.file, "rw");
+            file.setLength(0);
+            stream.written = 0;
+            stream.readOffset = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "truncate: failed for " + stream.id, e);
+        } finally {
+            IOUtils.close(file);
+        }
+    }
+
+    private static byte[] readBytes(File file, long offset, int length) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(offset);
+            byte[] bytes = new byte[length];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            IOUtils.close(raf);
+        }
+    }
+
+    // length of the longest prefix of bytes that does not end inside a UTF-8 sequence
+    static int utf8Boundary(byte[] bytes) {
+        int length = bytes.length;
+        int i = length - 1;
+        int continuation = 0;
+        while (i >= 0 && continuation < 3 && (bytes[i] & 0xC0) == 0x80) {
+            i--;
+            continuation++;
+        }
+        if (i < 0) return length;
+        int lead = bytes[i] & 0xFF;
+        int expected = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return continuation + 1 < expected ? i : length;
+    }
+
+    private static void putState(Stream stream, JSONObject json) throws JSONException {
+        if (stream.status > 0) json.put("status", stream.status);
+        if (stream.contentType != null) json.put("contentType", stream.contentType);
+        if (stream.error != null) json.put("error", stream.error);
+    }
+
+    private static boolean isSameOrigin(String url, String pageUrl) {
+        if (pageUrl == null) return false;
+        Uri a = Uri.parse(url);
+        Uri b = Uri.parse(pageUrl);
+        return a.getScheme() != null && a.getScheme().equalsIgnoreCase(b.getScheme())
+                && a.getHost() != null && a.getHost().equalsIgnoreCase(b.getHost())
+                && a.getPort() == b.getPort();
+    }
+
+    private static JSONObject error(String message) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("error", message);
+        } catch (JSONException e) {
+            GNLog.getInstance().logError(TAG, e.getMessage(), e);
+        }
+        return json;
+    }
+
+    private String idOf(File file) {
+        String name = file.getName();
+        return name.endsWith(".buf") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    private class Stream {
+        final String id;
+        final String url;
+        // an app host, which gets the app's custom headers
+        final boolean internal;
+        final String method;
+        final JSONObject headers;
+        final String body;
+        final String statusCallback;
+        final WeakReference<MainActivity> activity;
+        final File file;
+        HttpURLConnection connection;
+
+        int status;
+        String contentType;
+        String error;
+        // bytes written to and consumed from the buffer file
+        long written;
+        long readOffset;
+        boolean done;
+        boolean cancelled;
+        long finishedAt;
+        boolean notified;
+        long lastNotifiedAt;
+
+        Stream(String id, String url, boolean internal, MainActivity activity, JSONObject params) {
+            this.id = id;
+            this.url = url;
+            this.internal = internal;
+            this.method = params.optString("method", "GET").toUpperCase(Locale.ROOT);
+            this.headers = params.optJSONObject("headers");
+            this.body = params.has("body") && !params.isNull("body") ? params.optString("body") : null;
+            this.statusCallback = params.optString("statuscallback");
+            this.activity = new WeakReference<>(activity);
+            this.file = new File(dir, id + ".buf");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package co.median.android;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Foreground service that runs while StreamRelay is reading streams, so that the process is not
+ * frozen or killed as a cached app once the user leaves it in the middle of an answer. It stops
+ * itself when the last stream finishes.
+ */
+public class StreamRelayService extends Service {
+    private static final String TAG = StreamRelayService.class.getName();
+    private static final String CHANNEL_ID = "stream_relay";
+    private static final int NOTIFICATION_ID = 7301;
+
+    private static boolean streamsRunning = false;
+    // set once startForeground has been called, before then a stop is left to onStartCommand
+    private static boolean foreground = false;
+
+    /**
+     * Starts the service when the first stream starts and stops it when the last one exits.
+     */
+    static void setStreamsRunning(Context context, boolean running) {
+        Context appContext = context.getApplicationContext();
+        boolean stop;
+        synchronized (StreamRelayService.class) {
+            streamsRunning = running;
+            stop = !running && foreground;
+        }
+        if (running) {
+            try {
+                ContextCompat.startForegroundService(appContext, new Intent(appContext, StreamRelayService.class));
+            } catch (Exception e) {
+                // e.g. not allowed from the background, the streams still run while the app is active
+                Log.w(TAG, "setStreamsRunning: could not start service", e);
+            }
+        } else if (stop) {
+            appContext.stopService(new Intent(appContext, StreamRelayService.class));
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // startForegroundService requires this even if the streams are already done
+        try {
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, createNotification(),
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC : 0);
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error starting foreground service", e);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        boolean stop;
+        synchronized (StreamRelayService.class) {
+            foreground = true;
+            stop = !streamsRunning;
+        }
+        // a later start for new streams keeps the service running
+        if (stop) stopSelf(startId);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onTimeout(int startId, int fgsType) {
+        // data sync services get a few hours a day, the streams go on without the service
+        Log.w(TAG, "onTimeout: stopping");
+        stopSelf();
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (StreamRelayService.class) {
+            foreground = false;
+        }
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private Notification createNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            if (manager != null && manager.getNotificationChannel(CHANNEL_ID) == null) {
+                manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                        getString(R.string.stream_relay_channel), NotificationManager.IMPORTANCE_MIN));
+            }
+        }
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setContentTitle(getString(R.string.stream_relay_notification))
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .setOngoing(true)
+                .build();
+    }
+}
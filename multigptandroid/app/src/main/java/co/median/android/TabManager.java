@@ -159,6 +159,15 @@ public class TabManager implements NavigationBarView.OnItemSelectedListener {
     }
 
     private void setTabs(JSONArray tabs) {
+        Tracing.beginSection("TabManager.setTabs");
+        try {
+            doSetTabs(tabs);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private void doSetTabs(JSONArray tabs) {
         this.tabs = tabs;
 
         if (tabs == null) {
@@ -0,0 +1,386 @@
+package co.median.android;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Durable queue for fire-and-forget POSTs such as registration info and launch events. Payloads
+ * are stored on disk before they are sent, so nothing is lost while offline. Identical pending
+ * payloads for an endpoint are stored once, and sends are debounced so a burst of navigations
+ * turns into a single pass over the queue. Failed sends are retried with exponential backoff and
+ * jitter, and right away when the network comes back.
+ */
+public class TelemetryOutbox {
+    private static final String TAG = TelemetryOutbox.class.getName();
+    private static final String OUTBOX_FILE = "telemetryOutbox.json";
+    private static final long FLUSH_DELAY_MS = 2000;
+    static final long BASE_BACKOFF_MS = 30 * 1000;
+    static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+    private static final long MAX_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int MAX_ENTRIES = 200;
+    private static final int TIMEOUT_MS = 15000;
+
+    private static TelemetryOutbox instance = null;
+
+    private final File file;
+    private final Sender sender;
+    private final boolean autoFlush;
+    private final Random random = new Random();
+    private final List<Entry> entries = new ArrayList<>();
+    private boolean loaded = false;
+    private boolean flushing = false;
+    private BackgroundExecutor.Task scheduledFlush;
+    private long scheduledFlushAt = Long.MAX_VALUE;
+
+    private TelemetryOutbox(Context context) {
+        this(new File(context.getApplicationContext().getFilesDir(), OUTBOX_FILE), TelemetryOutbox::post, true);
+        registerNetworkCallback(context.getApplicationContext());
+    }
+
+    /**
+     * @param autoFlush false to only send when flush() is called
+     */
+    TelemetryOutbox(File file, Sender sender, boolean autoFlush) {
+        this.file = file;
+        this.sender = sender;
+        this.autoFlush = autoFlush;
+    }
+
+    public static synchronized TelemetryOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new TelemetryOutbox(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a POST of the payload built by the supplier. The payload is built on a background
+     * thread. If latestOnly is true, the payload describes current state and replaces anything
+     * still pending for the endpoint. Every call results in a send unless the same payload is
+     * already pending. What the endpoint received before is never consulted.
+     */
+    public void enqueue(String url, boolean latestOnly, Callable<JSONObject> payloadSupplier) {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.NETWORK, BackgroundExecutor.PRIORITY_LOW, () -> {
+            String payload;
+            try {
+                payload = payloadSupplier.call().toString();
+            } catch (Exception e) {
+                GNLog.getInstance().logError(TAG, "Error creating payload for " + url, e);
+                return;
+            }
+            add(url, payload, latestOnly);
+        });
+    }
+
+    synchronized void add(String url, String payload, boolean latestOnly) {
+        ensureLoaded();
+        int hash = payload.hashCode();
+
+        for (Entry entry : entries) {
+            if (entry.superseded) continue;
+            if (entry.url.equals(url) && entry.hash == hash && entry.payload.equals(payload)) return;
+        }
+        if (latestOnly) {
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!entry.url.equals(url)) continue;
+                // an entry being sent right now is removed when its response arrives, and must
+                // not be retried after this one if that response is a failure
+                if (entry.inFlight) {
+                    entry.superseded = true;
+                } else {
+                    it.remove();
+                }
+            }
+        }
+
+        entries.add(new Entry(url, payload, System.currentTimeMillis()));
+        while (entries.size() > MAX_ENTRIES) {
+            Entry dropped = entries.remove(0);
+            Log.w(TAG, "Outbox full, dropping oldest entry for " + dropped.url);
+        }
+        save();
+        scheduleFlush(FLUSH_DELAY_MS);
+    }
+
+    private synchronized void scheduleFlush(long delayMs) {
+        if (!autoFlush) return;
+        long flushAt = System.currentTimeMillis() + delayMs;
+        // an earlier flush already covers this one
+        if (scheduledFlush != null && !scheduledFlush.isDone() && scheduledFlushAt <= flushAt) return;
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        scheduledFlushAt = flushAt;
+        scheduledFlush = BackgroundExecutor.getInstance().schedule(BackgroundExecutor.Lane.NETWORK,
+                BackgroundExecutor.PRIORITY_LOW, delayMs, this::flush);
+    }
+
+    void flush() {
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            scheduledFlushAt = Long.MAX_VALUE;
+            if (flushing) return;
+            ensureLoaded();
+            long now = System.currentTimeMillis();
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (now - entry.createdAt > MAX_AGE_MS) {
+                    Log.w(TAG, "Dropping expired entry for " + entry.url);
+                    it.remove();
+                } else if (entry.nextAttemptAt <= now) {
+                    entry.inFlight = true;
+                    due.add(entry);
+                }
+            }
+            if (due.isEmpty()) {
+                save();
+                scheduleNextRetry();
+                return;
+            }
+            flushing = true;
+        }
+
+        // sent one after another so requests to the same host reuse the connection
+        for (Entry entry : due) {
+            int responseCode = sender.post(entry.url, entry.payload);
+            synchronized (this) {
+                entry.inFlight = false;
+                if (isDone(responseCode)) {
+                    entries.remove(entry);
+                    if (responseCode < 200 || responseCode > 299) Log.w(TAG, "Received status code " + responseCode + " when posting to " + entry.url + ", dropping");
+                } else if (entry.superseded) {
+                    // a newer payload for the endpoint is queued, this one would overwrite it
+                    entries.remove(entry);
+                } else {
+                    entry.attempts++;
+                    entry.nextAttemptAt = System.currentTimeMillis() + backoffMs(entry.attempts, random.nextDouble());
+                }
+            }
+        }
+
+        synchronized (this) {
+            flushing = false;
+            save();
+            scheduleNextRetry();
+        }
+    }
+
+    // responses that retrying would not change
+    private static boolean isDone(int responseCode) {
+        if (responseCode <= 0) return false;
+        if (responseCode == 408 || responseCode == 429) return false;
+        return responseCode < 500;
+    }
+
+    /**
+     * Delay before the next attempt after the given number of failed ones.
+     * @param random uniformly distributed in [0, 1)
+     */
+    static long backoffMs(int attempts, double random) {
+        long backoff = BASE_BACKOFF_MS << Math.min(attempts - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        // full jitter over the upper half, so clients that failed together do not retry together
+        return backoff / 2 + (long) (random * (backoff / 2));
+    }
+
+    private synchronized void scheduleNextRetry() {
+        long next = Long.MAX_VALUE;
+        for (Entry entry : entries) {
+            next = Math.min(next, entry.nextAttemptAt);
+        }
+        if (next == Long.MAX_VALUE) return;
+        scheduleFlush(Math.max(0, next - System.currentTimeMillis()));
+    }
+
+    private static int post(String url, String payload) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(payload);
+            writer.close();
+            int responseCode = connection.getResponseCode();
+
+            // read the body to the end so the connection can be reused
+            InputStream is = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (is != null) {
+                byte[] buffer = new byte[1024];
+                //noinspection StatementWithEmptyBody
+                while (is.read(buffer) != -1) {
+                }
+                is.close();
+            }
+            return responseCode;
+        } catch (Exception e) {
+            Log.w(TAG, "Error posting to " + url + ", will retry", e);
+            return -1;
+        }
+    }
+
+    private void registerNetworkCallback(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) return;
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        try {
+            connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    onNetworkAvailable();
+                }
+            });
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error registering network callback", e);
+        }
+    }
+
+    private synchronized void onNetworkAvailable() {
+        if (!loaded || entries.isEmpty()) return;
+        // failures were most likely caused by being offline, retry now instead of waiting
+        for (Entry entry : entries) {
+            entry.nextAttemptAt = 0;
+        }
+        scheduleFlush(FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Loads queued entries from a previous run and sends them.
+     */
+    public void start() {
+        BackgroundExecutor.getInstance().execute(BackgroundExecutor.Lane.NETWORK, BackgroundExecutor.PRIORITY_LOW, () -> {
+            synchronized (this) {
+                ensureLoaded();
+                if (!entries.isEmpty()) scheduleFlush(FLUSH_DELAY_MS);
+            }
+        });
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        if (!file.exists()) return;
+
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            IOUtils.copy(is, baos);
+            JSONObject json = new JSONObject(baos.toString("UTF-8"));
+            JSONArray list = json.optJSONArray("entries");
+            if (list != null) {
+                for (int i = 0; i < list.length(); i++) {
+                    Entry entry = Entry.fromJson(list.optJSONObject(i));
+                    if (entry != null) entries.add(entry);
+                }
+            }
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error reading outbox", e);
+        } finally {
+            IOUtils.close(is);
+        }
+    }
+
+    private void save() {
+        Tracing.setCounter("TelemetryOutbox.pending", entries.size());
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            JSONArray list = new JSONArray();
+            for (Entry entry : entries) {
+                if (!entry.superseded) list.put(entry.toJson());
+            }
+            JSONObject json = new JSONObject();
+            json.put("entries", list);
+
+            os = new FileOutputStream(tempFile);
+            os.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            os.getFD().sync();
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "save: could not replace " + file);
+            }
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error saving outbox", e);
+        } finally {
+            IOUtils.close(os);
+        }
+    }
+
+    interface Sender {
+        /**
+         * @return the HTTP status code, or -1 if the request could not be made
+         */
+        int post(String url, String payload);
+    }
+
+    private static class Entry {
+        final String url;
+        final String payload;
+        final int hash;
+        final long createdAt;
+        int attempts = 0;
+        long nextAttemptAt = 0;
+        boolean inFlight = false;
+        boolean superseded = false;
+
+        Entry(String url, String payload, long createdAt) {
+            this.url = url;
+            this.payload = payload;
+            this.hash = payload.hashCode();
+            this.createdAt = createdAt;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("payload", payload);
+            json.put("createdAt", createdAt);
+            json.put("attempts", attempts);
+            json.put("nextAttemptAt", nextAttemptAt);
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) {
+            if (json == null) return null;
+            String url = json.optString("url", null);
+            String payload = json.optString("payload", null);
+            if (url == null || payload == null) return null;
+            Entry entry = new Entry(url, payload, json.optLong("createdAt", System.currentTimeMillis()));
+            entry.attempts = json.optInt("attempts", 0);
+            entry.nextAttemptAt = json.optLong("nextAttemptAt", 0);
+            return entry;
+        }
+    }
+}
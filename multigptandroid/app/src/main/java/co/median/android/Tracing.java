@@ -0,0 +1,52 @@
+package co.median.android;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thin layer over android.os.Trace for systrace and Perfetto captures. Sections use constant names
+ * so nothing is allocated on hot paths. Async sections and counters exist from API 29, where
+ * Trace.isEnabled also lets callers skip building dynamic names when no capture is running.
+ * Sync sections must be ended on the thread that began them, async sections can end anywhere.
+ */
+public final class Tracing {
+    private static final AtomicInteger nextCookie = new AtomicInteger(1);
+
+    private Tracing() {
+    }
+
+    public static boolean isEnabled() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && Trace.isEnabled();
+    }
+
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Begins a section that may end on another thread.
+     * @return cookie to pass to endAsyncSection, 0 if no capture is running
+     */
+    public static int beginAsyncSection(String name) {
+        if (!isEnabled()) return 0;
+        int cookie = nextCookie.getAndIncrement();
+        Trace.beginAsyncSection(name, cookie);
+        return cookie;
+    }
+
+    public static void endAsyncSection(String name, int cookie) {
+        if (cookie == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        Trace.endAsyncSection(name, cookie);
+    }
+
+    public static void setCounter(String name, long value) {
+        if (!isEnabled()) return;
+        Trace.setCounter(name, value);
+    }
+}
@@ -0,0 +1,175 @@
+package co.median.android
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import android.net.Uri
+import android.util.Log
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Downscales images picked or captured for upload. Images are decoded with inSampleSize close to
+ * the target size instead of at full resolution, files are processed on the bounded compute lane,
+ * bitmaps are reused through BitmapPool, and the JPEG output is written straight to the cache file.
+ * Work is cancelled when the owning lifecycle is destroyed.
+ */
+class UploadImagePipeline(context: Context, lifecycle: Lifecycle) {
+    private val appContext = context.applicationContext
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+    // the compute lane bounds how many images are decoded at once
+    private val dispatcher = BackgroundExecutor.getInstance()
+        .asExecutor(BackgroundExecutor.Lane.COMPUTE).asCoroutineDispatcher()
+
+    init {
+        lifecycle.addObserver(LifecycleEventObserver { _, event ->
+            if (event == Lifecycle.Event.ON_DESTROY) scope.cancel()
+        })
+    }
+
+    /**
+     * Scales every image so its short side is shortSide pixels and saves it as a JPEG in the
+     * downloads cache. The callback gets the resulting uris in the same order, on the main thread.
+     */
+    fun resizeImages(uris: Array<Uri>, shortSide: Int, callback: FilesCallback?): Job {
+        return scope.launch {
+            try {
+                val results = uris.mapIndexed { index, uri ->
+                    async(dispatcher) { resizeImage(uri, shortSide, outputFile(index)) }
+                }.awaitAll()
+                callback?.onSuccess(results.map { MediaFileHelper.fileToUri(appContext, it) }.toTypedArray())
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                callback?.onFailure(e)
+            }
+        }
+    }
+
+    private fun outputFile(index: Int): File {
+        val downloadsCacheDir = File(appContext.cacheDir, "downloads")
+        if (!downloadsCacheDir.exists())
+            downloadsCacheDir.mkdirs()
+
+        // Should only have one instance per position to save storage
+        val name = if (index == 0) "temp_capture_image.jpg" else "temp_capture_image_$index.jpg"
+        return File(downloadsCacheDir, name)
+    }
+
+    private suspend fun resizeImage(uri: Uri, shortSide: Int, outputFile: File): File {
+        val decoded = decodeSampled(uri, shortSide)
+        var scaled: Bitmap? = null
+        try {
+            currentCoroutineContext().ensureActive()
+
+            val isPortrait = decoded.height > decoded.width
+            val scaleFactor = shortSide.toFloat() / min(decoded.width, decoded.height)
+            val newLongSide = ((if (isPortrait) decoded.height else decoded.width) * scaleFactor).roundToInt()
+            val targetWidth = if (isPortrait) shortSide else newLongSide
+            val targetHeight = if (isPortrait) newLongSide else shortSide
+
+            val output = if (decoded.width == targetWidth && decoded.height == targetHeight) {
+                decoded
+            } else {
+                val target = BitmapPool.get(targetWidth, targetHeight)
+                    ?: Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888)
+                Canvas(target).drawBitmap(decoded, null, Rect(0, 0, targetWidth, targetHeight), SCALE_PAINT)
+                scaled = target
+                target
+            }
+
+            // the input may be the previous output file, so only replace it once encoding succeeded
+            val tempFile = File(outputFile.parentFile, outputFile.name + ".tmp")
+            BufferedOutputStream(FileOutputStream(tempFile)).use { outputStream ->
+                if (!output.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream)) {
+                    throw IOException("Failed to encode image")
+                }
+            }
+            if (!tempFile.renameTo(outputFile)) {
+                tempFile.delete()
+                throw IOException("Failed to save image to $outputFile")
+            }
+            return outputFile
+        } finally {
+            BitmapPool.put(decoded)
+            if (scaled != null) BitmapPool.put(scaled)
+        }
+    }
+
+    private fun decodeSampled(uri: Uri, shortSide: Int): Bitmap {
+        val contentResolver = appContext.contentResolver
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, bounds) }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw IOException("Failed to decode image")
+        }
+
+        // largest power of two that keeps the short side at or above the target
+        var sampleSize = 1
+        while (min(bounds.outWidth, bounds.outHeight) / (sampleSize * 2) >= shortSide) {
+            sampleSize *= 2
+        }
+        // very long panoramas can still be too large after that
+        while ((bounds.outWidth / sampleSize).toLong() * (bounds.outHeight / sampleSize) > MAX_DECODE_PIXELS) {
+            sampleSize *= 2
+        }
+
+        val sampledWidth = (bounds.outWidth + sampleSize - 1) / sampleSize
+        val sampledHeight = (bounds.outHeight + sampleSize - 1) / sampleSize
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = sampleSize
+            inMutable = true
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+            inBitmap = BitmapPool.getForDecode(sampledWidth, sampledHeight)
+        }
+
+        val bitmap = try {
+            contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, options) }
+        } catch (e: IllegalArgumentException) {
+            // the pooled bitmap could not be reused for this image
+            Log.w(TAG, "decodeSampled: retrying without a pooled bitmap", e)
+            BitmapPool.put(options.inBitmap)
+            options.inBitmap = null
+            contentResolver.openInputStream(uri)?.use { BitmapFactory.decodeStream(it, null, options) }
+        }
+
+        if (bitmap == null) {
+            BitmapPool.put(options.inBitmap)
+            throw IOException("Failed to decode image")
+        }
+        return bitmap
+    }
+
+    companion object {
+        private const val TAG = "UploadImagePipeline"
+        private const val MAX_DECODE_PIXELS = 4_000_000L
+        private const val JPEG_QUALITY = 90
+        private val SCALE_PAINT = Paint(Paint.FILTER_BITMAP_FLAG)
+    }
+}
+
+interface FilesCallback {
+    fun onSuccess(uris: Array<Uri>)
+    fun onFailure(exception: Exception)
+}
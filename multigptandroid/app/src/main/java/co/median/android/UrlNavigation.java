@@ -6,11 +6,11 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
+import android.content.Context;
 import android.content.Intent;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.net.http.SslError;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
@@ -22,7 +22,6 @@ import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
 import android.webkit.ClientCertRequest;
-import android.webkit.CookieManager;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceResponse;
@@ -37,9 +36,6 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
@@ -75,12 +71,12 @@ public class UrlNavigation {
     public static final String OFFLINE_PAGE_URL_RAW = "file:///offline.html";
 
     public static final int DEFAULT_HTML_SIZE = 10 * 1024; // 10 kilobytes
+    private static final int CAMERA_IMAGE_SHORT_SIDE = 480; // low capture quality
 
     private MainActivity mainActivity;
     private String profilePickerExec;
     private String gnProfilePickerExec;
     private String currentWebviewUrl;
-    private String jsBridgeScript;
     private HtmlIntercept htmlIntercept;
     private Handler startLoadTimeout = new Handler();
 
@@ -91,15 +87,15 @@ public class UrlNavigation {
 
     private String interceptedRedirectUrl = "";
     private boolean isCustomCSSInjected = false;
-    private final String customCSS;
-    private final String customJS;
     private boolean isFirstLaunch = false;
     private final ActivityResultLauncher<FileUploadOptions> fileUploadLauncher;
+    private final UploadImagePipeline uploadImagePipeline;
     private ValueCallback<Uri[]> uploadCallback;
 
     UrlNavigation(MainActivity activity) {
         this.mainActivity = activity;
         this.htmlIntercept = new HtmlIntercept();
+        this.htmlIntercept.setTimeline(activity.getPageLoadTimeline());
 
         if (this.mainActivity.getUrlLoader() != null)
             this.mainActivity.getUrlLoader().setUrlNavigation(this);
@@ -123,23 +119,21 @@ public class UrlNavigation {
 
         connectionOfflineTime = appConfig.androidConnectionOfflineTime;
 
-        this.customCSS = ((GoNativeApplication) mainActivity.getApplication()).getCustomCss();
-        this.customJS = ((GoNativeApplication) mainActivity.getApplication()).getCustomJs();
-
         this.isFirstLaunch = ((GoNativeApplication) mainActivity.getApplication()).isFirstLaunch();
 
+        this.uploadImagePipeline = new UploadImagePipeline(mainActivity, mainActivity.getLifecycle());
         this.fileUploadLauncher = mainActivity.registerForActivityResult(
                 new FileUploadContract(),
                 result -> {
                     if (result.getSuccess()) {
 
                         if (result.getShouldResizeCameraImage()) {
-                            Uri cameraImageUri = Objects.requireNonNull(result.getResult())[0];
-                            MediaFileHelper.resizeJpgUriTo480p(mainActivity, cameraImageUri, new FileCallback() {
+                            Uri[] cameraImageUris = Objects.requireNonNull(result.getResult());
+                            uploadImagePipeline.resizeImages(cameraImageUris, CAMERA_IMAGE_SHORT_SIDE, new FilesCallback() {
                                 @Override
-                                public void onSuccess(@NonNull Uri uri) {
+                                public void onSuccess(@NonNull Uri[] uris) {
                                     if (uploadCallback != null) {
-                                        uploadCallback.onReceiveValue(new Uri[]{uri});
+                                        uploadCallback.onReceiveValue(uris);
                                         uploadCallback = null;
                                     }
                                 }
@@ -166,6 +160,13 @@ public class UrlNavigation {
     }
 
     private boolean isInternalUri(Uri uri) {
+        return isInternalUri(mainActivity, uri);
+    }
+
+    /**
+     * True if uri is loaded in the app's WebView rather than handed to a browser or another app.
+     */
+    static boolean isInternalUri(Context context, Uri uri) {
         String scheme = uri.getScheme();
         if (scheme == null || (!scheme.equalsIgnoreCase("http") && !scheme.equalsIgnoreCase("https"))) {
             return false;
@@ -182,7 +183,7 @@ public class UrlNavigation {
             }
         }
 
-        AppConfig appConfig = AppConfig.getInstance(mainActivity);
+        AppConfig appConfig = AppConfig.getInstance(context);
         RegexRulesManager regexRulesManager = appConfig.regexRulesManager;
         String urlString = uri.toString();
 
@@ -202,6 +203,38 @@ public class UrlNavigation {
         return shouldOverrideUrlLoading(view, url, false, false);
     }
 
+    /**
+     * True if tapping a link to url would open it in a new activity, following the same navigation
+     * level decision as shouldOverrideUrlLoadingNoIntercept. Starting the activity and its WebView
+     * takes long enough that fetching the document from the touch pays off. Links loaded in this
+     * window, or switched to in a pooled WebView, are left alone.
+     */
+    public boolean isPrefetchCandidate(String url) {
+        if (url == null) return false;
+        Uri uri = Uri.parse(url);
+        if (!isInternalUri(uri)) return false;
+
+        AppConfig appConfig = AppConfig.getInstance(mainActivity);
+        if (appConfig.getRedirects() != null
+                && (appConfig.getRedirects().containsKey(url) || appConfig.getRedirects().containsKey("*"))) {
+            return false;
+        }
+
+        // the tap may be turned into a max windows prompt rather than a new activity
+        if (appConfig.maxWindowsEnabled && appConfig.numWindows > 0
+                && mainActivity.getGNWindowManager().getWindowCount() >= appConfig.numWindows) {
+            return false;
+        }
+
+        int currentLevel = mainActivity.getUrlLevel();
+        int newLevel = mainActivity.urlLevelForUrl(url);
+        if (currentLevel < 0 || newLevel <= currentLevel) return false;
+
+        // already loaded in a pooled webview, which the new activity switches to instead
+        WebViewPool webViewPool = ((GoNativeApplication) mainActivity.getApplication()).getWebViewPool();
+        return !webViewPool.hasWebviewForUrl(url);
+    }
+
     // noAction to skip stuff like opening url in external browser, higher nav levels, etc.
     public boolean shouldOverrideUrlLoadingNoIntercept(final GoNativeWebviewInterface view, final String url,
                                                         @SuppressWarnings("SameParameterValue") final boolean noAction) {
@@ -274,6 +307,7 @@ public class UrlNavigation {
         }
 
         if ("median".equals(uri.getScheme()) || "gonative".equals(uri.getScheme())) {
+            if (ShellBridge.handle(mainActivity, uri, null)) return true;
             ((GoNativeApplication) mainActivity.getApplication()).mBridge.handleJSBridgeFunctions(mainActivity, uri);
             return true;
         }
@@ -500,6 +534,8 @@ public class UrlNavigation {
             finishOnExternalUrl = false;
         }
 
+        mainActivity.getPageLoadTimeline().begin(url, isRedirect);
+
         // intercept html
         this.htmlIntercept.setInterceptUrl(url);
         mainActivity.hideWebview();
@@ -536,6 +572,7 @@ public class UrlNavigation {
         if (this.mainActivity.getUrlLoader() != null) this.mainActivity.getUrlLoader().notifyOnPageStartedCalled();
 
         state = WebviewLoadState.STATE_PAGE_STARTED;
+        mainActivity.getPageLoadTimeline().pageStarted(url);
         startLoadTimeout.removeCallbacksAndMessages(null);
         htmlIntercept.setInterceptUrl(url);
 
@@ -572,8 +609,17 @@ public class UrlNavigation {
         mainActivity.runOnUiThread(() -> mainActivity.showWebviewImmediately());
     }
 
-    @SuppressLint("ApplySharedPref")
     public void onPageFinished(GoNativeWebviewInterface view, String url) {
+        Tracing.beginSection("UrlNavigation.onPageFinished");
+        try {
+            handlePageFinished(view, url);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    @SuppressLint("ApplySharedPref")
+    private void handlePageFinished(GoNativeWebviewInterface view, String url) {
         // Catch intercepted Redirect URL to
         // prevent loading unnecessary components
         if (interceptedRedirectUrl.equals(url)) {
@@ -585,6 +631,10 @@ public class UrlNavigation {
         if (this.mainActivity.getUrlLoader() != null) this.mainActivity.getUrlLoader().notifyOnPageFinishedCalled();
 
         Log.d(TAG, "onpagefinished " + url);
+        PageLoadTimeline timeline = mainActivity.getPageLoadTimeline();
+        // a finish for a page that was already replaced by a newer navigation is not recorded
+        int navigationId = timeline.findId(url);
+        timeline.mark(navigationId, PageLoadTimeline.PAGE_FINISHED);
         state = WebviewLoadState.STATE_DONE;
         setCurrentWebviewUrl(url);
 
@@ -608,12 +658,7 @@ public class UrlNavigation {
 
         Uri uri = Uri.parse(url);
         if (isInternalUri(uri)) {
-            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
-                @Override
-                public void run() {
-                    CookieManager.getInstance().flush();
-                }
-            });
+            CookieFlushScheduler.getInstance().requestFlush();
         }
 
         // inject median library
@@ -654,8 +699,16 @@ public class UrlNavigation {
             mainActivity.runJavascript(js);
         }
 
+        timeline.mark(navigationId, PageLoadTimeline.INJECTIONS_DONE);
+
         // send broadcast message
         LocalBroadcastManager.getInstance(mainActivity).sendBroadcast(new Intent(UrlNavigation.FINISHED_LOADING_MESSAGE));
+        timeline.mark(navigationId, PageLoadTimeline.FINISHED_BROADCAST);
+        timeline.collectPageTiming(mainActivity, navigationId);
+        // the page's resource timing buffer is small, read it before later requests overflow it
+        NetworkAccounting.getInstance().collectResourceTiming(mainActivity, null);
+        OfflineArchive.getInstance(mainActivity).onPageFinished(url);
+        mainActivity.getGNWindowManager().onWindowPageFinished(mainActivity.getActivityId());
 
         boolean doNativeBridge = true;
         if (currentWebviewUrl != null) {
@@ -682,13 +735,7 @@ public class UrlNavigation {
         if(!LeanUtils.checkNativeBridgeUrls(currentWebviewUrl, mainActivity)) return;
 
         try {
-            if(jsBridgeScript == null) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                InputStream is = new BufferedInputStream(mainActivity.getAssets().open("GoNativeJSBridgeLibrary.js"));
-                IOUtils.copy(is, baos);
-                jsBridgeScript = baos.toString();
-            }
-            mainActivity.runJavascript(jsBridgeScript);
+            mainActivity.runJavascript(((GoNativeApplication) mainActivity.getApplication()).getJsBridgeScript());
             ((GoNativeApplication) mainActivity.getApplication()).mBridge.injectJSLibraries(mainActivity);
             // call the user created function that needs library access on page finished.
             mainActivity.runJavascript(LeanUtils.createJsForCallback("median_library_ready", null));
@@ -700,9 +747,11 @@ public class UrlNavigation {
     }
 
     private void injectCSSviaJavascript() {
-        if (TextUtils.isEmpty(this.customCSS) || isCustomCSSInjected) return;
+        if (isCustomCSSInjected) return;
+        String customCSS = ((GoNativeApplication) mainActivity.getApplication()).getCustomCss();
+        if (TextUtils.isEmpty(customCSS)) return;
         try {
-            mainActivity.runJavascript(createInjectCssScript(), success -> {
+            mainActivity.runJavascript(createInjectCssScript(customCSS), success -> {
                 if (Boolean.parseBoolean(success)) {
                     isCustomCSSInjected = true;
                     Log.d(TAG, "Custom CSS Injection Success");
@@ -715,28 +764,29 @@ public class UrlNavigation {
         }
     }
 
-    private String createInjectCssScript() {
+    private String createInjectCssScript(String customCSS) {
         String uniqueId = "median-custom-css";
         return "(function() {" +
                 "var parent = document.getElementsByTagName('head').item(0);" +
                 "var style = document.createElement('style');" +
                 "style.type = 'text/css';" +
                 "style.id = '" + uniqueId + "';" +  // set the unique identifier
-                "style.innerHTML = window.atob('" + this.customCSS + "');" +
+                "style.innerHTML = window.atob('" + customCSS + "');" +
                 "parent.appendChild(style);" +
                 "return document.getElementById('" + uniqueId + "') !== null;" +  // checks if the css was injected successfully
                 "})()";
     }
 
     private void injectJSviaJavascript() {
-        if (TextUtils.isEmpty(this.customJS)) return;
+        String customJS = ((GoNativeApplication) mainActivity.getApplication()).getCustomJs();
+        if (TextUtils.isEmpty(customJS)) return;
 
         try {
             String js = "javascript:(function() {" +
                     "var parent = document.getElementsByTagName('head').item(0);" +
                     "var script = document.createElement('script');" +
                     "script.type = 'text/javascript';" +
-                    "script.innerHTML = window.atob('" + this.customJS + "');" +
+                    "script.innerHTML = window.atob('" + customJS + "');" +
                     "parent.appendChild(script)" +
                     "})()";
             mainActivity.runJavascript(js);
@@ -991,19 +1041,24 @@ public class UrlNavigation {
     }
 
 
-    private static class GetKeyTask extends AsyncTask<String, Void, Pair<PrivateKey, X509Certificate[]>> {
+    private static class GetKeyTask implements Runnable {
         private Activity activity;
         private ClientCertRequest request;
+        private final String alias;
 
-        public GetKeyTask(Activity activity, ClientCertRequest request) {
+        public GetKeyTask(Activity activity, ClientCertRequest request, String alias) {
             this.activity = activity;
             this.request = request;
+            this.alias = alias;
         }
 
         @Override
-        protected Pair<PrivateKey, X509Certificate[]> doInBackground(String... strings) {
-            String alias = strings[0];
+        public void run() {
+            Pair<PrivateKey, X509Certificate[]> result = getKey();
+            BackgroundExecutor.getInstance().postToMain(() -> onPostExecute(result));
+        }
 
+        private Pair<PrivateKey, X509Certificate[]> getKey() {
             try {
                 PrivateKey privateKey = KeyChain.getPrivateKey(activity, alias);
                 X509Certificate[] certificates = KeyChain.getCertificateChain(activity, alias);
@@ -1014,8 +1069,7 @@ public class UrlNavigation {
             }
         }
 
-        @Override
-        protected void onPostExecute(Pair<PrivateKey, X509Certificate[]> result) {
+        private void onPostExecute(Pair<PrivateKey, X509Certificate[]> result) {
             if (result != null && result.first != null & result.second != null) {
                 request.proceed(result.first, result.second);
             } else {
@@ -1032,7 +1086,11 @@ public class UrlNavigation {
                 return;
             }
 
-            new GetKeyTask(mainActivity, request).execute(alias);
+            // the page load is blocked until the request is answered. The callback comes in on a
+            // binder thread, and the lookup is dropped if the activity goes away first.
+            mainActivity.runOnUiThread(() -> BackgroundExecutor.getInstance().execute(
+                    BackgroundExecutor.Lane.UI_CRITICAL_IO, BackgroundExecutor.PRIORITY_HIGH, mainActivity,
+                    new GetKeyTask(mainActivity, request, alias)));
         };
 
         KeyChain.choosePrivateKeyAlias(mainActivity, callback, request.getKeyTypes(), request.getPrincipals(), request.getHost(),
@@ -0,0 +1,28 @@
+package co.median.android;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.tencent.mm.opensdk.openapi.IWXAPI;
+import com.tencent.mm.opensdk.openapi.WXAPIFactory;
+
+/**
+ * Process-wide WeChat SDK instance, created and registered on first use.
+ */
+public class WeChatApiHolder {
+    private static final String TAG = "WeChatApi";
+
+    private static IWXAPI wxApi = null;
+
+    public static synchronized IWXAPI getApi(Context context) {
+        if (wxApi == null) {
+            wxApi = WXAPIFactory.createWXAPI(context.getApplicationContext(), BuildConfig.WECHAT_APP_ID, false);
+            if (!TextUtils.isEmpty(BuildConfig.WECHAT_APP_ID)) {
+                wxApi.registerApp(BuildConfig.WECHAT_APP_ID);
+            }
+            Log.d(TAG, "init wxApi appId=" + BuildConfig.WECHAT_APP_ID + " installed=" + wxApi.isWXAppInstalled());
+        }
+        return wxApi;
+    }
+}
@@ -13,7 +13,6 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.tencent.mm.opensdk.modelmsg.SendAuth;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
-import com.tencent.mm.opensdk.openapi.WXAPIFactory;
 
 import java.util.UUID;
 
@@ -37,11 +36,7 @@ public class WeChatLoginManager {
 
     public WeChatLoginManager(Context context) {
         this.appContext = context.getApplicationContext();
-        this.wxApi = WXAPIFactory.createWXAPI(appContext, BuildConfig.WECHAT_APP_ID, false);
-        if (!TextUtils.isEmpty(BuildConfig.WECHAT_APP_ID)) {
-            this.wxApi.registerApp(BuildConfig.WECHAT_APP_ID);
-        }
-        Log.d(TAG, "init wxApi appId=" + BuildConfig.WECHAT_APP_ID + " installed=" + wxApi.isWXAppInstalled());
+        this.wxApi = WeChatApiHolder.getApi(appContext);
         LocalBroadcastManager.getInstance(appContext).registerReceiver(resultReceiver,
                 new IntentFilter(ACTION_WECHAT_LOGIN_RESULT));
     }
@@ -14,7 +14,6 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.tencent.mm.opensdk.modelpay.PayReq;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
-import com.tencent.mm.opensdk.openapi.WXAPIFactory;
 
 import org.json.JSONObject;
 
@@ -43,11 +42,7 @@ public class WeChatPayManager {
 
     public WeChatPayManager(Context context) {
         this.appContext = context.getApplicationContext();
-        this.wxApi = WXAPIFactory.createWXAPI(appContext, BuildConfig.WECHAT_APP_ID, false);
-        if (!TextUtils.isEmpty(BuildConfig.WECHAT_APP_ID)) {
-            this.wxApi.registerApp(BuildConfig.WECHAT_APP_ID);
-        }
-        Log.d(TAG, "init wxApi appId=" + BuildConfig.WECHAT_APP_ID + " installed=" + wxApi.isWXAppInstalled());
+        this.wxApi = WeChatApiHolder.getApi(appContext);
         LocalBroadcastManager.getInstance(appContext).registerReceiver(resultReceiver,
                 new IntentFilter(ACTION_WECHAT_PAY_RESULT));
     }
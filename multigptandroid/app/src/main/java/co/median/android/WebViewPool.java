@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Point;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import android.util.Log;
 import android.util.Pair;
 import android.view.Display;
 import android.view.WindowManager;
@@ -32,11 +33,15 @@ import co.median.median_core.GoNativeWebviewInterface;
  */
 
 public class WebViewPool {
+    private static final String TAG = WebViewPool.class.getName();
+    private static final String TRACE_LOAD = "WebViewPool.load";
+
     public class WebViewPoolCallback {
         @SuppressWarnings("unused")
         public void onPageFinished(Activity activity, final GoNativeWebviewInterface webview, String url) {
             WebViewPool pool = WebViewPool.this;
 
+            pool.endLoadTrace();
             pool.urlToWebview.put(pool.currentLoadingUrl, pool.currentLoadingWebview);
             pool.currentLoadingUrl = null;
             pool.currentLoadingWebview = null;
@@ -67,6 +72,7 @@ public class WebViewPool {
     private String lastUrlRequest;
     private boolean isMainActivityLoading;
     private BroadcastReceiver messageReceiver;
+    private int loadTraceCookie;
 
     public void init(Activity activity) {
         if (this.isInitialized) return;
@@ -93,6 +99,7 @@ public class WebViewPool {
                         if (pool.currentLoadingWebview != null) {
                             // onReceive is always called on the main thread, so this is safe.
                             pool.currentLoadingWebview.stopLoading();
+                            pool.endLoadTrace();
                             pool.isLoading = false;
                         }
                         break;
@@ -122,6 +129,11 @@ public class WebViewPool {
                 messageReceiver, new IntentFilter(AppConfig.PROCESSED_WEBVIEW_POOLS_MESSAGE));
 
         processConfig(activity);
+
+        // pooled webviews are the most expensive to rebuild, release them last. onTrimMemory runs on
+        // the main thread, which owns the pool.
+        MemoryPressureManager.getInstance().register("webViewPool", MemoryPressureManager.Tier.EXPENSIVE,
+                level -> releaseIdleWebviews() * MemoryPressureManager.WEBVIEW_BYTES_ESTIMATE);
     }
 
     private void processConfig(Activity activity) {
@@ -184,6 +196,7 @@ public class WebViewPool {
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    beginLoadTrace();
                     currentLoadingWebview.loadUrl(currentLoadingUrl);
                 }
             });
@@ -218,14 +231,27 @@ public class WebViewPool {
                     currentLoadingWebview = webview;
                     urlsToLoad.remove(urlString);
 
+                    beginLoadTrace();
                     currentLoadingWebview.loadUrl(urlString);
                 }
             });
         }
     }
 
+    // pooled loads start and finish in different callbacks, so they are traced as async sections
+    private void beginLoadTrace() {
+        endLoadTrace();
+        loadTraceCookie = Tracing.beginAsyncSection(TRACE_LOAD);
+    }
+
+    private void endLoadTrace() {
+        Tracing.endAsyncSection(TRACE_LOAD, loadTraceCookie);
+        loadTraceCookie = 0;
+    }
+
     private void flushAll() {
         if (this.currentLoadingWebview != null) this.currentLoadingWebview.stopLoading();
+        endLoadTrace();
         this.isLoading = false;
         this.currentLoadingWebview = null;
         this.currentLoadingUrl = null;
@@ -233,6 +259,38 @@ public class WebViewPool {
         this.urlToWebview.clear();
     }
 
+    /**
+     * Destroys the webview being preloaded and the pooled webviews not attached to a window.
+     * @return number of webviews destroyed
+     */
+    private int releaseIdleWebviews() {
+        int released = 0;
+        if (this.currentLoadingWebview != null) {
+            this.currentLoadingWebview.stopLoading();
+            endLoadTrace();
+            if (this.currentLoadingWebview instanceof LeanWebView) {
+                ((LeanWebView) this.currentLoadingWebview).destroy();
+                released++;
+            }
+            this.isLoading = false;
+            this.currentLoadingWebview = null;
+            this.currentLoadingUrl = null;
+        }
+
+        Iterator<Map.Entry<String, GoNativeWebviewInterface>> it = this.urlToWebview.entrySet().iterator();
+        while (it.hasNext()) {
+            GoNativeWebviewInterface webview = it.next().getValue();
+            if (webview instanceof LeanWebView && ((LeanWebView) webview).getParent() == null) {
+                ((LeanWebView) webview).destroy();
+                it.remove();
+                released++;
+            }
+        }
+        this.urlsToLoad.clear();
+        Log.d(TAG, "releaseIdleWebviews: released " + released + " pooled webviews");
+        return released;
+    }
+
     public void disownWebview(GoNativeWebviewInterface webview) {
         Iterator<String> it = this.urlToWebview.keySet().iterator();
         while(it.hasNext()) {
@@ -264,6 +322,13 @@ public class WebViewPool {
         return new Pair<>(webview, policy);
     }
 
+    /**
+     * Like webviewForUrl, without queueing the url's set for loading.
+     */
+    public boolean hasWebviewForUrl(String url) {
+        return this.urlToWebview != null && this.urlToWebview.containsKey(url);
+    }
+
     private HashSet<String> urlSetForUrl(String url){
         HashSet<String> result = new HashSet<>();
         for (Set<String> set : this.urlSets) {
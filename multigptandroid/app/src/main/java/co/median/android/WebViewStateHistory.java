@@ -0,0 +1,299 @@
+package co.median.android;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import co.median.median_core.GNLog;
+
+/**
+ * Back navigation history of WebView states for one window. Every state is written to disk in the
+ * background as soon as it is pushed, and only the most recent states are kept in memory, so the
+ * activity's instance state holds entry ids instead of the states themselves and history survives
+ * process death. Instances are shared per activity id for the lifetime of the process.
+ */
+public class WebViewStateHistory {
+    private static final String TAG = WebViewStateHistory.class.getName();
+    private static final String STATES_DIR = "webviewStates";
+    private static final String CURRENT_STATE = "current";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_IN_MEMORY = 3;
+    private static final int MAX_ENTRIES = 50;
+    private static final long STALE_AGE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final Map<String, WebViewStateHistory> instances = new HashMap<>();
+    // writes and deletes of an entry must not be reordered
+    private static final Executor executor = BackgroundExecutor.getInstance()
+            .serialExecutor(BackgroundExecutor.Lane.DISK, BackgroundExecutor.PRIORITY_DEFAULT);
+
+    private final String activityId;
+    private final File dir;
+    // oldest first
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private Entry currentState;
+    private long nextId = 0;
+
+    private WebViewStateHistory(Context context, String activityId) {
+        this.activityId = activityId;
+        this.dir = new File(new File(context.getCacheDir(), STATES_DIR), activityId);
+    }
+
+    public static synchronized WebViewStateHistory forActivity(Context context, String activityId) {
+        WebViewStateHistory history = instances.get(activityId);
+        if (history == null) {
+            history = new WebViewStateHistory(context.getApplicationContext(), activityId);
+            instances.put(activityId, history);
+            WebViewStateHistory registered = history;
+            MemoryPressureManager.getInstance().register(registered.getMemoryPressureName(),
+                    MemoryPressureManager.Tier.MODERATE, level -> registered.releaseMemory());
+        }
+        return history;
+    }
+
+    /**
+     * Deletes histories of windows that have not been touched for a long time, e.g. after the
+     * process died and the activities were never restored.
+     */
+    public static void pruneStale(Context context) {
+        File[] dirs = new File(context.getCacheDir(), STATES_DIR).listFiles();
+        if (dirs == null) return;
+        long now = System.currentTimeMillis();
+        for (File dir : dirs) {
+            synchronized (WebViewStateHistory.class) {
+                if (instances.containsKey(dir.getName())) continue;
+            }
+            if (now - dir.lastModified() > STALE_AGE_MS) {
+                deleteDir(dir);
+            }
+        }
+    }
+
+    public synchronized void push(Bundle state) {
+        Entry entry = new Entry(nextId++, state);
+        entries.addLast(entry);
+        write(entry);
+
+        // keep the newest entries in memory, older ones are read back from disk when needed
+        int inMemory = 0;
+        Iterator<Entry> it = entries.descendingIterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.state == null) continue;
+            if (++inMemory > MAX_IN_MEMORY && e.persisted) e.state = null;
+        }
+
+        while (entries.size() > MAX_ENTRIES) {
+            delete(entries.removeFirst());
+        }
+    }
+
+    /**
+     * Removes and returns the most recent state. Entries whose file is missing or unreadable are
+     * skipped. Returns null when the history is empty.
+     */
+    public synchronized Bundle pop() {
+        while (!entries.isEmpty()) {
+            Entry entry = entries.removeLast();
+            Bundle state = entry.state != null ? entry.state : read(fileFor(entry.id));
+            delete(entry);
+            if (state != null) return state;
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Stores the state of the WebView that is currently showing, replacing any previous one.
+     */
+    public synchronized void saveCurrentState(Bundle state) {
+        Entry entry = new Entry(-1, state);
+        currentState = entry;
+        write(entry);
+    }
+
+    /**
+     * Returns the state stored by saveCurrentState, from memory if this process stored it and from
+     * disk otherwise.
+     */
+    public synchronized Bundle getCurrentState() {
+        if (currentState != null && currentState.state != null) return currentState.state;
+        return read(new File(dir, CURRENT_STATE));
+    }
+
+    /**
+     * Ids of the entries in the history, oldest first, for the activity's instance state.
+     */
+    public synchronized long[] getEntryIds() {
+        long[] ids = new long[entries.size()];
+        int i = 0;
+        for (Entry entry : entries) {
+            ids[i++] = entry.id;
+        }
+        return ids;
+    }
+
+    /**
+     * Rebuilds the history from ids saved in the instance state. Does nothing if this process
+     * already holds the history, e.g. after a configuration change.
+     */
+    public synchronized void restore(long[] ids) {
+        if (ids == null || !entries.isEmpty() || nextId > 0) return;
+        for (long id : ids) {
+            Entry entry = new Entry(id, null);
+            entry.persisted = true;
+            entries.addLast(entry);
+            nextId = Math.max(nextId, id + 1);
+        }
+    }
+
+    /**
+     * Deletes the history from memory and disk. Call when the window is closed for good.
+     */
+    public void clear() {
+        synchronized (WebViewStateHistory.class) {
+            instances.remove(activityId);
+        }
+        MemoryPressureManager.getInstance().unregister(getMemoryPressureName());
+        synchronized (this) {
+            entries.clear();
+            currentState = null;
+        }
+        executor.execute(() -> deleteDir(dir));
+    }
+
+    // drops in-memory states that are safely on disk
+    private synchronized long releaseMemory() {
+        long released = 0;
+        for (Entry entry : entries) {
+            if (entry.state != null && entry.persisted) {
+                entry.state = null;
+                released += entry.size;
+            }
+        }
+        if (currentState != null && currentState.state != null && currentState.persisted) {
+            currentState.state = null;
+            released += currentState.size;
+        }
+        return released;
+    }
+
+    private String getMemoryPressureName() {
+        return "webViewStates:" + activityId;
+    }
+
+    private File fileFor(long id) {
+        return new File(dir, Long.toString(id));
+    }
+
+    private void write(Entry entry) {
+        // marshal on the caller's thread, Bundle is not thread safe
+        Parcel parcel = Parcel.obtain();
+        byte[] bytes;
+        try {
+            entry.state.writeToParcel(parcel, 0);
+            bytes = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        entry.size = bytes.length;
+        File file = entry.id < 0 ? new File(dir, CURRENT_STATE) : fileFor(entry.id);
+
+        executor.execute(() -> {
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.w(TAG, "write: could not create " + dir);
+                return;
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new FileOutputStream(file));
+                out.writeInt(FORMAT_VERSION);
+                // parcel format is only stable within one platform version
+                out.writeInt(Build.VERSION.SDK_INT);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.flush();
+                synchronized (this) {
+                    entry.persisted = true;
+                }
+            } catch (IOException e) {
+                GNLog.getInstance().logError(TAG, "Error writing webview state", e);
+            } finally {
+                IOUtils.close(out);
+            }
+        });
+    }
+
+    private Bundle read(File file) {
+        if (!file.exists()) return null;
+        DataInputStream in = null;
+        Parcel parcel = Parcel.obtain();
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FORMAT_VERSION || in.readInt() != Build.VERSION.SDK_INT) {
+                Log.w(TAG, "read: discarding state written by another version " + file);
+                return null;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(getClass().getClassLoader());
+        } catch (Exception e) {
+            GNLog.getInstance().logError(TAG, "Error reading webview state", e);
+            return null;
+        } finally {
+            IOUtils.close(in);
+            parcel.recycle();
+        }
+    }
+
+    private void delete(Entry entry) {
+        File file = fileFor(entry.id);
+        // queued behind any pending write of the same entry
+        executor.execute(() -> {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "delete: could not delete " + file);
+            }
+        });
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static class Entry {
+        final long id;
+        Bundle state;
+        boolean persisted = false;
+        long size = 0;
+
+        Entry(long id, Bundle state) {
+            this.id = id;
+            this.state = state;
+        }
+    }
+}
@@ -12,9 +12,8 @@ import com.tencent.mm.opensdk.modelbase.BaseResp;
 import com.tencent.mm.opensdk.modelpay.PayResp;
 import com.tencent.mm.opensdk.openapi.IWXAPI;
 import com.tencent.mm.opensdk.openapi.IWXAPIEventHandler;
-import com.tencent.mm.opensdk.openapi.WXAPIFactory;
 
-import co.median.android.BuildConfig;
+import co.median.android.WeChatApiHolder;
 import co.median.android.WeChatPayManager;
 
 /**
@@ -29,7 +28,7 @@ public class WXPayEntryActivity extends Activity implements IWXAPIEventHandler {
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        wxApi = WXAPIFactory.createWXAPI(this, BuildConfig.WECHAT_APP_ID, false);
+        wxApi = WeChatApiHolder.getApi(this);
         if (wxApi != null) {
             wxApi.handleIntent(getIntent(), this);
         } else {
@@ -24,7 +24,6 @@ import java.util.ArrayList;
 import java.util.Locale;
 
 import co.median.median_core.AppConfig;
-import co.median.median_core.GNLog;
 
 /**
 * Created by weiyin on 2/2/15.
@@ -238,23 +237,7 @@ class GoNativeWebChromeClient extends WebChromeClient {
 
     @Override
     public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
-        if (webviewConsoleLogEnabled) {
-            switch (consoleMessage.messageLevel()) {
-                case LOG:
-                    Log.i("[console.log]", consoleMessage.message());
-                    break;
-                case DEBUG:
-                case TIP:
-                    Log.d("[console.debug]", consoleMessage.message());
-                    break;
-                case WARNING:
-                    Log.w("[console.warn]", consoleMessage.message());
-                    break;
-                case ERROR:
-                    GNLog.getInstance().logError("[console.error]", consoleMessage.message(), new Exception(consoleMessage.message()), GNLog.TYPE_WEB_CONSOLE);
-                    break;
-            }
-        }
+        ConsoleSink.getInstance().onConsoleMessage(consoleMessage);
         return true;
     }
 }
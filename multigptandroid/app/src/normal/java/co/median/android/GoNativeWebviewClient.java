@@ -27,12 +27,18 @@ public class GoNativeWebviewClient extends WebViewClient {
     private final UrlNavigation urlNavigation;
     private final MainActivity activity;
     private boolean userAgentCheckDoneForNonRootWindow = false;
+    // page whose subresources are being requested, for network accounting
+    private volatile String currentPageUrl;
 
     public GoNativeWebviewClient(MainActivity mainActivity, UrlNavigation urlNavigation) {
         this.urlNavigation = urlNavigation;
         this.activity = mainActivity;
     }
 
+    public UrlNavigation getUrlNavigation() {
+        return urlNavigation;
+    }
+
     @Override
     public boolean shouldOverrideUrlLoading(WebView view, String url) {
         return urlNavigation.shouldOverrideUrlLoading((GoNativeWebviewInterface)view, url);
@@ -55,6 +61,7 @@ public class GoNativeWebviewClient extends WebViewClient {
     public void onPageStarted(WebView view, String url, Bitmap favicon) {
         super.onPageStarted(view, url, favicon);
 
+        onPageUrl(url);
         urlNavigation.onPageStarted(url);
     }
 
@@ -62,9 +69,19 @@ public class GoNativeWebviewClient extends WebViewClient {
     public void onPageFinished(WebView view, String url) {
         super.onPageFinished(view, url);
 
+        // before UrlNavigation collects the page's Resource Timing entries under this url
+        onPageUrl(url);
         urlNavigation.onPageFinished((GoNativeWebviewInterface)view, url);
     }
 
+    // after a redirect the page is at a different url than its main-frame request
+    private void onPageUrl(String url) {
+        String requestUrl = currentPageUrl;
+        if (requestUrl == null || requestUrl.equals(url)) return;
+        NetworkAccounting.getInstance().onPageUrl(requestUrl, url);
+        currentPageUrl = url;
+    }
+
     @Override
     public void onPageCommitVisible(WebView view, String url) {
         urlNavigation.onPageCommitVisible(url);
@@ -108,9 +125,21 @@ public class GoNativeWebviewClient extends WebViewClient {
         return urlNavigation.interceptHtml((LeanWebView)view, url);
     }
 
+    @Override
+    public void onLoadResource(WebView view, String url) {
+        super.onLoadResource(view, url);
+        NetworkAccounting.getInstance().onLoadResource(currentPageUrl, url);
+    }
+
     @Override
     public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        if (request.isForMainFrame()) currentPageUrl = request.getUrl().toString();
+        NetworkAccounting accounting = NetworkAccounting.getInstance();
+        NetworkAccounting.Request record = accounting.begin(currentPageUrl, request);
+        return accounting.end(record, interceptRequest(view, request, record));
+    }
 
+    private WebResourceResponse interceptRequest(WebView view, WebResourceRequest request, NetworkAccounting.Request record) {
         WebResourceResponse wr = interceptRequestForUserAgent(request);
         if (wr != null) {
             return wr;
@@ -127,6 +156,14 @@ public class GoNativeWebviewClient extends WebViewClient {
         android.net.Uri uri = request.getUrl();
         if (uri == null || !uri.getScheme().startsWith("http")) return null;
 
+        if (!request.isForMainFrame()) {
+            wr = OfflineArchive.getInstance(activity).interceptSubresource(currentPageUrl, request);
+            if (wr != null) {
+                NetworkAccounting.setServedBy(record, NetworkAccounting.SERVED_BY_ARCHIVE);
+                return wr;
+            }
+        }
+
         return shouldInterceptRequest(view, uri.toString());
     }
 
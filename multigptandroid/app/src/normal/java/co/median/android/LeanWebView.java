@@ -3,6 +3,9 @@ package co.median.android;
 import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.GestureDetector;
@@ -14,6 +17,8 @@ import android.webkit.WebHistoryItem;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import androidx.annotation.NonNull;
+
 import co.median.median_core.GoNativeWebviewInterface;
 
 /**
@@ -28,6 +33,15 @@ public class LeanWebView extends WebView implements GoNativeWebviewInterface {
     private OnSwipeListener onSwipeListener;
     private boolean zoomed = false;
     private String urlToReloadFromOfflinePage = "";
+    // set once the current touch has become a scroll or long press
+    private boolean touchMoved = false;
+    // receives the href of the link under a touch, see onDown
+    private final Handler linkHrefHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(@NonNull Message msg) {
+            onLinkTouched(msg.getData().getString("url"));
+        }
+    };
 
     public LeanWebView(Context context) {
         super(context);
@@ -47,12 +61,14 @@ public class LeanWebView extends WebView implements GoNativeWebviewInterface {
     GestureDetector.SimpleOnGestureListener sogl = new GestureDetector.SimpleOnGestureListener() {
         @Override
         public boolean onFling(MotionEvent event1, MotionEvent event2, float velocityX, float velocityY) {
+            onTouchMoved();
             if (onSwipeListener == null) return false;
             return compareEvents(event1, event2, velocityX, velocityY);
         }
 
         @Override
         public boolean onScroll(MotionEvent event1, MotionEvent event2, float distanceX, float distanceY) {
+            onTouchMoved();
             if (onSwipeListener == null) return false;
             return compareEvents(event1, event2, 0, 0);
         }
@@ -65,9 +81,30 @@ public class LeanWebView extends WebView implements GoNativeWebviewInterface {
 
         @Override
         public boolean onDown(MotionEvent e) {
+            // the WebView updates its focus node while handling this event, so ask for the link
+            // href once it has been dispatched
+            touchMoved = false;
+            post(() -> requestFocusNodeHref(linkHrefHandler.obtainMessage()));
             return true;
         }
 
+        @Override
+        public boolean onSingleTapUp(MotionEvent e) {
+            SpeculativePrefetcher.getInstance().onTap();
+            return false;
+        }
+
+        @Override
+        public void onLongPress(MotionEvent e) {
+            onTouchMoved();
+        }
+
+        private void onTouchMoved() {
+            if (touchMoved) return;
+            touchMoved = true;
+            SpeculativePrefetcher.getInstance().onTouchCancelled();
+        }
+
         private boolean compareEvents(MotionEvent event1, MotionEvent event2, float velocityX, float velocityY) {
             int swipeVelocityThreshold = 0;
             int swipeThreshold = 100;
@@ -98,6 +135,20 @@ public class LeanWebView extends WebView implements GoNativeWebviewInterface {
         return super.onTouchEvent(event);
     }
 
+    private void onLinkTouched(String url) {
+        if (touchMoved) return;
+        if (url == null || url.isEmpty()) {
+            // requestFocusNodeHref has no href for some anchors, e.g. images inside links
+            HitTestResult result = getHitTestResult();
+            if (result.getType() != HitTestResult.SRC_ANCHOR_TYPE) return;
+            url = result.getExtra();
+        }
+        if (!(mClient instanceof GoNativeWebviewClient)) return;
+        if (((GoNativeWebviewClient) mClient).getUrlNavigation().isPrefetchCandidate(url)) {
+            SpeculativePrefetcher.getInstance().onTouchDown(getContext(), url);
+        }
+    }
+
     @Override
     public void setWebViewClient(WebViewClient client) {
         mClient = client;
@@ -31,6 +31,9 @@ public class WebViewSetup {
         LeanWebView wv = (LeanWebView)webview;
 
         setupWebview(wv, activity);
+        // the WebView is loaded by now, so this adds nothing to startup
+        ServiceWorkerInterceptor.install(activity);
+        KeyValueStore.getInstance(activity).attach(wv);
 
         UrlNavigation urlNavigation = new UrlNavigation(activity);
         urlNavigation.setCurrentWebviewUrl(webview.getUrl());
@@ -1,6 +1,7 @@
 package co.median.android;
 
 import java.io.IOException;
+import java.net.CookieHandler;
 import java.net.CookiePolicy;
 import java.net.CookieStore;
 import java.net.HttpCookie;
@@ -31,6 +32,16 @@ public class WebkitCookieManagerProxy extends java.net.CookieManager {
         this.webkitCookieManager = android.webkit.CookieManager.getInstance();
     }
 
+    /**
+     * Makes HttpURLConnection persist and send WebView cookies, the same way as MainActivity, unless
+     * a cookie handler is already installed. For connections made before any activity exists.
+     */
+    public static synchronized void installDefault() {
+        if (CookieHandler.getDefault() == null) {
+            CookieHandler.setDefault(new WebkitCookieManagerProxy());
+        }
+    }
+
     // java.net.CookieManager overrides
     @Override
     public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException 
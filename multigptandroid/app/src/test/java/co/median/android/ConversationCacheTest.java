@@ -0,0 +1,137 @@
+package co.median.android;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationCacheTest {
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayDropsTornTail() throws Exception {
+        File dir = folder.newFolder("cache");
+        ConversationCache cache = new ConversationCache(dir, MAX_BYTES);
+        call(callback -> cache.appendMessages("a", new JSONArray().put("one").put("two"), callback));
+
+        // a copy of the files as a crash in the middle of the next append would leave them
+        File crashed = copy(dir, folder.newFolder("crashed"));
+        append(new File(crashed, "log.jsonl"), "{\"t\":\"m\",\"id\":\"a\",\"m\":\"thr");
+
+        ConversationCache reopened = new ConversationCache(crashed, MAX_BYTES);
+        assertEquals(new JSONArray().put("one").put("two").toString(), messages(reopened, "a").toString());
+
+        call(callback -> reopened.appendMessages("a", new JSONArray().put("three"), callback));
+        assertEquals(new JSONArray().put("one").put("two").put("three").toString(), messages(reopened, "a").toString());
+        for (String line : Files.readAllLines(new File(crashed, "log.jsonl").toPath(), StandardCharsets.UTF_8)) {
+            new JSONObject(line);
+        }
+    }
+
+    @Test
+    public void ignoresIndexOfReplacedLog() throws Exception {
+        File dir = folder.newFolder("cache");
+        ConversationCache cache = new ConversationCache(dir, MAX_BYTES);
+        JSONObject conversation = new JSONObject().put("title", "chat");
+        call(callback -> cache.putConversation("a", conversation, callback));
+
+        // large replaced messages turn most of the log into garbage, which triggers compaction
+        for (int i = 0; i < 3; i++) replaceWithLargeMessage(cache, "old" + i, 200 * 1024);
+        File index = new File(dir, "index.json");
+        assertTrue(index.exists());
+        byte[] staleIndex = Files.readAllBytes(index.toPath());
+
+        // a different size, so offsets from the old index do not line up with the new log
+        for (int i = 0; i < 3; i++) replaceWithLargeMessage(cache, "new" + i, 300 * 1024);
+        assertNotEquals(logId(staleIndex), logId(Files.readAllBytes(index.toPath())));
+
+        // a crash between replacing the log and saving the index leaves the old index behind
+        File crashed = copy(dir, folder.newFolder("crashed"));
+        Files.write(new File(crashed, "index.json").toPath(), staleIndex);
+
+        ConversationCache reopened = new ConversationCache(crashed, MAX_BYTES);
+        JSONArray messages = messages(reopened, "a");
+        assertEquals(1, messages.length());
+        assertTrue(messages.getString(0).startsWith("new2"));
+        JSONObject summary = call(callback -> reopened.get("a", 0, callback));
+        assertEquals("chat", summary.getJSONObject("conversation").getString("title"));
+    }
+
+    @Test
+    public void ignoresUnfinishedCompaction() throws Exception {
+        File dir = folder.newFolder("cache");
+        ConversationCache cache = new ConversationCache(dir, MAX_BYTES);
+        call(callback -> cache.appendMessages("a", new JSONArray().put("one"), callback));
+
+        File crashed = copy(dir, folder.newFolder("crashed"));
+        append(new File(crashed, "log.jsonl.tmp"), "{\"t\":\"h\",\"id\":\"partial\"}\n{\"t\":\"m\"");
+
+        ConversationCache reopened = new ConversationCache(crashed, MAX_BYTES);
+        assertEquals(new JSONArray().put("one").toString(), messages(reopened, "a").toString());
+    }
+
+    private static void replaceWithLargeMessage(ConversationCache cache, String prefix, int size) throws InterruptedException {
+        StringBuilder message = new StringBuilder(prefix);
+        while (message.length() < size) message.append('x');
+        JSONObject result = call(callback -> cache.replaceMessages("a", new JSONArray().put(message.toString()), callback));
+        assertTrue(result.optBoolean("success"));
+    }
+
+    private static JSONArray messages(ConversationCache cache, String id) throws InterruptedException {
+        JSONObject result = call(callback -> cache.get(id, Integer.MAX_VALUE, callback));
+        JSONArray messages = result.optJSONArray("messages");
+        assertNotNull(result.toString(), messages);
+        return messages;
+    }
+
+    private static String logId(byte[] index) throws Exception {
+        return new JSONObject(new String(index, StandardCharsets.UTF_8)).optString("logId");
+    }
+
+    private static JSONObject call(Consumer<ConversationCache.Callback> operation) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<JSONObject> result = new AtomicReference<>();
+        operation.accept(json -> {
+            result.set(json);
+            done.countDown();
+        });
+        assertTrue("operation timed out", done.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    private static File copy(File from, File to) throws IOException {
+        File[] files = from.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.copy(file.toPath(), new File(to, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return to;
+    }
+
+    private static void append(File file, String text) throws IOException {
+        try (FileOutputStream os = new FileOutputStream(file, true)) {
+            os.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
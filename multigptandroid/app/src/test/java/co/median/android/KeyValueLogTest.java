@@ -0,0 +1,179 @@
+package co.median.android;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyValueLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private KeyValueLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "store.log");
+        log = new KeyValueLog(file);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    @Test
+    public void replaysLastWriteOfEachKey() throws Exception {
+        assertTrue(log.open().isEmpty());
+        log.append("a", "1");
+        log.append("b", "2");
+        log.append("a", "3");
+        log.append("c", "4");
+        log.append("c", null);
+
+        Map<String, String> values = reopen();
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<>(values.keySet()));
+        assertEquals("3", values.get("a"));
+        assertEquals("2", values.get("b"));
+    }
+
+    @Test
+    public void stopsAtRecordFailingChecksum() throws Exception {
+        log.open();
+        log.append("a", "1");
+        int end = log.size();
+        log.append("b", "torn");
+        log.close();
+
+        // a value byte that never made it to disk
+        corrupt(end + KeyValueLog.RECORD_HEADER_SIZE + 1);
+
+        assertEquals(singleton("a", "1"), reopen());
+        assertEquals(end, log.size());
+
+        // the next record goes where the torn one was
+        log.append("c", "2");
+        Map<String, String> values = reopen();
+        assertEquals(Arrays.asList("a", "c"), new ArrayList<>(values.keySet()));
+    }
+
+    @Test
+    public void stopsAtRecordWithoutLength() throws Exception {
+        log.open();
+        log.append("a", "1");
+        int end = log.size();
+        log.append("b", "2");
+        log.close();
+
+        // the length is written last, so a crash before it leaves zeros
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(end);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(singleton("a", "1"), reopen());
+        assertEquals(end, log.size());
+    }
+
+    @Test
+    public void ignoresUnfinishedRewrite() throws Exception {
+        log.open();
+        log.append("a", "1");
+        log.append("b", "2");
+        log.close();
+
+        // left by a crash before the rename, the old log is still complete
+        File tempFile = new File(folder.getRoot(), "store.log.tmp");
+        try (FileOutputStream os = new FileOutputStream(tempFile)) {
+            os.write("partial".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, String> values = reopen();
+        assertEquals("1", values.get("a"));
+        assertEquals("2", values.get("b"));
+        assertFalse(tempFile.exists());
+    }
+
+    @Test
+    public void rewriteKeepsOnlyCurrentValues() throws Exception {
+        log.open();
+        for (int i = 0; i < 100; i++) {
+            log.append("a", "value " + i);
+        }
+        log.append("b", "2");
+        int before = log.size();
+
+        LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        values.put("a", "value 99");
+        values.put("b", "2");
+        log.rewrite(values);
+        assertEquals(KeyValueLog.HEADER_SIZE + KeyValueLog.recordSize("a", "value 99")
+                + KeyValueLog.recordSize("b", "2"), log.size());
+        assertTrue(log.size() < before);
+
+        // still appendable after the rewrite
+        log.append("c", "3");
+        values.put("c", "3");
+        assertEquals(values, reopen());
+        assertFalse(new File(folder.getRoot(), "store.log.tmp").exists());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() throws Exception {
+        log.open();
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        int count = 2 * KeyValueLog.INITIAL_CAPACITY / value.length();
+        for (int i = 0; i < count; i++) {
+            log.append("key" + i, value);
+        }
+        assertTrue(log.capacity() > KeyValueLog.INITIAL_CAPACITY);
+
+        Map<String, String> values = reopen();
+        assertEquals(count, values.size());
+        assertEquals(value, values.get("key" + (count - 1)));
+    }
+
+    private Map<String, String> reopen() throws Exception {
+        log.close();
+        log = new KeyValueLog(file);
+        return log.open();
+    }
+
+    private void corrupt(int position) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Map<String, String> singleton(String key, String value) {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(key, value);
+        return map;
+    }
+}
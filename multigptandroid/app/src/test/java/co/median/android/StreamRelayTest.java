@@ -0,0 +1,309 @@
+package co.median.android;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamRelayTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerSocket server;
+    private final BlockingQueue<Socket> connections = new LinkedBlockingQueue<>();
+    private final List<Socket> accepted = new ArrayList<>();
+    private final List<Boolean> keepAlive = new ArrayList<>();
+    private StreamRelay relay;
+
+    @Before
+    public void setUp() throws Exception {
+        // the relay only installs the WebView cookie store if nothing else is
+        CookieHandler.setDefault(new CookieManager());
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    Socket socket = server.accept();
+                    synchronized (accepted) {
+                        accepted.add(socket);
+                    }
+                    connections.add(socket);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        relay = new StreamRelay(folder.newFolder("relay"), 1024, running -> {
+            synchronized (keepAlive) {
+                keepAlive.add(running);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        // streams left open would keep their threads on the shared lane
+        synchronized (accepted) {
+            for (Socket socket : accepted) socket.close();
+        }
+    }
+
+    @Test
+    public void deliversChunksAsTheyArrive() throws Exception {
+        String id = start();
+        OutputStream os = respond(connection());
+
+        chunk(os, "data: one\n\n");
+        assertEquals("data: one\n\n", readUntil(id, "data: one\n\n"));
+
+        // a character split across chunks is held back until it is complete
+        byte[] euro = "data: \u20ac\n\n".getBytes(StandardCharsets.UTF_8);
+        chunk(os, Arrays.copyOfRange(euro, 0, 7));
+        chunk(os, Arrays.copyOfRange(euro, 7, euro.length));
+        assertEquals("data: \u20ac\n\n", readUntil(id, "data: \u20ac\n\n"));
+
+        os.write("0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        os.flush();
+        JSONObject last = waitForDone(id);
+        assertEquals(200, last.optInt("status"));
+        assertEquals("", last.optString("data"));
+        assertEquals("Unknown stream", relay.read(id, 0).optString("error"));
+        assertKeepAlive(true, false);
+    }
+
+    @Test
+    public void readsAtLeastOneCharacter() throws Exception {
+        String id = start();
+        OutputStream os = respond(connection());
+        chunk(os, "\ud83d\ude00");
+
+        // a smaller maxBytes could never return the emoji and the page would poll forever
+        assertEquals("\ud83d\ude00", readUntil(id, 1, "\ud83d\ude00"));
+    }
+
+    @Test
+    public void stopsWhenBufferIsFull() throws Exception {
+        String id = start();
+        OutputStream os = respond(connection());
+        char[] data = new char[600];
+        Arrays.fill(data, 'a');
+        chunk(os, new String(data));
+        chunk(os, new String(data));
+
+        JSONObject last = waitForDone(id);
+        assertEquals("Buffer full", last.optString("error"));
+    }
+
+    @Test
+    public void cancelledStreamHoldsItsSlotUntilItsTaskExits() throws Exception {
+        List<String> ids = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        List<OutputStream> outputs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ids.add(start());
+            Socket socket = connection();
+            outputs.add(respond(socket));
+            sockets.add(socket);
+        }
+        // the reads are blocked once the response has started
+        for (String id : ids) waitForStatus(id);
+        assertEquals("Too many open streams", startResult().optString("error"));
+
+        relay.cancel(ids.get(0));
+        assertEquals("Unknown stream", relay.read(ids.get(0), 0).optString("error"));
+        // a disconnect does not always unblock the read, the task may still hold its thread
+        Thread.sleep(200);
+        assertEquals("Too many open streams", startResult().optString("error"));
+
+        // the next data wakes the task, which sees the cancel and exits
+        chunk(outputs.get(0), "data: late\n\n");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        JSONObject result;
+        while ((result = startResult()).has("error")) {
+            assertEquals("Too many open streams", result.optString("error"));
+            if (System.currentTimeMillis() > deadline) fail("slot was not released");
+            Thread.sleep(20);
+        }
+        assertTrue(result.has("id"));
+        respond(connection()).close();
+        waitForDone(result.optString("id"));
+
+        for (Socket socket : sockets) socket.close();
+        for (String id : ids.subList(1, ids.size())) waitForDone(id);
+        assertKeepAlive(true, false);
+    }
+
+    @Test
+    public void keepsCompleteText() {
+        assertBoundary("", 0);
+        assertBoundary("abc", 3);
+        assertBoundary("a\u00e9", 3);
+        assertBoundary("a\u20ac", 4);
+        assertBoundary("a\ud83d\ude00", 5);
+    }
+
+    @Test
+    public void dropsSequenceCutShort() {
+        byte[] euro = "a\u20ac".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, StreamRelay.utf8Boundary(Arrays.copyOf(euro, 2)));
+        assertEquals(1, StreamRelay.utf8Boundary(Arrays.copyOf(euro, 3)));
+
+        byte[] emoji = "a\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+        for (int length = 2; length < emoji.length; length++) {
+            assertEquals(1, StreamRelay.utf8Boundary(Arrays.copyOf(emoji, length)));
+        }
+
+        byte[] accent = "\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertEquals(0, StreamRelay.utf8Boundary(Arrays.copyOf(accent, 1)));
+    }
+
+    @Test
+    public void passesInvalidBytesThrough() {
+        // continuation bytes without a lead byte cannot become valid, holding them back would stall
+        assertEquals(2, StreamRelay.utf8Boundary(new byte[]{(byte) 0x80, (byte) 0x80}));
+        assertEquals(5, StreamRelay.utf8Boundary(new byte[]{'a', (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80}));
+    }
+
+    private String start() {
+        JSONObject result = startResult();
+        assertFalse(result.toString(), result.has("error"));
+        return result.optString("id");
+    }
+
+    private JSONObject startResult() {
+        return relay.start(null, null, "http://127.0.0.1:" + server.getLocalPort() + "/stream", false, new JSONObject());
+    }
+
+    private Socket connection() throws InterruptedException {
+        Socket socket = connections.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no connection", socket);
+        return socket;
+    }
+
+    // reads the request headers and starts a chunked event stream
+    private static OutputStream respond(Socket socket) throws IOException {
+        InputStream is = socket.getInputStream();
+        int matched = 0;
+        byte[] end = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        while (matched < end.length) {
+            int b = is.read();
+            if (b == -1) throw new IOException("request cut short");
+            matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+        }
+        OutputStream os = socket.getOutputStream();
+        os.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        return os;
+    }
+
+    private static void chunk(OutputStream os, String data) throws IOException {
+        chunk(os, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void chunk(OutputStream os, byte[] data) throws IOException {
+        os.write((Integer.toHexString(data.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        os.write(data);
+        os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+    }
+
+    private String readUntil(String id, String expected) throws InterruptedException {
+        return readUntil(id, 0, expected);
+    }
+
+    private String readUntil(String id, int maxBytes, String expected) throws InterruptedException {
+        StringBuilder data = new StringBuilder();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (data.length() < expected.length()) {
+            JSONObject result = relay.read(id, maxBytes);
+            assertFalse(result.toString(), result.has("error"));
+            data.append(result.optString("data"));
+            if (System.currentTimeMillis() > deadline) fail("only read " + data);
+            Thread.sleep(10);
+        }
+        return data.toString();
+    }
+
+    // waits without reading, so that the buffer is not drained in the meantime
+    private JSONObject waitForDone(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!isFinished(id)) {
+            if (System.currentTimeMillis() > deadline) fail("stream did not finish");
+            Thread.sleep(10);
+        }
+        JSONObject result = relay.read(id, 0);
+        assertTrue(result.toString(), result.optBoolean("done"));
+        return result;
+    }
+
+    private void waitForStatus(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (stream(id) == null || !stream(id).has("status")) {
+            if (System.currentTimeMillis() > deadline) fail("no response for " + id);
+            Thread.sleep(10);
+        }
+    }
+
+    private boolean isFinished(String id) {
+        JSONObject stream = stream(id);
+        return stream != null && stream.optBoolean("finished");
+    }
+
+    private JSONObject stream(String id) {
+        JSONArray streams = relay.toJson().optJSONArray("streams");
+        for (int i = 0; streams != null && i < streams.length(); i++) {
+            JSONObject stream = streams.optJSONObject(i);
+            if (id.equals(stream.optString("id"))) return stream;
+        }
+        return null;
+    }
+
+    private void assertKeepAlive(Boolean... expected) throws InterruptedException {
+        // the task reports its exit after the page can already see the stream is done
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            synchronized (keepAlive) {
+                if (keepAlive.size() >= expected.length || System.currentTimeMillis() > deadline) {
+                    assertEquals(Arrays.asList(expected), keepAlive);
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertBoundary(String text, int expected) {
+        assertEquals(expected, StreamRelay.utf8Boundary(text.getBytes(StandardCharsets.UTF_8)));
+    }
+}
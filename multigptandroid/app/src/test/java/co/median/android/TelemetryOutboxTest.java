@@ -0,0 +1,146 @@
+package co.median.android;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryOutboxTest {
+    private static final double ALMOST_ONE = Math.nextDown(1.0);
+    private static final String URL = "https://example.com/register";
+    private static final String OTHER_URL = "https://example.com/events";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> sent = new ArrayList<>();
+
+    private TelemetryOutbox outbox(int responseCode) {
+        return new TelemetryOutbox(new File(folder.getRoot(), "outbox.json"), (url, payload) -> {
+            sent.add(url + " " + payload);
+            return responseCode;
+        }, false);
+    }
+
+    @Test
+    public void sendsAllPendingEntriesInOnePass() {
+        TelemetryOutbox outbox = outbox(200);
+        outbox.add(URL, "{\"v\":1}", false);
+        outbox.add(OTHER_URL, "{\"e\":1}", false);
+        outbox.add(OTHER_URL, "{\"e\":2}", false);
+        outbox.flush();
+        assertEquals(Arrays.asList(URL + " {\"v\":1}", OTHER_URL + " {\"e\":1}", OTHER_URL + " {\"e\":2}"), sent);
+
+        sent.clear();
+        outbox.flush();
+        assertEquals(Collections.emptyList(), sent);
+    }
+
+    @Test
+    public void storesIdenticalPayloadOnce() {
+        TelemetryOutbox outbox = outbox(200);
+        outbox.add(OTHER_URL, "{\"e\":1}", false);
+        outbox.add(OTHER_URL, "{\"e\":1}", false);
+        outbox.flush();
+        assertEquals(Collections.singletonList(OTHER_URL + " {\"e\":1}"), sent);
+    }
+
+    @Test
+    public void latestOnlyReplacesPendingPayload() {
+        TelemetryOutbox outbox = outbox(200);
+        outbox.add(URL, "{\"v\":1}", true);
+        outbox.add(OTHER_URL, "{\"e\":1}", false);
+        outbox.add(URL, "{\"v\":2}", true);
+        outbox.flush();
+        assertEquals(Arrays.asList(OTHER_URL + " {\"e\":1}", URL + " {\"v\":2}"), sent);
+    }
+
+    @Test
+    public void keepsPendingEntriesAcrossReload() {
+        TelemetryOutbox outbox = outbox(-1);
+        outbox.add(URL, "{\"v\":1}", true);
+        outbox.add(OTHER_URL, "{\"e\":1}", false);
+
+        // a new process finds the entries on disk, including ones that failed before
+        outbox.flush();
+        sent.clear();
+        TelemetryOutbox reloaded = outbox(200);
+        reloaded.add(OTHER_URL, "{\"e\":2}", false);
+        assertEquals(Collections.emptyList(), sent);
+        // failed entries wait for their backoff, so only the new one is due
+        reloaded.flush();
+        assertEquals(Collections.singletonList(OTHER_URL + " {\"e\":2}"), sent);
+    }
+
+    @Test
+    public void dropsSupersededEntryThatFails() {
+        List<TelemetryOutbox> holder = new ArrayList<>();
+        TelemetryOutbox outbox = new TelemetryOutbox(new File(folder.getRoot(), "outbox.json"), (url, payload) -> {
+            sent.add(url + " " + payload);
+            if (payload.equals("{\"v\":1}")) {
+                // newer state arrives while the old one is being sent, then the send fails
+                holder.get(0).add(URL, "{\"v\":2}", true);
+                return -1;
+            }
+            return 200;
+        }, false);
+        holder.add(outbox);
+
+        outbox.add(URL, "{\"v\":1}", true);
+        outbox.flush();
+        assertEquals(Collections.singletonList(URL + " {\"v\":1}"), sent);
+
+        sent.clear();
+        outbox.flush();
+        assertEquals(Collections.singletonList(URL + " {\"v\":2}"), sent);
+
+        sent.clear();
+        outbox.flush();
+        assertEquals(Collections.emptyList(), sent);
+
+        // the stale entry was not written to disk either
+        outbox(200).flush();
+        assertEquals(Collections.emptyList(), sent);
+    }
+
+    @Test
+    public void backoffDoublesPerAttempt() {
+        long base = TelemetryOutbox.BASE_BACKOFF_MS;
+        assertEquals(base / 2, TelemetryOutbox.backoffMs(1, 0));
+        assertEquals(base, TelemetryOutbox.backoffMs(2, 0));
+        assertEquals(base * 2, TelemetryOutbox.backoffMs(3, 0));
+    }
+
+    @Test
+    public void backoffJittersOverUpperHalf() {
+        for (int attempts = 1; attempts < 10; attempts++) {
+            long low = TelemetryOutbox.backoffMs(attempts, 0);
+            long high = TelemetryOutbox.backoffMs(attempts, ALMOST_ONE);
+            assertTrue(high >= low);
+            assertTrue(high < 2 * low);
+            assertTrue(TelemetryOutbox.backoffMs(attempts, 0.5) > low);
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        long max = TelemetryOutbox.MAX_BACKOFF_MS;
+        long previous = 0;
+        // well past the point where an unbounded shift would overflow
+        for (int attempts = 1; attempts < 100; attempts++) {
+            long low = TelemetryOutbox.backoffMs(attempts, 0);
+            assertTrue(low >= previous);
+            assertTrue(TelemetryOutbox.backoffMs(attempts, ALMOST_ONE) <= max);
+            previous = low;
+        }
+        assertEquals(max / 2, TelemetryOutbox.backoffMs(Integer.MAX_VALUE, 0));
+    }
+}